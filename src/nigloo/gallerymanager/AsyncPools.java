@@ -12,6 +12,8 @@ public class AsyncPools
 	public static final Executor DISK_IO = Executors.newVirtualThreadPerTaskExecutor();
 	public static final Executor HTTP_REQUEST = ForkJoinPool.commonPool();
 	public static final Executor SCRIPT_EXECUTION = ForkJoinPool.commonPool();
+	// CPU bound work split in parallel tasks, one thread per core
+	public static final ForkJoinPool COMPUTE = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 	
 	private AsyncPools(){throw new UnsupportedOperationException();}
 }
@@ -1,8 +1,12 @@
 package nigloo.gallerymanager.autodownloader;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.lang.Character.UnicodeBlock;
 import java.lang.reflect.*;
+import java.math.BigDecimal;
 import java.net.HttpCookie;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -30,11 +34,13 @@ import java.time.LocalTime;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -55,8 +61,10 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -96,6 +104,7 @@ import nigloo.gallerymanager.autodownloader.Downloader.FilesConfiguration.AutoEx
 import nigloo.gallerymanager.autodownloader.Downloader.FilesConfiguration.DownloadFiles;
 import nigloo.gallerymanager.autodownloader.Downloader.ImagesConfiguration.DownloadImages;
 import nigloo.gallerymanager.model.Artist;
+import nigloo.gallerymanager.model.ChangeBatch;
 import nigloo.gallerymanager.model.Gallery;
 import nigloo.gallerymanager.model.Image;
 import nigloo.gallerymanager.model.ImageReference;
@@ -193,6 +202,8 @@ public abstract class Downloader
 
 	private CompletableFuture<?> doDownload(Properties secrets, DownloadOption... options)
 	{
+		mapping.load();
+		
 		LOGGER.info("Download for {} with pattern {}",
 		            this,
 		            Optional.ofNullable(imageConfiguration)
@@ -301,6 +312,7 @@ public abstract class Downloader
 		}
 		catch (Exception e)
 		{
+			session.galleryChanges.close();
 			downloadsProgressView.endSession(session.id(), e);
 			return CompletableFuture.failedFuture(e);
 		}
@@ -338,14 +350,86 @@ public abstract class Downloader
 		}
 	}
 	
+	/*
+	 * Key of an image extracted from a zip file
+	 */
+	private record ZipEntryKey(FileKey fileKey, String pathInZip)
+	{
+	}
+	
 	private static class Mapping
 	{
 		private final Map<ImageKey, ImageReference> imageMapping = new HashMap<>();
 		private final Map<FileKey, ImageReference> imageFileMapping = new HashMap<>();
 		private final Map<FileKey, Map<String, ImageReference>> zipMapping = new HashMap<>();
+		// Reverse index: keys (ImageKey, FileKey or ZipEntryKey) of each image not deleted, by image id
+		private final Map<Long, Set<Object>> keysByImageId = new HashMap<>();
+		// Set once the gallery is loaded (see Downloader.registerMapping())
+		private Downloader owner = null;
+		
+		// Entries read with the gallery but not parsed yet, as compact JSON (see MappingTypeAdapter)
+		private volatile String unparsedEntries = null;
+		// Sorted ids of the images referenced by the unparsed entries
+		private volatile long[] unparsedImageIds = null;
+		private Gallery gallery = null;
+		
+		/*
+		 * Parse the entries on first use: most downloaders are never used
+		 * during a session
+		 */
+		public void load()
+		{
+			if (unparsedEntries == null)
+				return;
+			
+			synchronized (this)
+			{
+				if (unparsedEntries == null)
+					return;
+				
+				try (JsonReader in = new JsonReader(new StringReader(unparsedEntries)))
+				{
+					MappingTypeAdapter.readEntries(in, this, gallery);
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+				rebuildReverseIndex();
+				unparsedEntries = null;
+				unparsedImageIds = null;
+				gallery = null;
+			}
+		}
+		
+		/*
+		 * Register the images referenced in the index of the gallery, the
+		 * entries aren't parsed if not done yet
+		 */
+		public void register(Downloader owner)
+		{
+			long[] imageIds;
+			synchronized (this)
+			{
+				this.owner = owner;
+				imageIds = unparsedImageIds;
+				if (imageIds == null)
+				{
+					rebuildReverseIndex();
+					synchronized (keysByImageId)
+					{
+						imageIds = keysByImageId.keySet().stream().mapToLong(Long::longValue).toArray();
+					}
+				}
+			}
+			
+			for (long imageId : imageIds)
+				owner.gallery.downloaderReferences(imageId, owner);
+		}
 		
 		public boolean contains(ImageKey imageKey)
 		{
+			load();
 			synchronized (imageMapping)
 			{
 				return imageMapping.containsKey(imageKey);
@@ -354,6 +438,7 @@ public abstract class Downloader
 		
 		public boolean contains(FileKey fileKey)
 		{
+			load();
 			synchronized (imageFileMapping)
 			{
 				if(imageFileMapping.containsKey(fileKey))
@@ -367,6 +452,7 @@ public abstract class Downloader
 		
 		public ImageReference get(ImageKey imageKey)
 		{
+			load();
 			synchronized (imageMapping)
 			{
 				return imageMapping.get(imageKey);
@@ -375,14 +461,19 @@ public abstract class Downloader
 		
 		public void put(ImageKey imageKey, Image image)
 		{
+			load();
+			ImageReference previous;
 			synchronized (imageMapping)
 			{
-				imageMapping.put(imageKey, new ImageReference(image));
+				previous = imageMapping.put(imageKey, new ImageReference(image));
 			}
+			unreferenced(previous, imageKey);
+			referenced(image.getId(), imageKey);
 		}
 		
 		public Optional<ImageReference> getFileAsImageMapping(FileKey fileKey)
 		{
+			load();
 			synchronized (imageFileMapping)
 			{
 				return imageFileMapping.containsKey(fileKey)
@@ -393,91 +484,189 @@ public abstract class Downloader
 		
 		public void put(FileKey fileKey, Image image)
 		{
+			load();
+			ImageReference previous;
 			synchronized (imageFileMapping)
 			{
-				imageFileMapping.put(fileKey, new ImageReference(image));
-			}
-			synchronized (zipMapping)
-			{
-				zipMapping.remove(fileKey);
+				previous = imageFileMapping.put(fileKey, new ImageReference(image));
 			}
+			unreferenced(previous, fileKey);
+			referenced(image.getId(), fileKey);
+			remove(fileKey);
 		}
 		
 		public void putEmptyMapping(FileKey fileKey)
 		{
+			load();
+			Map<String, ImageReference> previousZipEntries;
 			synchronized (zipMapping)
 			{
-				zipMapping.put(fileKey, new TreeMap<>(Utils.NATURAL_ORDER));
+				previousZipEntries = zipMapping.put(fileKey, new TreeMap<>(Utils.NATURAL_ORDER));
 			}
+			unreferenced(fileKey, previousZipEntries);
+			ImageReference previous;
 			synchronized (imageFileMapping)
 			{
-				imageFileMapping.remove(fileKey);
+				previous = imageFileMapping.remove(fileKey);
 			}
+			unreferenced(previous, fileKey);
 		}
 		
 		public void put(FileKey fileKey, String pathInZip, Image image)
 		{
+			load();
+			ImageReference previous;
 			synchronized (zipMapping)
 			{
-				zipMapping.computeIfAbsent(fileKey, k -> new TreeMap<>(Utils.NATURAL_ORDER))
-				          .put(pathInZip, new ImageReference(image));
+				previous = zipMapping.computeIfAbsent(fileKey, k -> new TreeMap<>(Utils.NATURAL_ORDER))
+				                     .put(pathInZip, new ImageReference(image));
 			}
+			ZipEntryKey zipEntryKey = new ZipEntryKey(fileKey, pathInZip);
+			unreferenced(previous, zipEntryKey);
+			referenced(image.getId(), zipEntryKey);
 			synchronized (imageFileMapping)
 			{
-				imageFileMapping.remove(fileKey);
+				previous = imageFileMapping.remove(fileKey);
 			}
+			unreferenced(previous, fileKey);
 		}
 		
-		public boolean isHandling(Image image)
+		/*
+		 * Forget the entries of a zip file
+		 */
+		public void remove(FileKey fileKey)
 		{
-			synchronized (imageMapping)
-			{
-				for (ImageReference ref : imageMapping.values())
-					if (ref != null && ref.getImage().equals(image))
-						return true;
-			}
-			synchronized (imageFileMapping)
+			load();
+			Map<String, ImageReference> previousZipEntries;
+			synchronized (zipMapping)
 			{
-				for (ImageReference ref : imageFileMapping.values())
-					if (ref != null && ref.getImage().equals(image))
-						return true;
+				previousZipEntries = zipMapping.remove(fileKey);
 			}
-			synchronized (zipMapping)
+			unreferenced(fileKey, previousZipEntries);
+		}
+		
+		public boolean isHandling(Image image)
+		{
+			long[] imageIds = unparsedImageIds;
+			if (imageIds != null)
+				return Arrays.binarySearch(imageIds, image.getId()) >= 0;
+			
+			synchronized (keysByImageId)
 			{
-				for (Map<String, ImageReference> zipEntry : zipMapping.values())
-					if (zipEntry != null)
-						for (ImageReference ref : zipEntry.values())
-							if (ref != null && ref.getImage().equals(image))
-								return true;
+				return keysByImageId.containsKey(image.getId());
 			}
-			return false;
 		}
 		
-		public void markDeleted(Collection<Image> images)
+		public boolean markDeleted(Collection<Image> images)
 		{
-			Set<Long> imageIds = images.stream().map(Image::getId).collect(Collectors.toSet());
+			long[] imageIds = unparsedImageIds;
+			if (imageIds != null && images.stream().noneMatch(image -> Arrays.binarySearch(imageIds, image.getId()) >= 0))
+				return false;
 			
-			synchronized (imageMapping)
+			load();
+			boolean changed = false;
+			for (Image image : images)
 			{
-				for (Entry<ImageKey, ImageReference> entry : imageMapping.entrySet())
-					if (entry.getValue() != null && imageIds.contains(entry.getValue().getImageId()))
-						entry.setValue(null);
+				Set<Object> keys;
+				synchronized (keysByImageId)
+				{
+					keys = keysByImageId.remove(image.getId());
+				}
+				if (keys == null)
+					continue;
+				
+				for (Object key : keys)
+				{
+					if (key instanceof ImageKey imageKey)
+					{
+						synchronized (imageMapping)
+						{
+							imageMapping.replace(imageKey, null);
+						}
+					}
+					else if (key instanceof FileKey fileKey)
+					{
+						synchronized (imageFileMapping)
+						{
+							imageFileMapping.replace(fileKey, null);
+						}
+					}
+					else if (key instanceof ZipEntryKey zipEntryKey)
+					{
+						synchronized (zipMapping)
+						{
+							Map<String, ImageReference> zipEntries = zipMapping.get(zipEntryKey.fileKey());
+							if (zipEntries != null)
+								zipEntries.replace(zipEntryKey.pathInZip(), null);
+						}
+					}
+					changed = true;
+				}
 			}
-			synchronized (imageFileMapping)
+			return changed;
+		}
+		
+		private void referenced(long imageId, Object key)
+		{
+			synchronized (keysByImageId)
 			{
-				for (Entry<FileKey, ImageReference> entry : imageFileMapping.entrySet())
-					if (entry.getValue() != null && imageIds.contains(entry.getValue().getImageId()))
-						entry.setValue(null);
+				keysByImageId.computeIfAbsent(imageId, id -> new HashSet<>(2)).add(key);
+				if (owner != null)
+					owner.gallery.downloaderReferences(imageId, owner);
 			}
-			synchronized (zipMapping)
+		}
+		
+		private void unreferenced(ImageReference ref, Object key)
+		{
+			if (ref == null)
+				return;
+			
+			synchronized (keysByImageId)
 			{
-				for (Entry<FileKey, Map<String, ImageReference>> entry : zipMapping.entrySet())
-					if (entry.getValue() != null)
-						for (Entry<String, ImageReference> zipEntry : entry.getValue().entrySet())
-							if (zipEntry.getValue() != null && imageIds.contains(zipEntry.getValue().getImageId()))
-								zipEntry.setValue(null);
+				Set<Object> keys = keysByImageId.get(ref.getImageId());
+				if (keys != null && keys.remove(key) && keys.isEmpty())
+					keysByImageId.remove(ref.getImageId());
 			}
 		}
+		
+		private void unreferenced(FileKey fileKey, Map<String, ImageReference> zipEntries)
+		{
+			if (zipEntries != null)
+				for (Entry<String, ImageReference> zipEntry : zipEntries.entrySet())
+					unreferenced(zipEntry.getValue(), new ZipEntryKey(fileKey, zipEntry.getKey()));
+		}
+		
+		private void rebuildReverseIndex()
+		{
+			synchronized (imageMapping) {
+			synchronized (imageFileMapping) {
+			synchronized (zipMapping) {
+			synchronized (keysByImageId) {
+				
+				keysByImageId.clear();
+				imageMapping.forEach((key, ref) ->
+				{
+					if (ref != null)
+						keysByImageId.computeIfAbsent(ref.getImageId(), id -> new HashSet<>(2)).add(key);
+				});
+				imageFileMapping.forEach((key, ref) ->
+				{
+					if (ref != null)
+						keysByImageId.computeIfAbsent(ref.getImageId(), id -> new HashSet<>(2)).add(key);
+				});
+				zipMapping.forEach((fileKey, zipEntries) ->
+				{
+					if (zipEntries != null)
+						zipEntries.forEach((pathInZip, ref) ->
+						{
+							if (ref != null)
+								keysByImageId.computeIfAbsent(ref.getImageId(), id -> new HashSet<>(2))
+								             .add(new ZipEntryKey(fileKey, pathInZip));
+						});
+				});
+			
+			}}}}// End of synchronized blocks
+		}
 	}
 
 	@Getter
@@ -647,6 +836,8 @@ public abstract class Downloader
 		}
 		
 		private final List<Image> imagesAdded = new ArrayList<>();
+		// Publish the changes of each post at once
+		private final ChangeBatch galleryChanges = gallery.newChangeBatch();
 		private final Map<String, Object> extraInfo = Collections.synchronizedMap(new HashMap<>());
 		
 		private final Properties secrets;
@@ -862,6 +1053,11 @@ public abstract class Downloader
 		{
 			postDownloadResult.put(post, error != null ? PostDownloadResult.ERROR : PostDownloadResult.SUCCESS);
 			downloadsProgressView.endPost(id, post.id(), error);
+			try (ChangeBatch.Scope scope = galleryChanges.bind())
+			{
+				gallery.downloaderUpdated(Downloader.this);
+			}
+			galleryChanges.flush();
 		}
 		
 		private void onSessionEnd()
@@ -885,6 +1081,12 @@ public abstract class Downloader
 				                                              .max(Comparator.naturalOrder())
 				                                              .orElse(mostRecentPostCheckedDate);
 			}
+			
+			try (ChangeBatch.Scope scope = galleryChanges.bind())
+			{
+				gallery.downloaderUpdated(Downloader.this);
+			}
+			galleryChanges.close();
 		}
 	}
 	
@@ -1276,7 +1478,7 @@ public abstract class Downloader
 		catch (Exception e)
 		{
 			LOGGER.error("Error when unzipping " + filePath, e);
-			mapping.zipMapping.remove(new FileKey(post.id, file.id));
+			mapping.remove(new FileKey(post.id, file.id));
 		}
 	}
 	
@@ -1425,23 +1627,26 @@ public abstract class Downloader
 	
 	private Image doSaveInGallery(DownloadSession session, Collection<String> tags, Path path)
 	{
-		Image image = gallery.getImage(path);
-		if (image.isNotSaved())
+		try (ChangeBatch.Scope scope = session.galleryChanges.bind())
 		{
-			addArtistTag(image);
-			addTags(image, tags);
+			Image image = gallery.getImage(path);
+			if (image.isNotSaved())
+			{
+				addArtistTag(image);
+				addTags(image, tags);
+				
+				gallery.saveImage(image);
+				session.imagesAdded.add(image);
+			}
+			else if (session.has(DownloadOption.UPDATE_IMAGES_ALREADY_DOWNLOADED))
+			{
+				image.getTags().forEach(image::removeTag);
+				addArtistTag(image);
+				addTags(image, tags);
+			}
 			
-			gallery.saveImage(image);
-			session.imagesAdded.add(image);
-		}
-		else if (session.has(DownloadOption.UPDATE_IMAGES_ALREADY_DOWNLOADED))
-		{
-			image.getTags().forEach(image::removeTag);
-			addArtistTag(image);
-			addTags(image, tags);
+			return image;
 		}
-		
-		return image;
 	}
 	
 	private void addTags(Image image, Collection<String> tags)
@@ -1674,12 +1879,29 @@ public abstract class Downloader
 	{
 		static private final String DELETED_FILE = "deleted";
 		
+		@Inject
+		private transient Gallery gallery;
+		
+		// Inject once for all the references read, not for each of them
+		public MappingTypeAdapter()
+		{
+			Injector.init(this);
+		}
+		
 		@Override
 		public void write(JsonWriter out, Mapping mapping) throws IOException
 		{
 			if (mapping == null)
 				mapping = new Mapping();
 			
+			// Not used since read: written back as is, without parsing it
+			String unparsedEntries = mapping.unparsedEntries;
+			if (unparsedEntries != null)
+			{
+				copy(new JsonReader(new StringReader(unparsedEntries)), out, imageId -> {});
+				return;
+			}
+			
 			synchronized (mapping.imageMapping) {
 			synchronized (mapping.imageFileMapping) {
 			synchronized (mapping.zipMapping) {
@@ -1818,6 +2040,10 @@ public abstract class Downloader
 			out.endArray();
 		}
 		
+		/*
+		 * Only keep the entries as compact JSON, parsed on first use of the
+		 * mapping (see Mapping.load())
+		 */
 		@Override
 		public Mapping read(JsonReader in) throws IOException
 		{
@@ -1830,6 +2056,19 @@ public abstract class Downloader
 				return mapping;
 			}
 			
+			// The only numbers are the ids of the images referenced
+			StringWriter entries = new StringWriter();
+			LongStream.Builder imageIds = LongStream.builder();
+			copy(in, new JsonWriter(entries), imageIds);
+			mapping.unparsedEntries = entries.toString();
+			mapping.unparsedImageIds = imageIds.build().sorted().distinct().toArray();
+			mapping.gallery = gallery;
+			
+			return mapping;
+		}
+		
+		static void readEntries(JsonReader in, Mapping mapping, Gallery gallery) throws IOException
+		{
 			in.beginArray();
 			
 			while (in.peek() != JsonToken.END_ARRAY)
@@ -1870,7 +2109,7 @@ public abstract class Downloader
 						case "imageRef" ->
 						{
 							if (in.peek() == JsonToken.NUMBER)
-								ref = new ImageReference(in.nextLong());
+								ref = new ImageReference(gallery, in.nextLong());
 							else
 								in.skipValue();
 						}
@@ -1889,7 +2128,7 @@ public abstract class Downloader
 									String pathInZip = in.nextName();
 									ImageReference imageRef = null;
 									if (in.peek() == JsonToken.NUMBER)
-										imageRef = new ImageReference(in.nextLong());
+										imageRef = new ImageReference(gallery, in.nextLong());
 									else
 										in.skipValue();
 									
@@ -1924,9 +2163,79 @@ public abstract class Downloader
 			}
 			
 			in.endArray();
-			
-			return mapping;
 		}
+		
+		/*
+		 * Copy a JSON value token by token, numbers are given to numberConsumer
+		 */
+		private static void copy(JsonReader in, JsonWriter out, LongConsumer numberConsumer) throws IOException
+		{
+			int depth = 0;
+			do
+			{
+				switch (in.peek())
+				{
+					case BEGIN_ARRAY ->
+					{
+						in.beginArray();
+						out.beginArray();
+						depth++;
+					}
+					case END_ARRAY ->
+					{
+						in.endArray();
+						out.endArray();
+						depth--;
+					}
+					case BEGIN_OBJECT ->
+					{
+						in.beginObject();
+						out.beginObject();
+						depth++;
+					}
+					case END_OBJECT ->
+					{
+						in.endObject();
+						out.endObject();
+						depth--;
+					}
+					case NAME -> out.name(in.nextName());
+					case STRING -> out.value(in.nextString());
+					case NUMBER ->
+					{
+						BigDecimal number = new BigDecimal(in.nextString());
+						numberConsumer.accept(number.longValue());
+						out.value(number);
+					}
+					case BOOLEAN -> out.value(in.nextBoolean());
+					case NULL ->
+					{
+						in.nextNull();
+						out.nullValue();
+					}
+					default -> throw new IllegalStateException("Unexpected token: " + in.peek());
+				}
+			}
+			while (depth > 0);
+		}
+	}
+	
+	/**
+	 * Called by the gallery once loaded, or once the image ids changed:
+	 * register the images referenced by the mapping in the index of the
+	 * gallery (see {@link Gallery#downloaderReferences(long, Downloader)})
+	 */
+	public final void registerMapping()
+	{
+		mapping.register(this);
+	}
+	
+	/**
+	 * Parse the mapping now rather than on first use
+	 */
+	public final void loadMapping()
+	{
+		mapping.load();
 	}
 	
 	public final boolean isHandling(Image image)
@@ -1934,9 +2243,12 @@ public abstract class Downloader
 		return mapping.isHandling(image);
 	}
 	
-	public final void markDeleted(Collection<Image> images)
+	/**
+	 * @return true if any of the images was downloaded by this downloader
+	 */
+	public final boolean markDeleted(Collection<Image> images)
 	{
-		mapping.markDeleted(images);
+		return mapping.markDeleted(images);
 	}
 
 	public void setCreatorId(String creatorId)
@@ -1,6 +1,8 @@
 package nigloo.gallerymanager.filter;
 
+import nigloo.gallerymanager.model.CompressedBitmap;
 import nigloo.gallerymanager.model.Image;
+import nigloo.gallerymanager.model.ImageBitmapIndex;
 
 import java.text.ParseException;
 import java.util.function.Predicate;
@@ -13,6 +15,26 @@ public interface ImageFilter extends Predicate<Image> {
     String META_TAG_TYPE_PATH = "path";
 
 
+    /**
+     * Evaluate this filter on every image of the index at once.<br/>
+     * By default, test each image one by one (in parallel, see
+     * {@link ImageBitmapIndex#imagesMatching}). Filters backed by the index
+     * override it with bitmap operations.
+     *
+     * @return the ordinals of the matching images. MUST NOT be modified as it may belong to the index
+     */
+    default CompressedBitmap evaluate(ImageBitmapIndex index) {
+        return index.imagesMatching(index.allImages(), this);
+    }
+
+    /**
+     * Rewrite this filter to evaluate it efficiently on the index, see {@link ImageFilterPlan}.
+     * The plan is only valid during the query given the index.
+     */
+    default ImageFilterPlan plan(ImageBitmapIndex index) {
+        return ImageFilterPlan.of(this, index);
+    }
+
     static ImageFilter parse(String filterExpression) throws ParseException {
         ImageFilterTokenizer tokenizer = new ImageFilterTokenizer(filterExpression);
         return ImageFilterGrammar.COMPILED_GRAMMAR.compile(tokenizer);
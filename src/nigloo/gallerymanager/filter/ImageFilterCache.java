@@ -0,0 +1,132 @@
+package nigloo.gallerymanager.filter;
+
+import nigloo.gallerymanager.model.CompressedBitmap;
+import nigloo.gallerymanager.model.Gallery;
+import nigloo.gallerymanager.model.Image;
+import nigloo.gallerymanager.model.ImageBitmapIndex;
+
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * LRU caches of the filters parsed, by expression, and of the images found by
+ * the queries, by key (ex: the filter and the selection).<br/>
+ * A result is only reused while the gallery isn't modified (see
+ * {@link Gallery#getModificationCount()}), otherwise the query is evaluated
+ * again. The plans aren't cached: they are only valid during a query.<br/>
+ * Thread safe.
+ */
+public final class ImageFilterCache {
+
+    private final int maxResults;
+
+    // Guarded by this
+    private final Map<String, ImageFilter> filters;
+    private final Map<Object, Result> results;
+    private long filterHits = 0;
+    private long filterMisses = 0;
+    private long resultHits = 0;
+    private long resultMisses = 0;
+
+    public ImageFilterCache(int maxFilters, int maxResults) {
+        this.maxResults = maxResults;
+        this.filters = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ImageFilter> eldest) {
+                return size() > maxFilters;
+            }
+        };
+        this.results = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Same as {@link ImageFilter#parse(String)}, the expressions only
+     * differing by their blanks share the same filter
+     */
+    public ImageFilter parse(String filterExpression) throws ParseException {
+        String key = filterExpression.strip().replaceAll("\\s+", " ");
+        synchronized (this) {
+            ImageFilter filter = filters.get(key);
+            if (filter != null) {
+                filterHits++;
+                return filter;
+            }
+            filterMisses++;
+        }
+
+        ImageFilter filter = ImageFilter.parse(key);
+        synchronized (this) {
+            filters.put(key, filter);
+        }
+        return filter;
+    }
+
+    /**
+     * Same as {@link Gallery#findImages(Function)}, the result is reused
+     * while the gallery isn't modified
+     *
+     * @param key identify the query, with equals and hashCode
+     */
+    public List<Image> findImages(Gallery gallery, Object key, Function<? super ImageBitmapIndex, CompressedBitmap> query) {
+        Result[] computed = { null };
+        List<Image> images = gallery.findImages(index -> {
+            // No image can change while the query runs, only the tags
+            long modificationCount = gallery.getModificationCount();
+            synchronized (this) {
+                Result cached = results.get(key);
+                if (cached != null && cached.modificationCount() == modificationCount) {
+                    resultHits++;
+                    return cached.images();
+                }
+                resultMisses++;
+            }
+
+            CompressedBitmap result = query.apply(index);
+            // The result may belong to the index, which updates it in place
+            CompressedBitmap copy = result.copy();
+            computed[0] = new Result(modificationCount, copy, copy.sizeInBytes());
+            return result;
+        });
+
+        if (computed[0] != null) {
+            synchronized (this) {
+                results.put(key, computed[0]);
+                // Evict the outdated results first, then the least recently used
+                long modificationCount = gallery.getModificationCount();
+                results.values().removeIf(result -> result.modificationCount() != modificationCount);
+                while (results.size() > maxResults)
+                    results.remove(results.keySet().iterator().next());
+            }
+        }
+        return images;
+    }
+
+    /**
+     * @return the hit rates of the caches and the memory used by the results
+     */
+    public synchronized String getStatistics() {
+        long resultsSize = results.values().stream().mapToLong(Result::sizeInBytes).sum();
+        return String.format(Locale.ROOT,
+                             "filters: %d cached, %s hits ; results: %d cached, %s hits, %.1f KB",
+                             filters.size(),
+                             hitRate(filterHits, filterMisses),
+                             results.size(),
+                             hitRate(resultHits, resultMisses),
+                             resultsSize / 1024d);
+    }
+
+    private static String hitRate(long hits, long misses) {
+        return hits + misses == 0 ? "-" : String.format(Locale.ROOT, "%.0f%%", 100d * hits / (hits + misses));
+    }
+
+    /*
+     * images is a copy owned by the cache, it MUST NOT be modified: it may be
+     * returned to many queries
+     */
+    private record Result(long modificationCount, CompressedBitmap images, long sizeInBytes) {
+    }
+}
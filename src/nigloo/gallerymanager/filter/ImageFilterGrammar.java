@@ -1,13 +1,14 @@
 package nigloo.gallerymanager.filter;
 
+import nigloo.gallerymanager.model.CompressedBitmap;
 import nigloo.gallerymanager.model.Image;
+import nigloo.gallerymanager.model.ImageBitmapIndex;
 import nigloo.gallerymanager.model.Tag;
-import nigloo.tool.Utils;
+import nigloo.gallerymanager.model.TagPattern;
 import nigloo.tool.parser.grammar.*;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -78,7 +79,7 @@ class ImageFilterGrammar {
                         String metaTagType = value.substring(0, posSep);
                         if (ImageFilter.META_TAG_TYPE_PATH.equalsIgnoreCase(metaTagType)) {
                             String path = value.substring(posSep + 1).replace(String.valueOf(ImageFilter.META_TAG_QUOTE), "");
-                            return new PathFilter(PathFilter.normalizePath(path));
+                            return new PathFilter(Image.normalizePath(path));
                         }
                         else {
                             throw new IllegalArgumentException("Invalid metatag: "+metaTagType);
@@ -86,7 +87,10 @@ class ImageFilterGrammar {
                     }
                     else {
                         String normalisedTag = Tag.normalize(value);
-                        return new TagFilter(normalisedTag);
+                        if (TagPattern.isPattern(normalisedTag))
+                            return new TagPatternFilter(new TagPattern(normalisedTag));
+                        // An existing tag with a * is written with \*
+                        return new TagFilter(TagPattern.unescape(normalisedTag));
                     }
                 }),
                 new GrammarSequence<>(List.of(TokenType.NEGATE, PRIMARY_EXPR), evaluatedTokens -> {
@@ -118,42 +122,75 @@ class ImageFilterGrammar {
         };
     }
 
-    private record TagFilter(String normalizedTag) implements ImageFilter {
+    record TagFilter(String normalizedTag) implements ImageFilter {
         @Override
         public boolean test(Image image) {
-            return image.getImplicitTags().contains(normalizedTag);
+            return image.hasImplicitTag(normalizedTag);
+        }
+
+        @Override
+        public CompressedBitmap evaluate(ImageBitmapIndex index) {
+            return index.imagesWithTag(normalizedTag);
         }
     }
 
-    private record PathFilter(String normalizedPath) implements ImageFilter {
+    record TagPatternFilter(TagPattern pattern) implements ImageFilter {
         @Override
         public boolean test(Image image) {
-            return normalizePath(image.getPath().toString()).contains(normalizedPath);
+            return image.getImplicitTags().stream().anyMatch(pattern::matches);
         }
 
-        static String normalizePath(String path) {
-            return Utils.stripAccents(path).toLowerCase(Locale.ROOT);
+        @Override
+        public CompressedBitmap evaluate(ImageBitmapIndex index) {
+            return index.imagesWithTagMatching(pattern);
         }
     }
 
-    private record NegateFilter(ImageFilter filter) implements ImageFilter {
+    record PathFilter(String normalizedPath) implements ImageFilter {
+        @Override
+        public boolean test(Image image) {
+            return image.getNormalizedPath().contains(normalizedPath);
+        }
+
+        @Override
+        public CompressedBitmap evaluate(ImageBitmapIndex index) {
+            return index.imagesWithPathContaining(normalizedPath);
+        }
+    }
+
+    record NegateFilter(ImageFilter filter) implements ImageFilter {
         @Override
         public boolean test(Image image) {
             return !filter.test(image);
         }
+
+        @Override
+        public CompressedBitmap evaluate(ImageBitmapIndex index) {
+            return CompressedBitmap.andNot(index.allImages(), filter.evaluate(index));
+        }
     }
 
-    private record AndFilter(ImageFilter leftFilter, ImageFilter rightFilter) implements ImageFilter {
+    record AndFilter(ImageFilter leftFilter, ImageFilter rightFilter) implements ImageFilter {
         @Override
         public boolean test(Image image) {
             return leftFilter.test(image) && rightFilter.test(image);
         }
+
+        @Override
+        public CompressedBitmap evaluate(ImageBitmapIndex index) {
+            return CompressedBitmap.and(leftFilter.evaluate(index), rightFilter.evaluate(index));
+        }
     }
 
-    private record OrFilter(ImageFilter leftFilter, ImageFilter rightFilter) implements ImageFilter {
+    record OrFilter(ImageFilter leftFilter, ImageFilter rightFilter) implements ImageFilter {
         @Override
         public boolean test(Image image) {
             return leftFilter.test(image) || rightFilter.test(image);
         }
+
+        @Override
+        public CompressedBitmap evaluate(ImageBitmapIndex index) {
+            return CompressedBitmap.or(leftFilter.evaluate(index), rightFilter.evaluate(index));
+        }
     }
 }
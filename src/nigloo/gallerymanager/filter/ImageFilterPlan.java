@@ -0,0 +1,449 @@
+package nigloo.gallerymanager.filter;
+
+import nigloo.gallerymanager.model.CompressedBitmap;
+import nigloo.gallerymanager.model.Image;
+import nigloo.gallerymanager.model.ImageBitmapIndex;
+import nigloo.gallerymanager.model.TagPattern;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link ImageFilter} rewritten for a given index, see {@link ImageFilter#plan(ImageBitmapIndex)}.<br/>
+ * The AND and OR chains are flattened, the double negations and the duplicate
+ * terms removed, and the negations of a chain grouped in a single one (-a -b
+ * becomes -(a | b)). The terms are then ordered from their estimated number
+ * of matches, computed from the tag bitmaps and the path trigrams of the
+ * index: the most selective first in a conjunction and the most likely to
+ * match first in a disjunction. The terms whose images must be tested one by
+ * one come after the tags: the paths, narrowed by their trigrams, then the
+ * terms not backed by the index. Each term is only evaluated on the images
+ * not decided yet by the previous ones.<br/>
+ * Only valid during the query given the index it was planned for, and not
+ * thread safe: {@link #explain()} reports the actual number of matches of the
+ * last evaluation.
+ */
+public final class ImageFilterPlan implements ImageFilter {
+
+    // Fraction of the images assumed to match a term not backed by the index
+    private static final double UNKNOWN_SELECTIVITY = 0.5;
+
+    private final Node root;
+    private final int nbImages;
+
+    private ImageFilterPlan(Node root, int nbImages) {
+        this.root = root;
+        this.nbImages = nbImages;
+    }
+
+    static ImageFilterPlan of(ImageFilter filter, ImageBitmapIndex index) {
+        int nbImages = index.allImages().cardinality();
+        Node root = normalize(filter, index);
+        root.estimate(nbImages);
+        return new ImageFilterPlan(root, nbImages);
+    }
+
+    @Override
+    public boolean test(Image image) {
+        return root.test(image);
+    }
+
+    @Override
+    public CompressedBitmap evaluate(ImageBitmapIndex index) {
+        return evaluate(index, index.allImages());
+    }
+
+    /**
+     * Evaluate this filter on some images of the index only
+     *
+     * @param candidates the ordinals of the images to test
+     * @return the ordinals of the matching candidates, a new bitmap (never candidates itself)
+     */
+    public CompressedBitmap evaluate(ImageBitmapIndex index, CompressedBitmap candidates) {
+        root.reset();
+        CompressedBitmap result = root.evaluate(index, candidates);
+        // An AND can keep all the candidates as is, which may belong to the index
+        return result == candidates ? candidates.copy() : result;
+    }
+
+    @Override
+    public ImageFilterPlan plan(ImageBitmapIndex index) {
+        return this;
+    }
+
+    /**
+     * @return the plan as an indented tree with, for each term, the estimated
+     *         number of matching images and the actual number of matches among
+     *         the images it was evaluated on ("?" if skipped)
+     */
+    public String explain() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Plan over ").append(nbImages).append(" images");
+        root.explain(sb, 1);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    private static Node normalize(ImageFilter filter, ImageBitmapIndex index) {
+        if (filter instanceof ImageFilterGrammar.NegateFilter negate) {
+            Node child = normalize(negate.filter(), index);
+            return child instanceof Not not ? not.child : new Not(child);
+        }
+        if (filter instanceof ImageFilterGrammar.AndFilter and) {
+            List<Node> children = new ArrayList<>();
+            flatten(and.leftFilter(), index, And.class, children);
+            flatten(and.rightFilter(), index, And.class, children);
+            return junction(true, children);
+        }
+        if (filter instanceof ImageFilterGrammar.OrFilter or) {
+            List<Node> children = new ArrayList<>();
+            flatten(or.leftFilter(), index, Or.class, children);
+            flatten(or.rightFilter(), index, Or.class, children);
+            return junction(false, children);
+        }
+        if (filter instanceof ImageFilterGrammar.TagFilter tag) {
+            return new Leaf(filter, "TAG", TagPattern.escape(tag.normalizedTag()), tag.evaluate(index), true);
+        }
+        if (filter instanceof ImageFilterGrammar.TagPatternFilter tags) {
+            return new Leaf(filter, "TAGS", tags.pattern().toString(), tags.evaluate(index), true);
+        }
+        if (filter instanceof ImageFilterGrammar.PathFilter path) {
+            return new Leaf(filter, "PATH", ImageFilter.META_TAG_TYPE_PATH + ImageFilter.META_TAG_SEPARATOR
+                    + ImageFilter.META_TAG_QUOTE + path.normalizedPath() + ImageFilter.META_TAG_QUOTE,
+                    index.imagesMaybeWithPathContaining(path.normalizedPath()), false);
+        }
+        return new Leaf(filter, "SCAN", String.valueOf(filter), null, false);
+    }
+
+    private static void flatten(ImageFilter filter, ImageBitmapIndex index, Class<? extends Junction> type, List<Node> children) {
+        Node node = normalize(filter, index);
+        if (type.isInstance(node))
+            children.addAll(((Junction) node).children);
+        else
+            children.add(node);
+    }
+
+    /*
+     * Remove the duplicates and group the negations:
+     * -a -b == -(a | b) and -a | -b == -(a b)
+     */
+    private static Node junction(boolean isAnd, List<Node> children) {
+        Map<String, Node> distinct = new LinkedHashMap<>();
+        for (Node child : children)
+            distinct.putIfAbsent(child.toString(), child);
+
+        List<Node> terms = new ArrayList<>();
+        List<Node> negated = new ArrayList<>();
+        for (Node child : distinct.values()) {
+            if (child instanceof Not not)
+                negated.add(not.child);
+            else
+                terms.add(child);
+        }
+
+        if (negated.size() == 1) {
+            terms.add(new Not(negated.get(0)));
+        } else if (negated.size() > 1) {
+            List<Node> grouped = new ArrayList<>();
+            for (Node child : negated) {
+                if (isAnd ? child instanceof Or : child instanceof And)
+                    grouped.addAll(((Junction) child).children);
+                else
+                    grouped.add(child);
+            }
+            terms.add(new Not(isAnd ? new Or(grouped) : new And(grouped)));
+        }
+
+        if (terms.size() == 1)
+            return terms.get(0);
+        return isAnd ? new And(terms) : new Or(terms);
+    }
+
+    private static abstract class Node {
+        double estimate = 0;
+        int actual = -1;
+
+        abstract boolean test(Image image);
+
+        abstract CompressedBitmap evaluate(ImageBitmapIndex index, CompressedBitmap candidates);
+
+        /*
+         * Compute the estimated number of matching images and order the terms
+         */
+        abstract void estimate(int nbImages);
+
+        /*
+         * 0: read from the index, 1: tested one by one among candidates
+         * from the index, 2: tested one by one
+         */
+        abstract int cost();
+
+        abstract String label();
+
+        void reset() {
+            actual = -1;
+        }
+
+        void explain(StringBuilder sb, int depth) {
+            sb.append('\n').append("  ".repeat(depth)).append(label());
+            sb.append("  (est=").append(Math.round(estimate));
+            sb.append(", actual=").append(actual < 0 ? "?" : String.valueOf(actual)).append(')');
+        }
+    }
+
+    private static final class Leaf extends Node {
+        final ImageFilter filter;
+        final String type;
+        final String expression;
+        // null if not backed by the index
+        final CompressedBitmap images;
+        // Whether images are the matching images, or only the ones which may match
+        final boolean exact;
+
+        Leaf(ImageFilter filter, String type, String expression, CompressedBitmap images, boolean exact) {
+            this.filter = filter;
+            this.type = type;
+            this.expression = expression;
+            this.images = images;
+            this.exact = exact;
+        }
+
+        @Override
+        boolean test(Image image) {
+            return filter.test(image);
+        }
+
+        @Override
+        CompressedBitmap evaluate(ImageBitmapIndex index, CompressedBitmap candidates) {
+            CompressedBitmap result = images != null ? CompressedBitmap.and(candidates, images) : candidates;
+            if (!exact && !result.isEmpty())
+                result = index.imagesMatching(result, filter);
+            actual = result.cardinality();
+            return result;
+        }
+
+        @Override
+        void estimate(int nbImages) {
+            estimate = images != null ? images.cardinality() : nbImages * UNKNOWN_SELECTIVITY;
+        }
+
+        @Override
+        int cost() {
+            return exact ? 0 : images != null ? 1 : 2;
+        }
+
+        @Override
+        String label() {
+            return type + " " + expression;
+        }
+
+        @Override
+        public String toString() {
+            return expression;
+        }
+    }
+
+    private static final class Not extends Node {
+        final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        boolean test(Image image) {
+            return !child.test(image);
+        }
+
+        @Override
+        CompressedBitmap evaluate(ImageBitmapIndex index, CompressedBitmap candidates) {
+            CompressedBitmap result = CompressedBitmap.andNot(candidates, child.evaluate(index, candidates));
+            actual = result.cardinality();
+            return result;
+        }
+
+        @Override
+        void estimate(int nbImages) {
+            child.estimate(nbImages);
+            estimate = nbImages - child.estimate;
+        }
+
+        @Override
+        int cost() {
+            return child.cost();
+        }
+
+        @Override
+        String label() {
+            return "NOT";
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            child.reset();
+        }
+
+        @Override
+        void explain(StringBuilder sb, int depth) {
+            super.explain(sb, depth);
+            child.explain(sb, depth + 1);
+        }
+
+        @Override
+        public String toString() {
+            return "-" + child;
+        }
+    }
+
+    private static abstract class Junction extends Node {
+        final List<Node> children;
+
+        Junction(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        int cost() {
+            return children.stream().mapToInt(Node::cost).max().orElse(0);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            children.forEach(Node::reset);
+        }
+
+        @Override
+        void explain(StringBuilder sb, int depth) {
+            super.explain(sb, depth);
+            for (Node child : children)
+                child.explain(sb, depth + 1);
+        }
+
+        /*
+         * The terms read from the index first, so that the ones testing the
+         * images one by one only test the images left undecided
+         */
+        void sortChildren(Comparator<Node> byEstimate) {
+            children.sort(Comparator.comparingInt(Node::cost).thenComparing(byEstimate));
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("(");
+            for (Node child : children) {
+                if (sb.length() > 1)
+                    sb.append(separator());
+                sb.append(child);
+            }
+            return sb.append(')').toString();
+        }
+
+        abstract String separator();
+    }
+
+    private static final class And extends Junction {
+        And(List<Node> children) {
+            super(children);
+        }
+
+        @Override
+        boolean test(Image image) {
+            for (Node child : children)
+                if (!child.test(image))
+                    return false;
+            return true;
+        }
+
+        @Override
+        CompressedBitmap evaluate(ImageBitmapIndex index, CompressedBitmap candidates) {
+            CompressedBitmap result = candidates;
+            for (Node child : children) {
+                if (result.isEmpty())
+                    break;
+                result = child.evaluate(index, result);
+            }
+            actual = result.cardinality();
+            return result;
+        }
+
+        @Override
+        void estimate(int nbImages) {
+            double selectivity = 1;
+            for (Node child : children) {
+                child.estimate(nbImages);
+                selectivity *= nbImages == 0 ? 0 : child.estimate / nbImages;
+            }
+            estimate = nbImages * selectivity;
+            sortChildren(Comparator.comparingDouble(child -> child.estimate));
+        }
+
+        @Override
+        String label() {
+            return "AND";
+        }
+
+        @Override
+        String separator() {
+            return " ";
+        }
+    }
+
+    private static final class Or extends Junction {
+        Or(List<Node> children) {
+            super(children);
+        }
+
+        @Override
+        boolean test(Image image) {
+            for (Node child : children)
+                if (child.test(image))
+                    return true;
+            return false;
+        }
+
+        @Override
+        CompressedBitmap evaluate(ImageBitmapIndex index, CompressedBitmap candidates) {
+            CompressedBitmap result = new CompressedBitmap();
+            CompressedBitmap remaining = candidates;
+            for (Node child : children) {
+                if (remaining.isEmpty())
+                    break;
+                CompressedBitmap matching = child.evaluate(index, remaining);
+                result = CompressedBitmap.or(result, matching);
+                remaining = CompressedBitmap.andNot(remaining, matching);
+            }
+            actual = result.cardinality();
+            return result;
+        }
+
+        @Override
+        void estimate(int nbImages) {
+            double nonSelectivity = 1;
+            for (Node child : children) {
+                child.estimate(nbImages);
+                nonSelectivity *= nbImages == 0 ? 1 : 1 - child.estimate / nbImages;
+            }
+            estimate = nbImages * (1 - nonSelectivity);
+            sortChildren(Comparator.comparingDouble(child -> -child.estimate));
+        }
+
+        @Override
+        String label() {
+            return "OR";
+        }
+
+        @Override
+        String separator() {
+            return " | ";
+        }
+    }
+}
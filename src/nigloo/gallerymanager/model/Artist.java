@@ -1,9 +1,15 @@
 package nigloo.gallerymanager.model;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
 import lombok.Getter;
 import lombok.Setter;
 import nigloo.gallerymanager.autodownloader.Downloader;
@@ -39,4 +45,80 @@ public class Artist
 	{
 		return Collections.unmodifiableList(autodownloaders);
 	}
+
+	/**
+	 * Streaming (de)serializer of the artists of a gallery, see
+	 * {@link Gallery.GalleryTypeAdapterFactory}. The downloaders are few and
+	 * delegated to gson.
+	 */
+	static final class ArtistTypeAdapter extends TypeAdapter<Artist>
+	{
+		private final Gallery gallery;
+		private final TypeAdapter<Downloader> downloaderAdapter;
+
+		ArtistTypeAdapter(Gallery gallery, TypeAdapter<Downloader> downloaderAdapter)
+		{
+			this.gallery = gallery;
+			this.downloaderAdapter = downloaderAdapter;
+		}
+
+		@Override
+		public void write(JsonWriter out, Artist artist) throws IOException
+		{
+			out.beginObject();
+			if (artist.tag != null)
+			{
+				out.name("tag");
+				out.value(artist.tag.getTagName());
+			}
+			if (artist.name != null)
+			{
+				out.name("name");
+				out.value(artist.name);
+			}
+			if (artist.autodownloaders != null)
+			{
+				out.name("autodownloaders");
+				out.beginArray();
+				for (Downloader downloader : artist.autodownloaders)
+					downloaderAdapter.write(out, downloader);
+				out.endArray();
+			}
+			out.endObject();
+		}
+
+		@Override
+		public Artist read(JsonReader in) throws IOException
+		{
+			Artist artist = new Artist();
+
+			in.beginObject();
+			while (in.hasNext())
+			{
+				String property = in.nextName();
+				if (in.peek() == JsonToken.NULL)
+				{
+					in.nextNull();
+					continue;
+				}
+
+				switch (property)
+				{
+					case "tag" -> artist.tag = new TagReference(gallery, in.nextString());
+					case "name" -> artist.name = in.nextString();
+					case "autodownloaders" ->
+					{
+						in.beginArray();
+						while (in.hasNext())
+							artist.autodownloaders.add(downloaderAdapter.read(in));
+						in.endArray();
+					}
+					default -> in.skipValue();
+				}
+			}
+			in.endObject();
+
+			return artist;
+		}
+	}
 }
@@ -0,0 +1,578 @@
+package nigloo.gallerymanager.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import javafx.scene.paint.Color;
+import nigloo.tool.gson.javafx.ColorTypeAdapter;
+
+/**
+ * Binary copy of the JSON snapshot of the gallery (the gallery file), faster
+ * to open. The JSON snapshot stays the reference: the binary one records the
+ * size and last modification time of the JSON snapshot it was generated from,
+ * and is ignored once they don't match anymore.
+ *
+ * <pre>
+ * header     magic, version, JSON snapshot identity, size of each section
+ * strings    offset of each string, then their UTF-8 bytes (paths and tag names)
+ * tags       fixed-width records: name, first parent, number of parents, color
+ * parents    name of the parents of each tag (string index)
+ * images     fixed-width records: id, path, first tag, number of tags
+ * imageTags  name of the tags of each image (string index)
+ * settings   the other properties of the gallery, as JSON
+ * </pre>
+ *
+ * The file is mapped in memory and read with absolute gets: the images are
+ * materialized straight from their records and each string is only decoded
+ * once, when first used.
+ */
+public final class BinaryGallerySnapshot
+{
+	private static final Logger LOGGER = LogManager.getLogger(BinaryGallerySnapshot.class);
+
+	private static final int MAGIC = 0x4E474253;// "NGBS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 56;
+	private static final int TAG_RECORD_SIZE = 48;
+	private static final int IMAGE_RECORD_SIZE = 24;
+	private static final int TAG_HAS_COLOR = 1;
+
+	private BinaryGallerySnapshot(){throw new UnsupportedOperationException();}
+
+	/**
+	 * Read the gallery from binaryFile, into the gallery of the injection
+	 * context like the JSON deserializer.
+	 *
+	 * @return null if binaryFile is missing or not generated from the current
+	 *         jsonFile: the JSON snapshot has to be read instead
+	 */
+	public static Gallery read(Path binaryFile, Path jsonFile, Gson gson) throws IOException
+	{
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(binaryFile, StandardOpenOption.READ))
+		{
+			if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+			{
+				LOGGER.info("Binary snapshot {} ignored: invalid size", binaryFile);
+				return null;
+			}
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		catch (NoSuchFileException e)
+		{
+			return null;
+		}
+
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+		{
+			LOGGER.info("Binary snapshot {} ignored: unknown format", binaryFile);
+			return null;
+		}
+		if (buffer.getLong(8) != Files.size(jsonFile)
+		        || buffer.getLong(16) != Files.getLastModifiedTime(jsonFile).toMillis())
+		{
+			LOGGER.info("Binary snapshot {} ignored: not generated from {}", binaryFile, jsonFile);
+			return null;
+		}
+
+		Layout layout = new Layout(buffer.getInt(24),
+		                           buffer.getInt(28),
+		                           buffer.getInt(32),
+		                           buffer.getInt(36),
+		                           buffer.getInt(40),
+		                           buffer.getInt(44),
+		                           buffer.getInt(48));
+		if (layout.size() != buffer.capacity())
+		{
+			LOGGER.info("Binary snapshot {} ignored: truncated", binaryFile);
+			return null;
+		}
+
+		return new SnapshotReader(buffer, layout).read(gson);
+	}
+
+	/**
+	 * Generate binaryFile from jsonFile, streamed without building the gallery
+	 *
+	 * @return the size of binaryFile
+	 */
+	public static long write(Path jsonFile, Path binaryFile, Gson gson) throws IOException
+	{
+		long jsonSize = Files.size(jsonFile);
+		long jsonLastModified = Files.getLastModifiedTime(jsonFile).toMillis();
+
+		SnapshotWriter writer = new SnapshotWriter(gson);
+		try (Reader reader = Files.newBufferedReader(jsonFile, StandardCharsets.UTF_8))
+		{
+			writer.readJson(new JsonReader(reader));
+		}
+
+		Path tmpFile = binaryFile.resolveSibling(binaryFile.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile), 1 << 16)))
+		{
+			writer.write(out, jsonSize, jsonLastModified);
+		}
+
+		int nbAttempt = 0;
+		while (true)
+		{
+			try {
+				// May fail while a previous version of the file is still mapped
+				Files.move(tmpFile, binaryFile, StandardCopyOption.REPLACE_EXISTING);
+				break;
+			}
+			catch (IOException e) {
+				if (nbAttempt++ >= 10)
+				{
+					Files.deleteIfExists(tmpFile);
+					throw e;
+				}
+
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		return Files.size(binaryFile);
+	}
+
+	/*
+	 * Offset of each section, in the order they're written
+	 */
+	private record Layout(int nbStrings,
+	                      int stringDataLength,
+	                      int nbTags,
+	                      int nbParents,
+	                      int nbImages,
+	                      int nbImageTags,
+	                      int settingsLength)
+	{
+		long stringOffsets()
+		{
+			return HEADER_SIZE;
+		}
+
+		long stringData()
+		{
+			return stringOffsets() + 4L * (nbStrings + 1);
+		}
+
+		long tags()
+		{
+			return align(stringData() + stringDataLength);
+		}
+
+		long parents()
+		{
+			return tags() + (long) TAG_RECORD_SIZE * nbTags;
+		}
+
+		long images()
+		{
+			return align(parents() + 4L * nbParents);
+		}
+
+		long imageTags()
+		{
+			return images() + (long) IMAGE_RECORD_SIZE * nbImages;
+		}
+
+		long settings()
+		{
+			return imageTags() + 4L * nbImageTags;
+		}
+
+		long size()
+		{
+			return settings() + settingsLength;
+		}
+
+		private static long align(long offset)
+		{
+			return (offset + 7) & ~7L;
+		}
+	}
+
+	private static final class SnapshotReader
+	{
+		private final ByteBuffer buffer;
+		private final Layout layout;
+		// Decoded on first use, by index
+		private final String[] strings;
+		private final int[] loadedTagIds;
+		private byte[] bytes = new byte[256];
+
+		SnapshotReader(ByteBuffer buffer, Layout layout)
+		{
+			this.buffer = buffer;
+			this.layout = layout;
+			this.strings = new String[layout.nbStrings()];
+			this.loadedTagIds = new int[layout.nbStrings()];
+			Arrays.fill(loadedTagIds, -1);
+		}
+
+		Gallery read(Gson gson)
+		{
+			int settingsOffset = (int) layout.settings();
+			Gallery gallery = gson.fromJson(decode(settingsOffset, layout.settingsLength()), Gallery.class);
+
+			ArrayList<Tag> tags = new ArrayList<>(layout.nbTags());
+			int parentsOffset = (int) layout.parents();
+			for (int i = 0, record = (int) layout.tags() ; i < layout.nbTags() ; i++, record += TAG_RECORD_SIZE)
+			{
+				String name = string(buffer.getInt(record));
+				int firstParent = buffer.getInt(record + 4);
+				int nbParents = buffer.getInt(record + 8);
+				int flags = buffer.getInt(record + 12);
+
+				HashSet<TagReference> parents = null;
+				if (nbParents > 0)
+				{
+					parents = new HashSet<>();
+					for (int p = firstParent ; p < firstParent + nbParents ; p++)
+						parents.add(new TagReference(gallery, string(buffer.getInt(parentsOffset + 4 * p))));
+				}
+
+				Color color = (flags & TAG_HAS_COLOR) == 0 ? null
+				        : new Color(buffer.getDouble(record + 16),
+				                    buffer.getDouble(record + 24),
+				                    buffer.getDouble(record + 32),
+				                    buffer.getDouble(record + 40));
+
+				tags.add(new Tag(gallery, name, parents, color));
+			}
+
+			ArrayList<Image> images = new ArrayList<>(layout.nbImages());
+			int imageTagsOffset = (int) layout.imageTags();
+			for (int i = 0, record = (int) layout.images() ; i < layout.nbImages() ; i++, record += IMAGE_RECORD_SIZE)
+			{
+				long id = buffer.getLong(record);
+				Path path = Paths.get(string(buffer.getInt(record + 8)));
+				int firstTag = buffer.getInt(record + 12);
+				int nbTags = buffer.getInt(record + 16);
+
+				int[] tagIds = nbTags == 0 ? Image.NO_TAGS : new int[nbTags];
+				for (int t = 0 ; t < nbTags ; t++)
+					tagIds[t] = loadedTagId(gallery, buffer.getInt(imageTagsOffset + 4 * (firstTag + t)));
+
+				images.add(new Image(gallery, id, path, tagIds));
+			}
+
+			gallery.setLoadedImagesAndTags(images, tags);
+			return gallery;
+		}
+
+		private String string(int index)
+		{
+			String string = strings[index];
+			if (string == null)
+			{
+				int start = buffer.getInt((int) layout.stringOffsets() + 4 * index);
+				int end = buffer.getInt((int) layout.stringOffsets() + 4 * (index + 1));
+				string = decode((int) layout.stringData() + start, end - start);
+				strings[index] = string;
+			}
+			return string;
+		}
+
+		private int loadedTagId(Gallery gallery, int nameIndex)
+		{
+			int loadedTagId = loadedTagIds[nameIndex];
+			if (loadedTagId < 0)
+			{
+				loadedTagId = gallery.loadedTagId(string(nameIndex));
+				loadedTagIds[nameIndex] = loadedTagId;
+			}
+			return loadedTagId;
+		}
+
+		private String decode(int offset, int length)
+		{
+			if (bytes.length < length)
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			buffer.get(offset, bytes, 0, length);
+			return new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+	}
+
+	private static final class SnapshotWriter
+	{
+		private final TypeAdapter<Path> pathAdapter;
+		private final TypeAdapter<JsonElement> jsonAdapter;
+		private final ColorTypeAdapter colorAdapter = new ColorTypeAdapter();
+
+		private final HashMap<String, Integer> stringIndexes = new HashMap<>();
+		private final ArrayList<byte[]> strings = new ArrayList<>();
+		private int stringDataLength = 0;
+
+		private final IntList tagRecords = new IntList();// name, first parent, number of parents
+		private final ArrayList<Color> tagColors = new ArrayList<>();
+		private final IntList parents = new IntList();
+		private long[] imageIds = new long[1024];
+		private final IntList imageRecords = new IntList();// path, first tag, number of tags
+		private final IntList imageTags = new IntList();
+		private int nbImages = 0;
+		private final JsonObject settings = new JsonObject();
+
+		SnapshotWriter(Gson gson)
+		{
+			this.pathAdapter = gson.getAdapter(Path.class);
+			this.jsonAdapter = gson.getAdapter(JsonElement.class);
+		}
+
+		void readJson(JsonReader in) throws IOException
+		{
+			in.beginObject();
+			while (in.hasNext())
+			{
+				String property = in.nextName();
+				if (in.peek() == JsonToken.NULL)
+				{
+					in.nextNull();
+					continue;
+				}
+
+				switch (property)
+				{
+					case "images" ->
+					{
+						in.beginArray();
+						while (in.hasNext())
+							readImage(in);
+						in.endArray();
+					}
+					case "tags" ->
+					{
+						in.beginArray();
+						while (in.hasNext())
+							readTag(in);
+						in.endArray();
+					}
+					default -> settings.add(property, jsonAdapter.read(in));
+				}
+			}
+			in.endObject();
+		}
+
+		private void readImage(JsonReader in) throws IOException
+		{
+			long id = 0;
+			int path = -1;
+			int firstTag = imageTags.size();
+
+			in.beginObject();
+			while (in.hasNext())
+			{
+				String property = in.nextName();
+				if (in.peek() == JsonToken.NULL)
+				{
+					in.nextNull();
+					continue;
+				}
+
+				switch (property)
+				{
+					case "id" -> id = in.nextLong();
+					case "path" -> path = stringIndex(pathAdapter.read(in).toString());
+					case "tags" ->
+					{
+						in.beginArray();
+						while (in.hasNext())
+							imageTags.add(stringIndex(in.nextString()));
+						in.endArray();
+					}
+					default -> in.skipValue();
+				}
+			}
+			in.endObject();
+
+			if (path < 0)
+				throw new IOException("Image " + id + " without path");
+
+			if (nbImages == imageIds.length)
+				imageIds = Arrays.copyOf(imageIds, nbImages * 2);
+			imageIds[nbImages++] = id;
+			imageRecords.add(path);
+			imageRecords.add(firstTag);
+			imageRecords.add(imageTags.size() - firstTag);
+		}
+
+		private void readTag(JsonReader in) throws IOException
+		{
+			int name = -1;
+			int firstParent = parents.size();
+			Color color = null;
+
+			in.beginObject();
+			while (in.hasNext())
+			{
+				String property = in.nextName();
+				if (in.peek() == JsonToken.NULL)
+				{
+					in.nextNull();
+					continue;
+				}
+
+				switch (property)
+				{
+					case "name" -> name = stringIndex(in.nextString());
+					case "parents" ->
+					{
+						in.beginArray();
+						while (in.hasNext())
+							parents.add(stringIndex(in.nextString()));
+						in.endArray();
+					}
+					case "color" -> color = colorAdapter.read(in);
+					default -> in.skipValue();
+				}
+			}
+			in.endObject();
+
+			if (name < 0)
+				throw new IOException("Tag without name");
+
+			tagRecords.add(name);
+			tagRecords.add(firstParent);
+			tagRecords.add(parents.size() - firstParent);
+			tagColors.add(color);
+		}
+
+		private int stringIndex(String string)
+		{
+			return stringIndexes.computeIfAbsent(string, s ->
+			{
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				strings.add(bytes);
+				stringDataLength += bytes.length;
+				return strings.size() - 1;
+			});
+		}
+
+		void write(DataOutputStream out, long jsonSize, long jsonLastModified) throws IOException
+		{
+			byte[] settingsData = settings.toString().getBytes(StandardCharsets.UTF_8);
+			Layout layout = new Layout(strings.size(),
+			                           stringDataLength,
+			                           tagColors.size(),
+			                           parents.size(),
+			                           nbImages,
+			                           imageTags.size(),
+			                           settingsData.length);
+			if (layout.size() > Integer.MAX_VALUE)
+				throw new IOException("Gallery too big for a binary snapshot: " + layout.size() + " bytes");
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(jsonSize);
+			out.writeLong(jsonLastModified);
+			out.writeInt(layout.nbStrings());
+			out.writeInt(layout.stringDataLength());
+			out.writeInt(layout.nbTags());
+			out.writeInt(layout.nbParents());
+			out.writeInt(layout.nbImages());
+			out.writeInt(layout.nbImageTags());
+			out.writeInt(layout.settingsLength());
+			padTo(out, layout.stringOffsets());
+
+			int offset = 0;
+			for (byte[] string : strings)
+			{
+				out.writeInt(offset);
+				offset += string.length;
+			}
+			out.writeInt(offset);
+			for (byte[] string : strings)
+				out.write(string);
+			padTo(out, layout.tags());
+
+			for (int i = 0 ; i < tagColors.size() ; i++)
+			{
+				Color color = tagColors.get(i);
+				out.writeInt(tagRecords.get(3 * i));
+				out.writeInt(tagRecords.get(3 * i + 1));
+				out.writeInt(tagRecords.get(3 * i + 2));
+				out.writeInt(color == null ? 0 : TAG_HAS_COLOR);
+				out.writeDouble(color == null ? 0 : color.getRed());
+				out.writeDouble(color == null ? 0 : color.getGreen());
+				out.writeDouble(color == null ? 0 : color.getBlue());
+				out.writeDouble(color == null ? 0 : color.getOpacity());
+			}
+			for (int i = 0 ; i < parents.size() ; i++)
+				out.writeInt(parents.get(i));
+			padTo(out, layout.images());
+
+			for (int i = 0 ; i < nbImages ; i++)
+			{
+				out.writeLong(imageIds[i]);
+				out.writeInt(imageRecords.get(3 * i));
+				out.writeInt(imageRecords.get(3 * i + 1));
+				out.writeInt(imageRecords.get(3 * i + 2));
+				out.writeInt(0);
+			}
+			for (int i = 0 ; i < imageTags.size() ; i++)
+				out.writeInt(imageTags.get(i));
+
+			out.write(settingsData);
+		}
+
+		private static void padTo(DataOutputStream out, long offset) throws IOException
+		{
+			while (out.size() < offset)
+				out.writeByte(0);
+		}
+	}
+
+	private static final class IntList
+	{
+		private int[] values = new int[1024];
+		private int size = 0;
+
+		void add(int value)
+		{
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		int get(int index)
+		{
+			return values[index];
+		}
+
+		int size()
+		{
+			return size;
+		}
+	}
+}
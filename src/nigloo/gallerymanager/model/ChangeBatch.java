@@ -0,0 +1,118 @@
+package nigloo.gallerymanager.model;
+
+import java.util.function.Consumer;
+
+/**
+ * Accumulate the changes made to the gallery and publish them as a single
+ * {@link GalleryChange} to the listeners of the gallery (see
+ * {@link Gallery#addChangeListener(Consumer)}).<br/>
+ * Only the changes made by the threads bound to the batch are recorded (see
+ * {@link #bind()}). Several threads can be bound to the same batch at once,
+ * ex: a download session saving images from its http threads. The change is
+ * published when the batch is closed and no thread is bound to it anymore.
+ */
+public final class ChangeBatch implements AutoCloseable
+{
+	private final Gallery gallery;
+	private GalleryChange.Builder changes = new GalleryChange.Builder();
+	// The creator of the batch and each scope not closed yet
+	private int nbUsers = 1;
+	private boolean closed = false;
+
+	ChangeBatch(Gallery gallery)
+	{
+		this.gallery = gallery;
+	}
+
+	/**
+	 * Record the changes made by the current thread in this batch until the
+	 * returned scope is closed.
+	 */
+	public Scope bind()
+	{
+		synchronized (this)
+		{
+			if (nbUsers == 0)
+				throw new IllegalStateException("Batch already published");
+			nbUsers++;
+		}
+		return new Scope(this, gallery.bindChangeBatch(this));
+	}
+
+	/**
+	 * Publish the changes recorded so far, without waiting for the batch to be
+	 * closed.
+	 */
+	public void flush()
+	{
+		GalleryChange change;
+		synchronized (this)
+		{
+			if (nbUsers == 0)
+				return;
+			change = changes.build();
+			changes = new GalleryChange.Builder();
+		}
+
+		if (!change.isEmpty())
+			gallery.publishChange(change);
+	}
+
+	@Override
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (closed)
+				return;
+			closed = true;
+		}
+		release();
+	}
+
+	synchronized void record(Consumer<GalleryChange.Builder> change)
+	{
+		change.accept(changes);
+	}
+
+	private void release()
+	{
+		GalleryChange change;
+		synchronized (this)
+		{
+			if (--nbUsers > 0)
+				return;
+			change = changes.build();
+		}
+
+		if (!change.isEmpty())
+			gallery.publishChange(change);
+	}
+
+	/**
+	 * Binding of a batch to a thread, MUST be closed by the same thread.
+	 */
+	public static final class Scope implements AutoCloseable
+	{
+		private final ChangeBatch batch;
+		private final ChangeBatch previous;
+		private boolean closed = false;
+
+		private Scope(ChangeBatch batch, ChangeBatch previous)
+		{
+			this.batch = batch;
+			this.previous = previous;
+		}
+
+		@Override
+		public void close()
+		{
+			if (closed)
+				return;
+			closed = true;
+
+			batch.gallery.bindChangeBatch(previous);
+			batch.release();
+		}
+	}
+}
@@ -0,0 +1,665 @@
+package nigloo.gallerymanager.model;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of non negative ints, used to hold image ordinals and tag ids.<br/>
+ * Values are split in chunks of 2^16 sharing the same high 16 bits. Each chunk
+ * is stored either as a sorted array of its low 16 bits (sparse chunk) or as a
+ * 2^16 bits bitmap (dense chunk), whichever is the smallest. This keeps the
+ * bitmap of a tag used by a handful of images tiny, while set algebra on large
+ * sets runs word by word.<br/>
+ * Not thread safe.
+ */
+public final class CompressedBitmap
+{
+	private static final int ARRAY_MAX_SIZE = 4096;
+	private static final int BITMAP_NB_WORDS = (1 << 16) / 64;
+
+	private char[] keys;
+	private Container[] containers;
+	private int nbContainers;
+
+	public CompressedBitmap()
+	{
+		this(4);
+	}
+
+	private CompressedBitmap(int capacity)
+	{
+		keys = new char[capacity];
+		containers = new Container[capacity];
+		nbContainers = 0;
+	}
+
+	public boolean add(int value)
+	{
+		checkValue(value);
+		char high = (char) (value >>> 16);
+		int idx = indexOfKey(high);
+		if (idx >= 0)
+		{
+			Container c = containers[idx];
+			int cardBefore = c.cardinality();
+			containers[idx] = c.add((char) value);
+			return containers[idx].cardinality() != cardBefore;
+		}
+
+		insertContainer(-idx - 1, high, new ArrayContainer().add((char) value));
+		return true;
+	}
+
+	public boolean remove(int value)
+	{
+		if (value < 0)
+			return false;
+
+		char high = (char) (value >>> 16);
+		int idx = indexOfKey(high);
+		if (idx < 0)
+			return false;
+
+		Container c = containers[idx];
+		int cardBefore = c.cardinality();
+		Container newC = c.remove((char) value);
+		if (newC.cardinality() == 0)
+			removeContainer(idx);
+		else
+			containers[idx] = newC;
+
+		return newC.cardinality() != cardBefore;
+	}
+
+	public boolean contains(int value)
+	{
+		if (value < 0)
+			return false;
+
+		int idx = indexOfKey((char) (value >>> 16));
+		return idx >= 0 && containers[idx].contains((char) value);
+	}
+
+	public int cardinality()
+	{
+		int card = 0;
+		for (int i = 0 ; i < nbContainers ; i++)
+			card += containers[i].cardinality();
+		return card;
+	}
+
+	public boolean isEmpty()
+	{
+		return nbContainers == 0;
+	}
+
+	public void clear()
+	{
+		Arrays.fill(containers, 0, nbContainers, null);
+		nbContainers = 0;
+	}
+
+	public CompressedBitmap copy()
+	{
+		CompressedBitmap copy = new CompressedBitmap(Math.max(4, nbContainers));
+		for (int i = 0 ; i < nbContainers ; i++)
+		{
+			copy.keys[i] = keys[i];
+			copy.containers[i] = containers[i].copy();
+		}
+		copy.nbContainers = nbContainers;
+		return copy;
+	}
+
+	/**
+	 * @return an estimation of the memory used by this bitmap, in bytes
+	 */
+	public long sizeInBytes()
+	{
+		long size = 16 + 16 + 2L * keys.length + 16 + 4L * containers.length;
+		for (int i = 0 ; i < nbContainers ; i++)
+			size += containers[i].sizeInBytes();
+		return size;
+	}
+
+	public void forEach(IntConsumer action)
+	{
+		for (int i = 0 ; i < nbContainers ; i++)
+			containers[i].forEach(keys[i] << 16, action);
+	}
+
+	public int[] toArray()
+	{
+		int[] array = new int[cardinality()];
+		int[] pos = { 0 };
+		forEach(v -> array[pos[0]++] = v);
+		return array;
+	}
+
+	/**
+	 * Add every value of other to this bitmap
+	 */
+	public void orWith(CompressedBitmap other)
+	{
+		if (other.isEmpty())
+			return;
+
+		CompressedBitmap result = or(this, other);
+		keys = result.keys;
+		containers = result.containers;
+		nbContainers = result.nbContainers;
+	}
+
+	public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b)
+	{
+		CompressedBitmap result = new CompressedBitmap(Math.max(4, Math.min(a.nbContainers, b.nbContainers)));
+		int i = 0, j = 0;
+		while (i < a.nbContainers && j < b.nbContainers)
+		{
+			if (a.keys[i] < b.keys[j])
+				i++;
+			else if (a.keys[i] > b.keys[j])
+				j++;
+			else
+			{
+				Container c = a.containers[i].and(b.containers[j]);
+				if (c.cardinality() > 0)
+					result.appendContainer(a.keys[i], c);
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b)
+	{
+		CompressedBitmap result = new CompressedBitmap(Math.max(4, a.nbContainers + b.nbContainers));
+		int i = 0, j = 0;
+		while (i < a.nbContainers || j < b.nbContainers)
+		{
+			if (j >= b.nbContainers || (i < a.nbContainers && a.keys[i] < b.keys[j]))
+			{
+				result.appendContainer(a.keys[i], a.containers[i].copy());
+				i++;
+			}
+			else if (i >= a.nbContainers || a.keys[i] > b.keys[j])
+			{
+				result.appendContainer(b.keys[j], b.containers[j].copy());
+				j++;
+			}
+			else
+			{
+				result.appendContainer(a.keys[i], a.containers[i].or(b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	public static CompressedBitmap andNot(CompressedBitmap a, CompressedBitmap b)
+	{
+		CompressedBitmap result = new CompressedBitmap(Math.max(4, a.nbContainers));
+		int j = 0;
+		for (int i = 0 ; i < a.nbContainers ; i++)
+		{
+			while (j < b.nbContainers && b.keys[j] < a.keys[i])
+				j++;
+
+			Container c = (j < b.nbContainers && b.keys[j] == a.keys[i])
+			        ? a.containers[i].andNot(b.containers[j])
+			        : a.containers[i].copy();
+			if (c.cardinality() > 0)
+				result.appendContainer(a.keys[i], c);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (obj == this)
+			return true;
+		if (!(obj instanceof CompressedBitmap other) || other.nbContainers != nbContainers)
+			return false;
+
+		for (int i = 0 ; i < nbContainers ; i++)
+			if (keys[i] != other.keys[i] || !Arrays.equals(containers[i].toArray(), other.containers[i].toArray()))
+				return false;
+
+		return true;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int h = 1;
+		for (int i = 0 ; i < nbContainers ; i++)
+			h = 31 * (31 * h + keys[i]) + Arrays.hashCode(containers[i].toArray());
+		return h;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("{");
+		forEach(v ->
+		{
+			if (sb.length() > 1)
+				sb.append(", ");
+			sb.append(v);
+		});
+		return sb.append('}').toString();
+	}
+
+	private static void checkValue(int value)
+	{
+		if (value < 0)
+			throw new IllegalArgumentException("value must be positive. Got: " + value);
+	}
+
+	private int indexOfKey(char key)
+	{
+		return Arrays.binarySearch(keys, 0, nbContainers, key);
+	}
+
+	private void insertContainer(int idx, char key, Container c)
+	{
+		ensureCapacity(nbContainers + 1);
+		System.arraycopy(keys, idx, keys, idx + 1, nbContainers - idx);
+		System.arraycopy(containers, idx, containers, idx + 1, nbContainers - idx);
+		keys[idx] = key;
+		containers[idx] = c;
+		nbContainers++;
+	}
+
+	private void appendContainer(char key, Container c)
+	{
+		ensureCapacity(nbContainers + 1);
+		keys[nbContainers] = key;
+		containers[nbContainers] = c;
+		nbContainers++;
+	}
+
+	private void removeContainer(int idx)
+	{
+		System.arraycopy(keys, idx + 1, keys, idx, nbContainers - idx - 1);
+		System.arraycopy(containers, idx + 1, containers, idx, nbContainers - idx - 1);
+		containers[--nbContainers] = null;
+	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity > keys.length)
+		{
+			int newCapacity = Math.max(capacity, keys.length * 2);
+			keys = Arrays.copyOf(keys, newCapacity);
+			containers = Arrays.copyOf(containers, newCapacity);
+		}
+	}
+
+	/*
+	 * Containers are persistent for the binary operations (they return a new
+	 * container) but add/remove modify them in place when the representation
+	 * doesn't change.
+	 */
+	private static abstract sealed class Container permits ArrayContainer, BitmapContainer
+	{
+		abstract int cardinality();
+
+		abstract boolean contains(char value);
+
+		abstract Container add(char value);
+
+		abstract Container remove(char value);
+
+		abstract Container and(Container other);
+
+		abstract Container or(Container other);
+
+		abstract Container andNot(Container other);
+
+		abstract Container copy();
+
+		abstract long sizeInBytes();
+
+		abstract void forEach(int high, IntConsumer action);
+
+		abstract char[] toArray();
+	}
+
+	private static final class ArrayContainer extends Container
+	{
+		char[] values;
+		int card;
+
+		ArrayContainer()
+		{
+			this(new char[4], 0);
+		}
+
+		ArrayContainer(char[] values, int card)
+		{
+			this.values = values;
+			this.card = card;
+		}
+
+		@Override
+		int cardinality()
+		{
+			return card;
+		}
+
+		@Override
+		boolean contains(char value)
+		{
+			return Arrays.binarySearch(values, 0, card, value) >= 0;
+		}
+
+		@Override
+		Container add(char value)
+		{
+			int idx = Arrays.binarySearch(values, 0, card, value);
+			if (idx >= 0)
+				return this;
+
+			if (card >= ARRAY_MAX_SIZE)
+				return toBitmap().add(value);
+
+			idx = -idx - 1;
+			if (card == values.length)
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX_SIZE, Math.max(4, card * 2)));
+			System.arraycopy(values, idx, values, idx + 1, card - idx);
+			values[idx] = value;
+			card++;
+			return this;
+		}
+
+		@Override
+		Container remove(char value)
+		{
+			int idx = Arrays.binarySearch(values, 0, card, value);
+			if (idx >= 0)
+			{
+				System.arraycopy(values, idx + 1, values, idx, card - idx - 1);
+				card--;
+			}
+			return this;
+		}
+
+		@Override
+		Container and(Container other)
+		{
+			char[] result = new char[card];
+			int k = 0;
+			if (other instanceof ArrayContainer o)
+			{
+				int i = 0, j = 0;
+				while (i < card && j < o.card)
+				{
+					if (values[i] < o.values[j])
+						i++;
+					else if (values[i] > o.values[j])
+						j++;
+					else
+					{
+						result[k++] = values[i];
+						i++;
+						j++;
+					}
+				}
+			}
+			else
+			{
+				for (int i = 0 ; i < card ; i++)
+					if (other.contains(values[i]))
+						result[k++] = values[i];
+			}
+			return new ArrayContainer(result, k);
+		}
+
+		@Override
+		Container or(Container other)
+		{
+			if (other instanceof BitmapContainer)
+				return other.or(this);
+
+			ArrayContainer o = (ArrayContainer) other;
+			if (card + o.card > ARRAY_MAX_SIZE)
+				return toBitmap().or(other);
+
+			char[] result = new char[card + o.card];
+			int i = 0, j = 0, k = 0;
+			while (i < card || j < o.card)
+			{
+				if (j >= o.card || (i < card && values[i] < o.values[j]))
+					result[k++] = values[i++];
+				else if (i >= card || values[i] > o.values[j])
+					result[k++] = o.values[j++];
+				else
+				{
+					result[k++] = values[i++];
+					j++;
+				}
+			}
+			return new ArrayContainer(result, k);
+		}
+
+		@Override
+		Container andNot(Container other)
+		{
+			char[] result = new char[card];
+			int k = 0;
+			for (int i = 0 ; i < card ; i++)
+				if (!other.contains(values[i]))
+					result[k++] = values[i];
+			return new ArrayContainer(result, k);
+		}
+
+		@Override
+		Container copy()
+		{
+			return new ArrayContainer(Arrays.copyOf(values, Math.max(4, card)), card);
+		}
+
+		@Override
+		long sizeInBytes()
+		{
+			return 16 + 16 + 2L * values.length;
+		}
+
+		@Override
+		void forEach(int high, IntConsumer action)
+		{
+			for (int i = 0 ; i < card ; i++)
+				action.accept(high | values[i]);
+		}
+
+		@Override
+		char[] toArray()
+		{
+			return Arrays.copyOf(values, card);
+		}
+
+		BitmapContainer toBitmap()
+		{
+			long[] words = new long[BITMAP_NB_WORDS];
+			for (int i = 0 ; i < card ; i++)
+				words[values[i] >>> 6] |= 1L << values[i];
+			return new BitmapContainer(words, card);
+		}
+	}
+
+	private static final class BitmapContainer extends Container
+	{
+		final long[] words;
+		int card;
+
+		BitmapContainer(long[] words, int card)
+		{
+			this.words = words;
+			this.card = card;
+		}
+
+		@Override
+		int cardinality()
+		{
+			return card;
+		}
+
+		@Override
+		boolean contains(char value)
+		{
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		Container add(char value)
+		{
+			long before = words[value >>> 6];
+			long after = before | (1L << value);
+			if (before != after)
+			{
+				words[value >>> 6] = after;
+				card++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(char value)
+		{
+			long before = words[value >>> 6];
+			long after = before & ~(1L << value);
+			if (before != after)
+			{
+				words[value >>> 6] = after;
+				card--;
+				if (card <= ARRAY_MAX_SIZE / 2)
+					return toArrayContainer();
+			}
+			return this;
+		}
+
+		@Override
+		Container and(Container other)
+		{
+			if (other instanceof ArrayContainer)
+				return other.and(this);
+
+			long[] o = ((BitmapContainer) other).words;
+			long[] result = new long[BITMAP_NB_WORDS];
+			int c = 0;
+			for (int i = 0 ; i < BITMAP_NB_WORDS ; i++)
+				c += Long.bitCount(result[i] = words[i] & o[i]);
+			return normalized(result, c);
+		}
+
+		@Override
+		Container or(Container other)
+		{
+			long[] result = words.clone();
+			int c = card;
+			if (other instanceof ArrayContainer o)
+			{
+				for (int i = 0 ; i < o.card ; i++)
+				{
+					char v = o.values[i];
+					long before = result[v >>> 6];
+					result[v >>> 6] = before | (1L << v);
+					if (before != result[v >>> 6])
+						c++;
+				}
+			}
+			else
+			{
+				long[] o = ((BitmapContainer) other).words;
+				c = 0;
+				for (int i = 0 ; i < BITMAP_NB_WORDS ; i++)
+					c += Long.bitCount(result[i] |= o[i]);
+			}
+			return new BitmapContainer(result, c);
+		}
+
+		@Override
+		Container andNot(Container other)
+		{
+			long[] result = words.clone();
+			int c = card;
+			if (other instanceof ArrayContainer o)
+			{
+				for (int i = 0 ; i < o.card ; i++)
+				{
+					char v = o.values[i];
+					long before = result[v >>> 6];
+					result[v >>> 6] = before & ~(1L << v);
+					if (before != result[v >>> 6])
+						c--;
+				}
+			}
+			else
+			{
+				long[] o = ((BitmapContainer) other).words;
+				c = 0;
+				for (int i = 0 ; i < BITMAP_NB_WORDS ; i++)
+					c += Long.bitCount(result[i] &= ~o[i]);
+			}
+			return normalized(result, c);
+		}
+
+		@Override
+		Container copy()
+		{
+			return new BitmapContainer(words.clone(), card);
+		}
+
+		@Override
+		long sizeInBytes()
+		{
+			return 16 + 16 + 8L * words.length;
+		}
+
+		@Override
+		void forEach(int high, IntConsumer action)
+		{
+			for (int i = 0 ; i < BITMAP_NB_WORDS ; i++)
+			{
+				long word = words[i];
+				while (word != 0)
+				{
+					action.accept(high | (i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+
+		@Override
+		char[] toArray()
+		{
+			char[] array = new char[card];
+			int k = 0;
+			for (int i = 0 ; i < BITMAP_NB_WORDS ; i++)
+			{
+				long word = words[i];
+				while (word != 0)
+				{
+					array[k++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return array;
+		}
+
+		private ArrayContainer toArrayContainer()
+		{
+			return new ArrayContainer(toArray(), card);
+		}
+
+		private static Container normalized(long[] words, int card)
+		{
+			BitmapContainer bitmap = new BitmapContainer(words, card);
+			return card <= ARRAY_MAX_SIZE ? bitmap.toArrayContainer() : bitmap;
+		}
+	}
+}
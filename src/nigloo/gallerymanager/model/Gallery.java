@@ -1,10 +1,19 @@
 package nigloo.gallerymanager.model;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -13,14 +22,20 @@ import nigloo.gallerymanager.model.SortBy.CustomSortByMapSerializer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
 import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import lombok.Getter;
 import nigloo.gallerymanager.autodownloader.Downloader;
@@ -30,7 +45,9 @@ import nigloo.gallerymanager.autodownloader.Downloader.ImagesConfiguration.Downl
 import nigloo.gallerymanager.autodownloader.Downloader.ImagesConfiguration;
 import nigloo.tool.Utils;
 import nigloo.tool.collection.WeakIdentityHashSet;
+import nigloo.tool.injection.Injector;
 
+@JsonAdapter(Gallery.GalleryTypeAdapterFactory.class)
 public final class Gallery
 {
 	private static final Logger LOGGER = LogManager.getLogger(Gallery.class);
@@ -51,11 +68,45 @@ public final class Gallery
 	private SlideShowParameters slideShowParameter;
 	private ArrayList<Script> scripts;
 	
+	/*
+	 * Guard images and every image index. Readers (lookups, queries) proceed
+	 * concurrently and always see a consistent state since every mutation is
+	 * done under the write lock. Reentrant, MUST be taken before the lock of tags
+	 */
+	private final transient ReentrantReadWriteLock imagesLock = new ReentrantReadWriteLock();
 	@Getter
 	private transient Exception validationError = new RuntimeException("Not validated");
 	private transient long nextId = 1;
+	private transient LongObjectHashMap<Image> imagesById = new LongObjectHashMap<>();
+	private transient PathIndex savedImagesByPath = new PathIndex();
+	private transient PathIndex unsavedImages = new PathIndex();
+	private transient TagDictionary tagDictionary = new TagDictionary();
+	private final transient AtomicInteger tagHierarchyVersion = new AtomicInteger();
+	// Incremented when the parents or the color of any tag change, see Tag.getColor()
+	private final transient AtomicInteger tagColorVersion = new AtomicInteger();
+	// Incremented by every change recorded, see getModificationCount()
+	private final transient AtomicLong modificationCount = new AtomicLong();
+	private transient TagAncestors tagAncestors = new TagAncestors(this);
+	private transient TagImageIndex tagIndex = new TagImageIndex(this);
+	private final transient ImageBitmapIndex bitmapIndex = new BitmapIndexView();
+	private final transient ThreadLocal<ChangeBatch> currentChangeBatch = new ThreadLocal<>();
+	private final transient List<Consumer<? super GalleryChange>> changeListeners = new CopyOnWriteArrayList<>();
+	// Changes not published yet, in the order their batch ended. Guarded by itself, as the fields below
+	private final transient ArrayDeque<GalleryChange> changesToPublish = new ArrayDeque<>();
+	// The thread calling the listeners, null if none
+	private transient Thread publishingThread = null;
+	private transient long nbChangesQueued = 0;
+	private transient long nbChangesPublished = 0;
+	// Downloaders whose mapping references each image, or did. Guarded by itself
+	private final transient LongObjectHashMap<Downloader[]> downloadersByImageId = new LongObjectHashMap<>();
 	transient WeakIdentityHashSet<ImageReference> allImageReferences = new WeakIdentityHashSet<>();
 	transient WeakIdentityHashSet<TagReference> allTagReferences = new WeakIdentityHashSet<>();
+	// Tag names met while deserializing the images, by temporary id. Discarded by postConstruct
+	private transient ArrayList<String> loadedTagNames = new ArrayList<>();
+	private transient HashMap<String, Integer> loadedTagIds = new HashMap<>();
+	// References created while deserializing, resolved at once by postConstruct
+	private transient ArrayList<ImageReference> loadedImageReferences = new ArrayList<>();
+	private transient ArrayList<TagReference> loadedTagReferences = new ArrayList<>();
 	
 	/*
 	 * MUST be called just after deserialization
@@ -106,6 +157,7 @@ public final class Gallery
 				for (Downloader autoDownloader : artist.autodownloaders)
 				{
 					autoDownloader.setArtist(artist);
+					autoDownloader.registerMapping();
 					
 					ImagesConfiguration imageConfiguration = autoDownloader.getImageConfiguration();
 					if (imageConfiguration.getDownload() == null)
@@ -122,6 +174,12 @@ public final class Gallery
 			}
 			
 			nextId = images.stream().mapToLong(Image::getId).max().orElse(0) + 1;
+			rebuildImageIdIndex();
+			rebuildImagePathIndex();
+			rebuildTagDictionary();
+			resolveLoadedImageTags();
+			resolveLoadedReferences();
+			rebuildTagImageIndex();
 			
 			validationError = null;
 		}
@@ -157,12 +215,13 @@ public final class Gallery
 
 	public Artist newArtist()
 	{
+		Artist artist = new Artist();
 		synchronized (artists)
 		{
-			Artist artist = new Artist();
 			artists.add(artist);
-			return artist;
 		}
+		settingsChanged();
+		return artist;
 	}
 
 	public void deleteArtist(Artist artist)
@@ -171,6 +230,7 @@ public final class Gallery
 		{
 			artists.remove(artist);
 		}
+		settingsChanged();
 	}
 
 	public Downloader newDownloader(Artist artist, DownloaderType type, String creatorId)
@@ -182,7 +242,9 @@ public final class Gallery
 
 		Downloader downloader = Downloader.build(type, creatorId);
 		downloader.setArtist(artist);
+		downloader.registerMapping();
 		artist.autodownloaders.add(downloader);
+		settingsChanged();
 
 		return downloader;
 	}
@@ -192,14 +254,52 @@ public final class Gallery
 		if (downloader.getArtist() != null) {
 			downloader.getArtist().autodownloaders.remove(downloader);
 			downloader.setArtist(null);
+			settingsChanged();
+		}
+	}
+
+	/**
+	 * Called by the downloaders when their mapping or last post checked
+	 * change, for the listeners persisting the gallery
+	 */
+	public void downloaderUpdated(Downloader downloader)
+	{
+		try (ChangeBatch.Scope scope = batchChanges())
+		{
+			recordChange(changes -> changes.downloaderUpdated(downloader));
 		}
 	}
 
+	/**
+	 * Called by the downloaders when their mapping references an image, so
+	 * that deleting it only involves those downloaders
+	 */
+	public void downloaderReferences(long imageId, Downloader downloader)
+	{
+		synchronized (downloadersByImageId)
+		{
+			Downloader[] downloaders = downloadersByImageId.get(imageId);
+			if (downloaders == null)
+				downloadersByImageId.put(imageId, new Downloader[] { downloader });
+			else if (Arrays.stream(downloaders).noneMatch(d -> d == downloader))
+			{
+				downloaders = Arrays.copyOf(downloaders, downloaders.length + 1);
+				downloaders[downloaders.length - 1] = downloader;
+				downloadersByImageId.put(imageId, downloaders);
+			}
+		}
+	}
+	
 	public Image findImage(long imageId)
 	{
-		synchronized (images)
+		imagesLock.readLock().lock();
+		try
+		{
+			return imagesById.get(imageId);
+		}
+		finally
 		{
-			return images.stream().filter(image -> image.getId() == imageId).findAny().orElse(null);
+			imagesLock.readLock().unlock();
 		}
 	}
 	
@@ -212,21 +312,40 @@ public final class Gallery
 	 */
 	public Image findImage(Path path, boolean includeUnsaved)
 	{
-		synchronized (images)
+		imagesLock.readLock().lock();
+		try
 		{
 			final Path relPath = toRelativePath(path);
 			
-			return imagesStream(includeUnsaved).filter(image -> image.getPath().equals(relPath)).findAny().orElse(null);
+			Image image = savedImagesByPath.get(relPath);
+			if (image == null && includeUnsaved)
+				image = unsavedImages.get(relPath);
+			
+			return image;
+		}
+		finally
+		{
+			imagesLock.readLock().unlock();
 		}
 	}
 	
 	public Collection<Image> findImagesIn(Path path, boolean includeUnsaved)
 	{
-		synchronized (images)
+		imagesLock.readLock().lock();
+		try
 		{
-			final Path absPath = toAbsolutePath(path);
+			final Path relPath = toRelativePath(path);
 			
-			return imagesStream(includeUnsaved).filter(image -> image.getAbsolutePath().startsWith(absPath)).toList();
+			List<Image> found = new ArrayList<>();
+			savedImagesByPath.collectIn(relPath, found);
+			if (includeUnsaved)
+				unsavedImages.collectIn(relPath, found);
+			
+			return Collections.unmodifiableList(found);
+		}
+		finally
+		{
+			imagesLock.readLock().unlock();
 		}
 	}
 	
@@ -241,14 +360,36 @@ public final class Gallery
 		if (!Image.isImage(path))
 			throw new IllegalArgumentException("Not an image: "+path);
 		
-		synchronized (images)
+		// Most of the time the image already exist: don't block the other readers
+		Image image = findImage(path, true);
+		if (image != null)
+			return image;
+		
+		try (ChangeBatch.Scope scope = batchChanges())
 		{
-			final Path relPath = toRelativePath(path);
-			
-			return images.stream()
-			             .filter(image -> image.getPath().equals(relPath))
-			             .findAny()
-			             .orElseGet(() -> unsavedImages().computeIfAbsent(relPath, p -> new Image(relPath)));
+			imagesLock.writeLock().lock();
+			try
+			{
+				final Path relPath = toRelativePath(path);
+				
+				image = savedImagesByPath.get(relPath);
+				if (image == null)
+					image = unsavedImages.get(relPath);
+				if (image == null)
+				{
+					Image newImage = new Image(relPath);
+					unsavedImages.put(relPath, newImage);
+					tagIndex.add(newImage);
+					recordChange(changes -> changes.added(newImage));
+					image = newImage;
+				}
+				
+				return image;
+			}
+			finally
+			{
+				imagesLock.writeLock().unlock();
+			}
 		}
 	}
 	
@@ -257,49 +398,165 @@ public final class Gallery
 		if (image.isSaved())
 			return;
 		
-		synchronized (images)
+		try (ChangeBatch.Scope scope = batchChanges())
 		{
-			unsavedImages().remove(image.getPath());
-			
-			image.id = nextId++;
-			images.add(image);
+			imagesLock.writeLock().lock();
+			try
+			{
+				unsavedImages.remove(image.getPath());
+				
+				image.id = nextId++;
+				images.add(image);
+				imagesById.put(image.id, image);
+				savedImagesByPath.put(image.getPath(), image);
+				recordChange(changes -> changes.saved(image));
+			}
+			finally
+			{
+				imagesLock.writeLock().unlock();
+			}
 		}
 		LOGGER.info("Image saved in gallery: {}", image.getPath());
 	}
 	
-	private transient Map<Path, Image> unsavedImages = new HashMap<>();
-	transient boolean unsavedImagesValid = true;
+	/*
+	 * Called by Image.move(): the path changes under the write lock to keep
+	 * the path indexes up to date and the snapshots consistent
+	 */
+	void moveImage(Image image, Path target)
+	{
+		try (ChangeBatch.Scope scope = batchChanges())
+		{
+			imagesLock.writeLock().lock();
+			try
+			{
+				Image existing = savedImagesByPath.get(target);
+				if (existing == null)
+					existing = unsavedImages.get(target);
+				if (existing != null && existing != image)
+					throw new IllegalArgumentException("Cannot move " + image.getPath() + " to " + target
+					        + ": already the path of another image");
+				
+				setImagePath(image, target);
+			}
+			finally
+			{
+				imagesLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/*
+	 * Holding the write lock of images. The image previously at target, if
+	 * any, MUST be removed or moved too (see move(Path, Path))
+	 */
+	private void setImagePath(Image image, Path target)
+	{
+		Path source = image.getPath();
+		String previousNormalizedPath = image.getNormalizedPath();
+		image.path = target;
+		tagIndex.imageMoved(image, previousNormalizedPath);
+		
+		PathIndex index = image.isSaved() ? savedImagesByPath : unsavedImages;
+		if (index.get(source) == image)
+			index.remove(source);
+		index.put(target, image);
+		recordChange(changes -> changes.moved(image, source));
+	}
 	
-	private Map<Path, Image> unsavedImages()
+	/*
+	 * Called by Image to add or remove one of its tags: change swaps its tags
+	 * holding the write lock of images, like the other changes to the tag
+	 * index, and returns false if the tags are left unchanged
+	 */
+	boolean changeImageTag(Image image, Tag tag, boolean added, BooleanSupplier change)
 	{
-		if (!unsavedImagesValid)
+		try (ChangeBatch.Scope scope = batchChanges())
 		{
-			unsavedImages = unsavedImages.values()
-			                             .stream()
-			                             .collect(Collectors.toMap(i -> i.getPath(),
-			                                                       i -> i,
-			                                                       (i1, i2) -> i1,
-			                                                       HashMap::new));
-			unsavedImagesValid = true;
+			imagesLock.writeLock().lock();
+			try
+			{
+				if (!change.getAsBoolean())
+					return false;
+				
+				if (added)
+					tagIndex.tagAdded(image, tag);
+				else
+					tagIndex.tagRemoved(image, tag);
+				// Not if deleted meanwhile: it would be displayed again
+				if (tagIndex.isIndexed(image))
+					recordChange(changes -> changes.retagged(image));
+				return true;
+			}
+			finally
+			{
+				imagesLock.writeLock().unlock();
+			}
 		}
-		return unsavedImages;
 	}
 	
 	public void deleteImages(Collection<Image> images)
 	{
 		List<Image> deleted = new ArrayList<>(images.size());
-		synchronized (this.images)
+		try (ChangeBatch.Scope scope = batchChanges())
 		{
-			for (Artist artist : artists)
-				for (Downloader autoDownloader : artist.getAutodownloaders())
-					autoDownloader.markDeleted(images);
-			
-			// This last or we break every ImageReference
-			for (Image image : images)
-				if (this.images.remove(image))
-					deleted.add(image);
-			
-			unsavedImages().keySet().removeAll(images.stream().map(Image::getPath).toList());
+			imagesLock.writeLock().lock();
+			try
+			{
+				Map<Downloader, List<Image>> imagesByDownloader = new IdentityHashMap<>();
+				synchronized (downloadersByImageId)
+				{
+					for (Image image : images)
+						if (image.isSaved())
+						{
+							Downloader[] downloaders = downloadersByImageId.remove(image.getId());
+							if (downloaders != null)
+								for (Downloader downloader : downloaders)
+									imagesByDownloader.computeIfAbsent(downloader, d -> new ArrayList<>()).add(image);
+						}
+				}
+				
+				imagesByDownloader.forEach((autoDownloader, downloaderImages) ->
+				{
+					// Deleted downloaders are not unregistered
+					if (autoDownloader.getArtist() != null && autoDownloader.markDeleted(downloaderImages))
+						recordChange(changes -> changes.downloaderUpdated(autoDownloader));
+				});
+				
+				// This last or we break every ImageReference
+				Set<Image> toDelete = Collections.newSetFromMap(new IdentityHashMap<>(images.size()));
+				for (Image image : images)
+					if (image.isSaved())
+						toDelete.add(image);
+				
+				if (!toDelete.isEmpty())
+				{
+					this.images.removeIf(image -> toDelete.contains(image) && deleted.add(image));
+					for (Image image : deleted)
+					{
+						if (imagesById.get(image.getId()) == image)
+							imagesById.remove(image.getId());
+						if (savedImagesByPath.get(image.getPath()) == image)
+							savedImagesByPath.remove(image.getPath());
+						tagIndex.remove(image);
+						recordChange(changes -> changes.removed(image));
+					}
+				}
+				
+				for (Image image : images)
+				{
+					Image removed = unsavedImages.remove(image.getPath());
+					if (removed != null)
+					{
+						tagIndex.remove(removed);
+						recordChange(changes -> changes.removed(removed));
+					}
+				}
+			}
+			finally
+			{
+				imagesLock.writeLock().unlock();
+			}
 		}
 		for (Image image : deleted)
 			LOGGER.info("Image deleted from gallery: {}", image.getPath());
@@ -307,264 +564,1384 @@ public final class Gallery
 	
 	public Collection<Image> getImages(boolean includeUnsaved)
 	{
-		synchronized (images)
+		imagesLock.readLock().lock();
+		try
 		{
 			return imagesStream(includeUnsaved).toList();
 		}
+		finally
+		{
+			imagesLock.readLock().unlock();
+		}
 	}
 	
 	private Stream<Image> imagesStream(boolean includeUnsaved)
 	{
-		return includeUnsaved ? Stream.concat(images.stream(), unsavedImages().values().stream()) : images.stream();
+		return includeUnsaved ? Stream.concat(images.stream(), unsavedImages.values().stream()) : images.stream();
 	}
 	
-	public Tag findTag(String tagName)
+	/**
+	 * Evaluate query against the bitmap index of all the images (saved or
+	 * not) and return the matching images.<br/>
+	 * The query sees a consistent state of the gallery: no image is added,
+	 * removed, moved or retagged while it runs. Queries don't block each other.
+	 * 
+	 * @param query build the bitmap of the images to return from the index
+	 * @return the images in the bitmap returned by query
+	 */
+	public List<Image> findImages(Function<? super ImageBitmapIndex, CompressedBitmap> query)
 	{
-		synchronized (tags)
+		imagesLock.readLock().lock();
+		try
+		{
+			CompressedBitmap result = query.apply(bitmapIndex);
+			
+			List<Image> found = new ArrayList<>(result.cardinality());
+			result.forEach(ordinal -> found.add(tagIndex.image(ordinal)));
+			return found;
+		}
+		finally
 		{
-			return tags.stream().filter(tag -> tag.getName().equals(tagName)).findAny().orElse(null);
+			imagesLock.readLock().unlock();
 		}
 	}
 	
-	public Tag getTag(String tagName)
+	/**
+	 * listener is called with the changes of the gallery once each batch is
+	 * over, without holding any lock of the gallery. The changes are published
+	 * one at a time, in the order their batch ended, and the thread closing a
+	 * batch waits for its change to be published (by itself or the thread
+	 * already publishing).<br/>
+	 * As batches coalesce changes and can be used by several threads for a
+	 * long time, a change can still be published after a later change made
+	 * by another batch: the listener MUST read the current state of the
+	 * gallery (ex: if an image is still in it) rather than rely on the order
+	 * of the changes. It MUST be thread safe.
+	 */
+	public void addChangeListener(Consumer<? super GalleryChange> listener)
 	{
-		String nTagName = Tag.normalize(tagName);
-		synchronized (tags)
-		{
-			return tags.stream().filter(tag -> tag.getName().equals(nTagName)).findAny().orElseGet(() ->
-			{
-				Tag newTag = new Tag(nTagName);
-				tags.add(newTag);
-				return newTag;
-			});
-		}
+		changeListeners.add(Objects.requireNonNull(listener, "listener"));
 	}
 	
-	public List<Tag> getTags()
+	public void removeChangeListener(Consumer<? super GalleryChange> listener)
 	{
-		return Collections.unmodifiableList(tags);
+		changeListeners.remove(listener);
 	}
-
-	public boolean renameTag(String sourceTagName, String targetTagName) {
-		Objects.requireNonNull(sourceTagName, "sourceTagName");
-		Objects.requireNonNull(targetTagName, "targetTagName");
-
-		synchronized (tags)
-		{
-			Tag sourceTag = findTag(sourceTagName);
-			if (sourceTag == null)
-				throw new IllegalArgumentException("tag " + sourceTagName + " not found");
-
-			Tag targetTag = findTag(targetTagName);
-			if (targetTag == null)
-			{
-				allTagReferences.forEach(TagReference::getTag);
-				sourceTag.name = Tag.normalize(targetTagName);
-
-				return false;
-			}
-			else // Merge
-			{
-				Tag unchecked = getTag("unchecked_tag");
-
-				for (TagReference tagRef : allTagReferences)
-				{
-					if (tagRef.getTag() == sourceTag)
-					{
-						boolean removeUnchecked =
-								sourceTag.getParents().contains(unchecked) &&
-								!targetTag.getParents().contains(unchecked);
-
-						HashSet<Tag> newParents = new HashSet<>();
-						newParents.addAll(sourceTag.getParents());
-						newParents.addAll(targetTag.getParents());
-						if (removeUnchecked)
-							newParents.remove(unchecked);
-						targetTag.setParents(newParents);
-					}
-				}
-				return true;
-			}
-		}
+	
+	/**
+	 * Create a batch not bound to any thread yet, to share between several
+	 * threads. MUST be closed.
+	 */
+	public ChangeBatch newChangeBatch()
+	{
+		return new ChangeBatch(this);
 	}
 	
-	public FileFolderOrder getDefaultSortOrder()
+	/**
+	 * Coalesce the changes made by the current thread until the returned scope
+	 * is closed, within the batch the thread is already bound to if any.
+	 */
+	public ChangeBatch.Scope batchChanges()
 	{
-		synchronized (sortOrder)
+		ChangeBatch batch = currentChangeBatch.get();
+		if (batch != null)
+			return batch.bind();
+		
+		try (ChangeBatch newBatch = newChangeBatch())
 		{
-			return defaultSortOrder;
+			return newBatch.bind();
 		}
 	}
 	
-	public void setDefaultSortOrder(FileFolderOrder defaultSortOrder)
+	/*
+	 * Bind the current thread to batch (or unbind it if null), return the
+	 * previous one
+	 */
+	ChangeBatch bindChangeBatch(ChangeBatch batch)
 	{
-		synchronized (sortOrder)
-		{
-			this.defaultSortOrder = defaultSortOrder;
-		}
+		ChangeBatch previous = currentChangeBatch.get();
+		if (batch == null)
+			currentChangeBatch.remove();
+		else
+			currentChangeBatch.set(batch);
+		return previous;
 	}
 	
-	public FileFolderOrder getSortOrder(Path path)
+	/*
+	 * MUST be called within batchChanges()
+	 */
+	private void recordChange(Consumer<GalleryChange.Builder> change)
 	{
-		synchronized (sortOrder)
-		{
-			if (path == null)
-				return defaultSortOrder;
-			
-			path = toRelativePath(path);
-			
-			FileFolderOrder order = sortOrder.get(path);
-			return order != null ? order : getSubDirectoriesSortOrder(path.getParent());
-		}
+		modificationCount.incrementAndGet();
+		currentChangeBatch.get().record(change);
 	}
 	
-	public void setSortOrder(Path path, FileFolderOrder order)
+	/**
+	 * @return a counter incremented by every change of the gallery (images,
+	 *         tags, settings...), after the change is made. A result computed
+	 *         from the gallery is still valid as long as it doesn't change.
+	 */
+	public long getModificationCount()
 	{
-		synchronized (sortOrder)
-		{
-			if (order == null)
-				sortOrder.remove(toRelativePath(path));
-			else
-				sortOrder.put(toRelativePath(path), order);
-		}
+		return modificationCount.get();
 	}
 	
-	public boolean isOrderInherited(Path path)
+	/**
+	 * To call once an artist, downloader configuration, script or the slide
+	 * show parameters were edited, so the change is saved. MUST NOT be called
+	 * while holding a lock of the gallery.
+	 */
+	public void settingsChanged()
 	{
-		synchronized (sortOrder)
+		try (ChangeBatch.Scope scope = batchChanges())
 		{
-			return !sortOrder.containsKey(toRelativePath(path));
+			recordChange(GalleryChange.Builder::settingsChanged);
 		}
 	}
 	
-	public FileFolderOrder getSubDirectoriesSortOrder(Path path)
+	/*
+	 * Called by ChangeBatch once over, without holding any lock of the gallery
+	 */
+	void publishChange(GalleryChange change)
 	{
-		synchronized (sortOrder)
+		synchronized (changesToPublish)
 		{
-			if (path == null)
-				return defaultSortOrder;
+			changesToPublish.add(change);
+			long sequence = ++nbChangesQueued;
 			
-			path = toRelativePath(path);
+			// A listener changing the gallery: published right after the current change
+			if (publishingThread == Thread.currentThread())
+				return;
 			
-			FileFolderOrder order = sortOrder.get(path.resolve(PATH_WILDCARD));
+			while (publishingThread != null && nbChangesPublished < sequence)
+			{
+				try
+				{
+					changesToPublish.wait();
+				}
+				catch (InterruptedException e)
+				{
+					// Published anyway, by the thread already publishing
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			if (nbChangesPublished >= sequence)
+				return;
 			
-			return order != null ? order : getSortOrder(path);
+			publishingThread = Thread.currentThread();
+		}
+		
+		try
+		{
+			GalleryChange next;
+			while (true)
+			{
+				synchronized (changesToPublish)
+				{
+					next = changesToPublish.poll();
+					if (next == null)
+						return;
+				}
+				
+				notifyListeners(next);
+				
+				synchronized (changesToPublish)
+				{
+					nbChangesPublished++;
+					changesToPublish.notifyAll();
+				}
+			}
+		}
+		finally
+		{
+			synchronized (changesToPublish)
+			{
+				publishingThread = null;
+				changesToPublish.notifyAll();
+			}
 		}
 	}
 	
-	public void setSubDirectoriesSortOrder(Path path, FileFolderOrder order)
+	private void notifyListeners(GalleryChange change)
 	{
-		synchronized (sortOrder)
+		for (Consumer<? super GalleryChange> listener : changeListeners)
 		{
-			if (order == null)
-				sortOrder.remove(toRelativePath(path).resolve(PATH_WILDCARD));
-			else
-				sortOrder.put(toRelativePath(path).resolve(PATH_WILDCARD), order);
+			try
+			{
+				listener.accept(change);
+			}
+			catch (Exception e)
+			{
+				LOGGER.error("Error in gallery change listener " + listener, e);
+			}
 		}
 	}
 	
-	public boolean isSubDirectoriesOrderInherited(Path path)
+	public Tag findTag(String tagName)
 	{
-		synchronized (sortOrder)
+		synchronized (tags)
 		{
-			return !sortOrder.containsKey(toRelativePath(path).resolve(PATH_WILDCARD));
+			return tagDictionary.get(tagName);
 		}
 	}
 	
-	public List<Script> getScripts()
+	/**
+	 * @return the tags whose name matches pattern, sorted by name
+	 */
+	public List<Tag> findTags(TagPattern pattern)
 	{
-		synchronized (scripts)
+		synchronized (tags)
 		{
-			return Collections.unmodifiableList(scripts);
+			return tagDictionary.find(pattern);
 		}
 	}
 	
-	public Script newScript()
+	/**
+	 * @param normalizedText normalized with {@link Tag#normalize(String)}, or
+	 *            empty to get the most used tags
+	 * @return the limit best tags whose name contains normalizedText: by
+	 *         position of normalizedText in the name, then the most used
+	 *         first, then by name
+	 */
+	public List<Tag> autocompleteTags(String normalizedText, int limit)
 	{
-		synchronized (scripts)
+		imagesLock.readLock().lock();
+		try
 		{
-			Script script = new Script();
-			scripts.add(script);
-			return script;
+			synchronized (tags)
+			{
+				return tagDictionary.findContaining(normalizedText, limit, tagIndex::usage);
+			}
+		}
+		finally
+		{
+			imagesLock.readLock().unlock();
 		}
 	}
 	
-	public void deleteScript(Script script)
+	/**
+	 * @return the limit tags the most often explicitly found on the same
+	 *         images as some of tags (not among them), the most related first
+	 */
+	public List<Tag> relatedTags(Collection<Tag> tags, int limit)
 	{
-		synchronized (scripts)
+		int[] tagIds = tags.stream().mapToInt(Tag::getId).filter(id -> id >= 0).toArray();
+		int[] relatedIds;
+	
+		imagesLock.readLock().lock();
+		try
 		{
-			scripts.remove(script);
+			relatedIds = tagIndex.relatedTags(tagIds, limit);
 		}
-	}
-
-	public void move(Path source, Path target)
-	{
-		final Path fSource = toAbsolutePath(source);
-		final Path fTarget = toAbsolutePath(target);
-		
-		synchronized (images)
+		finally
 		{
-			synchronized (sortOrder)
-			{
-				Collection<Image> allImages = getImages(true);
-				Map<Path, Image> pathToImage = allImages.stream()
-				                                        .collect(Collectors.toMap(i -> i.getAbsolutePath(), i -> i));
-				
-				for (Image image : allImages)
-				{
-					Path path = image.getAbsolutePath();
-					if (path.startsWith(fSource))
+			imagesLock.readLock().unlock();
+		}
+	
+		List<Tag> result = new ArrayList<>(relatedIds.length);
+		for (int relatedId : relatedIds)
+		{
+			Tag tag = findTag(relatedId);
+			if (tag != null)
+				result.add(tag);
+		}
+		return result;
+	}
+	
+	/**
+	 * Return null if not found
+	 * 
+	 * @param tagId the id of the tag (see {@link Tag#getId()})
+	 * @return the tag
+	 */
+	public Tag findTag(int tagId)
+	{
+		synchronized (tags)
+		{
+			return tagDictionary.get(tagId);
+		}
+	}
+	
+	public Tag getTag(String tagName)
+	{
+		String nTagName = Tag.normalize(tagName);
+		synchronized (tags)
+		{
+			Tag tag = tagDictionary.get(nTagName);
+			if (tag == null)
+			{
+				tag = new Tag(nTagName);
+				tags.add(tag);
+				tagDictionary.register(tag);
+			}
+			return tag;
+		}
+	}
+	
+	public List<Tag> getTags()
+	{
+		return Collections.unmodifiableList(tags);
+	}
+	
+	List<Tag> getTagsSnapshot()
+	{
+		synchronized (tags)
+		{
+			return new ArrayList<>(tags);
+		}
+	}
+	
+	int getTagHierarchyVersion()
+	{
+		return tagHierarchyVersion.get();
+	}
+	
+	int getTagColorVersion()
+	{
+		return tagColorVersion.get();
+	}
+	
+	/*
+	 * The ids of the tag and all its ancestors. MUST NOT be modified
+	 */
+	CompressedBitmap getTagAncestors(int tagId)
+	{
+		synchronized (tags)
+		{
+			Tag tag = tagDictionary.get(tagId);
+			return tag == null ? new CompressedBitmap() : tagAncestors.selfAndAncestors(tag);
+		}
+	}
+	
+	/*
+	 * Called while deserializing the images, when the tags may not be loaded
+	 * yet. The returned id is temporary, postConstruct replace it by the
+	 * actual id of the tag.
+	 */
+	int loadedTagId(String tagName)
+	{
+		if (loadedTagNames == null)
+			throw new IllegalStateException("Gallery already loaded");
+		
+		return loadedTagIds.computeIfAbsent(tagName, name ->
+		{
+			loadedTagNames.add(name);
+			return loadedTagNames.size() - 1;
+		});
+	}
+	
+	/*
+	 * Called by BinaryGallerySnapshot, which reads the images and tags itself
+	 * and the other properties with the JSON deserializer
+	 */
+	void setLoadedImagesAndTags(ArrayList<Image> images, ArrayList<Tag> tags)
+	{
+		this.images = images;
+		this.tags = tags;
+	}
+	
+	/*
+	 * Called by the references once constructed. While the gallery is loaded,
+	 * they're kept aside for postConstruct to resolve them all at once
+	 */
+	void registerReference(ImageReference ref)
+	{
+		if (loadedImageReferences != null)
+			loadedImageReferences.add(ref);
+		else
+			allImageReferences.add(ref);
+	}
+	
+	void registerReference(TagReference ref)
+	{
+		if (loadedTagReferences != null)
+			loadedTagReferences.add(ref);
+		else
+			allTagReferences.add(ref);
+	}
+	
+	/*
+	 * Called by Tag to change its parents. The queries read the ancestors of
+	 * the images under the lock of images: the parents and the versions change
+	 * together under its write lock, as the tags of the images do
+	 */
+	void changeTagParents(Tag tag, Runnable change)
+	{
+		try (ChangeBatch.Scope scope = batchChanges())
+		{
+			imagesLock.writeLock().lock();
+			try
+			{
+				change.run();
+				tagHierarchyVersion.incrementAndGet();
+				tagColorVersion.incrementAndGet();
+				recordChange(changes ->
+				{
+					changes.tagHierarchyChanged();
+					changes.tagChanged(tag);
+				});
+			}
+			finally
+			{
+				imagesLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/*
+	 * Called by Tag when its color changes
+	 */
+	void tagColorChanged(Tag tag)
+	{
+		try (ChangeBatch.Scope scope = batchChanges())
+		{
+			tagColorVersion.incrementAndGet();
+			recordChange(changes -> changes.tagChanged(tag));
+		}
+	}
+	
+	/*
+	 * Tags are never removed: the ids of the tags created since a given
+	 * bound are in [bound, getTagIdBound()[
+	 */
+	int getTagIdBound()
+	{
+		synchronized (tags)
+		{
+			return tagDictionary.idBound();
+		}
+	}
+
+	/**
+	 * Rename a tag, or merge it into the target tag if it already exists (see
+	 * {@link #renameTags(Map)})
+	 *
+	 * @return true if merged
+	 */
+	public boolean renameTag(String sourceTagName, String targetTagName)
+	{
+		Objects.requireNonNull(sourceTagName, "sourceTagName");
+		Objects.requireNonNull(targetTagName, "targetTagName");
+		
+		try (ChangeBatch.Scope scope = batchChanges())
+		{
+			// Same locks as renameTags so the target can't be created meanwhile
+			imagesLock.writeLock().lock();
+			try
+			{
+				synchronized (tags)
+				{
+					// Normalized as by applyRenames
+					Tag sourceTag = tagDictionary.get(Tag.normalize(sourceTagName));
+					Tag targetTag = tagDictionary.get(Tag.normalize(targetTagName));
+					renameTags(Map.of(sourceTagName, targetTagName));
+					return targetTag != null && targetTag != sourceTag;
+				}
+			}
+			finally
+			{
+				imagesLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Apply a whole plan of renames at once, in its iteration order: each
+	 * source tag is renamed to its target, or merged into it if the target
+	 * already exists. Merging moves the images and the children of the source
+	 * to the target, which also gets the parents of the source (but
+	 * unchecked_tag if the target isn't unchecked). The source is kept,
+	 * unused. Merges are chained: a -> b then b -> c moves the images of a to c.<br/>
+	 * Only the images explicitly tagged with a merged tag are retagged, each
+	 * one once, and all the changes are published as a single one.
+	 *
+	 * @param plan source tag name -> target tag name
+	 * @return the number of images retagged
+	 * @throws IllegalArgumentException if a source tag doesn't exist, if a
+	 *             target name is invalid, or if a merge would create a cycle
+	 *             of parents. That entry changes nothing but the previous
+	 *             entries of the plan are applied: their children moved and
+	 *             their images retagged.
+	 */
+	public int renameTags(Map<String, String> plan)
+	{
+		Objects.requireNonNull(plan, "plan");
+		
+		// Publish the change after releasing the locks
+		try (ChangeBatch.Scope scope = batchChanges())
+		{
+			// Retagging the images needs the tags, never the reverse
+			imagesLock.writeLock().lock();
+			try
+			{
+				AppliedRenames applied;
+				synchronized (tags)
+				{
+					applied = applyRenames(plan);
+				}
+				int nbRetagged = applied.mergedInto() == null ? 0 : retagMergedImages(applied.mergedInto());
+				if (applied.failure() != null)
+					throw applied.failure();
+				return nbRetagged;
+			}
+			finally
+			{
+				imagesLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/*
+	 * mergedInto: the final tag of each merged tag (by id, -1 if not merged),
+	 * or null if none. failure: the invalid entry of the plan which stopped it,
+	 * or null
+	 */
+	private record AppliedRenames(int[] mergedInto, IllegalArgumentException failure)
+	{
+	}
+	
+	/*
+	 * Rename and merge the tags, holding the lock of tags. An invalid entry
+	 * stops the plan but the children of the tags merged before are still moved
+	 */
+	private AppliedRenames applyRenames(Map<String, String> plan)
+	{
+		int[] mergedInto = null;
+		// Ids i such as mergedInto[i] >= 0
+		BitSet merged = new BitSet();
+		boolean referencesResolved = false;
+		Tag unchecked = findTag("unchecked_tag");
+		IllegalArgumentException failure = null;
+		
+		try
+		{
+			for (Entry<String, String> entry : plan.entrySet())
+			{
+				Tag sourceTag = tagDictionary.get(Tag.normalize(entry.getKey()));
+				if (sourceTag == null)
+					throw new IllegalArgumentException("tag " + entry.getKey() + " not found");
+				
+				String targetTagName = Tag.normalize(entry.getValue());
+				if (targetTagName == null)
+					throw new IllegalArgumentException("Invalid tag name " + entry.getValue());
+				
+				Tag targetTag = tagDictionary.get(targetTagName);
+				if (targetTag == sourceTag)
+					continue;
+				
+				if (targetTag == null)
+				{
+					// Images hold tag ids, only the references by name need to be resolved before
+					if (!referencesResolved)
 					{
-						Path newPath = fTarget.resolve(fSource.relativize(path));
-						Image existing = pathToImage.get(newPath);
-						if (existing != null)
-						{
-							images.remove(existing);
-							unsavedImages().remove(existing.getPath());
-						}
-						
-						image.move(toRelativePath(newPath));
+						allTagReferences.forEach(TagReference::getTag);
+						referencesResolved = true;
 					}
+					tagDictionary.rename(sourceTag, targetTagName);
+					recordChange(changes ->
+					{
+						changes.tagHierarchyChanged();
+						changes.tagChanged(sourceTag);
+					});
+					continue;
 				}
 				
-				Map<Path, Path> mapping = new HashMap<>();
-				for (Path path : sortOrder.keySet())
+				// Merge, checked before changing anything
+				Tag cycleParent = findMergeCycle(sourceTag, targetTag, mergedInto);
+				if (cycleParent != null)
+					throw new IllegalArgumentException("Cannot merge " + sourceTag.getName() + " into " + targetTag.getName()
+					        + " as " + cycleParent.getName() + " would be both a parent and a child of "
+					        + targetTag.getName());
+				
+				boolean removeUnchecked = unchecked != null
+				        && sourceTag.getParents().contains(unchecked)
+				        && !targetTag.getParents().contains(unchecked);
+				
+				HashSet<Tag> newParents = new HashSet<>();
+				newParents.addAll(sourceTag.getParents());
+				newParents.addAll(targetTag.getParents());
+				newParents.remove(targetTag);
+				if (removeUnchecked)
+					newParents.remove(unchecked);
+				targetTag.setParents(newParents);
+				
+				// Resolving the references may have created tags
+				if (mergedInto == null || mergedInto.length < tagDictionary.idBound())
 				{
-					path = toAbsolutePath(path);
-					if (path.startsWith(fSource))
-						mapping.put(path, fTarget.resolve(fSource.relativize(path)));
+					int previousLength = mergedInto == null ? 0 : mergedInto.length;
+					mergedInto = mergedInto == null ? new int[tagDictionary.idBound()]
+					        : Arrays.copyOf(mergedInto, tagDictionary.idBound());
+					Arrays.fill(mergedInto, previousLength, mergedInto.length, -1);
 				}
-				
-				for (Entry<Path, Path> entry : mapping.entrySet())
-					sortOrder.put(toRelativePath(entry.getValue()), sortOrder.remove(toRelativePath(entry.getKey())));
+				// Kept resolved: the tags merged into the source before follow it
+				int sourceId = sourceTag.getId();
+				int targetId = targetTag.getId();
+				for (int tagId = merged.nextSetBit(0) ; tagId >= 0 ; tagId = merged.nextSetBit(tagId + 1))
+				{
+					if (mergedInto[tagId] == sourceId)
+						mergedInto[tagId] = targetId;
+					// The target was merged into the source before: it gets everything back
+					if (mergedInto[tagId] == tagId)
+					{
+						mergedInto[tagId] = -1;
+						merged.clear(tagId);
+					}
+				}
+				// Unless already merged: its own images were moved then
+				if (mergedInto[sourceId] < 0)
+				{
+					mergedInto[sourceId] = targetId;
+					merged.set(sourceId);
+				}
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			failure = e;
+		}
+		
+		if (mergedInto == null)
+			return new AppliedRenames(null, failure);
+		
+		// The children of the merged tags become children of their targets
+		for (Tag tag : tags)
+		{
+			boolean parentMerged = false;
+			HashSet<Tag> newParents = new HashSet<>();
+			for (Tag parent : tag.getParents())
+			{
+				int parentId = parent.getId();
+				if (parentId >= 0 && parentId < mergedInto.length && mergedInto[parentId] >= 0)
+				{
+					parentMerged = true;
+					parent = tagDictionary.get(mergedInto[parentId]);
+				}
+				if (parent != tag)
+					newParents.add(parent);
+			}
+			if (parentMerged)
+				tag.setParents(newParents);
+		}
+		
+		return new AppliedRenames(mergedInto, failure);
+	}
+	
+	/*
+	 * Merging source into target creates a cycle if a parent of either one
+	 * (but them) has either one as ancestor, the tags merged before counting
+	 * as their target (their children are only moved at the end of the plan).
+	 * Return that parent, or null if none
+	 */
+	private Tag findMergeCycle(Tag sourceTag, Tag targetTag, int[] mergedInto)
+	{
+		Function<Tag, Tag> finalTag = tag ->
+		{
+			int tagId = tag.getId();
+			return (mergedInto != null && tagId >= 0 && tagId < mergedInto.length && mergedInto[tagId] >= 0)
+			        ? tagDictionary.get(mergedInto[tagId])
+			        : tag;
+		};
+		
+		// Ancestor -> the parent of source or target it was reached from
+		Map<Tag, Tag> reachedFrom = new HashMap<>();
+		ArrayDeque<Tag> toVisit = new ArrayDeque<>();
+		Consumer<Tag> addParent = parent ->
+		{
+			parent = finalTag.apply(parent);
+			if (parent != sourceTag && parent != targetTag && reachedFrom.putIfAbsent(parent, parent) == null)
+				toVisit.add(parent);
+		};
+		sourceTag.forEachParent(addParent);
+		targetTag.forEachParent(addParent);
+		
+		Tag tag;
+		while ((tag = toVisit.poll()) != null)
+		{
+			Tag from = reachedFrom.get(tag);
+			Tag[] cycleParent = { null };
+			tag.forEachParent(ancestor ->
+			{
+				ancestor = finalTag.apply(ancestor);
+				if (ancestor == sourceTag || ancestor == targetTag)
+					cycleParent[0] = from;
+				else if (reachedFrom.putIfAbsent(ancestor, from) == null)
+					toVisit.add(ancestor);
+			});
+			if (cycleParent[0] != null)
+				return cycleParent[0];
+		}
+		return null;
+	}
+	
+	/*
+	 * Replace the merged tags of the images, holding the write lock of images.
+	 * Only the images explicitly tagged with a merged tag are visited
+	 */
+	private int retagMergedImages(int[] mergedInto)
+	{
+		CompressedBitmap affected = new CompressedBitmap();
+		for (int tagId = 0 ; tagId < mergedInto.length ; tagId++)
+			if (mergedInto[tagId] >= 0)
+				affected.orWith(tagIndex.imagesWithExplicitTag(tagId));
+		
+		int[] nbRetagged = { 0 };
+		affected.forEach(ordinal ->
+		{
+			Image image = tagIndex.image(ordinal);
+			int[] previousTagIds = image.replaceTags(mergedInto);
+			if (previousTagIds == null)
+				return;
+			
+			int[] tagIds = image.getTagIds();
+			for (int tagId : previousTagIds)
+				if (Arrays.binarySearch(tagIds, tagId) < 0)
+					tagIndex.tagRemoved(image, findTag(tagId));
+			for (int tagId : tagIds)
+				if (Arrays.binarySearch(previousTagIds, tagId) < 0)
+					tagIndex.tagAdded(image, findTag(tagId));
+			
+			recordChange(changes -> changes.retagged(image));
+			nbRetagged[0]++;
+		});
+		
+		LOGGER.info("Tags merged: {} images retagged", nbRetagged[0]);
+		return nbRetagged[0];
+	}
+	
+	public FileFolderOrder getDefaultSortOrder()
+	{
+		synchronized (sortOrder)
+		{
+			return defaultSortOrder;
+		}
+	}
+	
+	public void setDefaultSortOrder(FileFolderOrder defaultSortOrder)
+	{
+		synchronized (sortOrder)
+		{
+			this.defaultSortOrder = defaultSortOrder;
+		}
+		settingsChanged();
+	}
+	
+	public FileFolderOrder getSortOrder(Path path)
+	{
+		synchronized (sortOrder)
+		{
+			if (path == null)
+				return defaultSortOrder;
+			
+			path = toRelativePath(path);
+			
+			FileFolderOrder order = sortOrder.get(path);
+			return order != null ? order : getSubDirectoriesSortOrder(path.getParent());
+		}
+	}
+	
+	public void setSortOrder(Path path, FileFolderOrder order)
+	{
+		synchronized (sortOrder)
+		{
+			if (order == null)
+				sortOrder.remove(toRelativePath(path));
+			else
+				sortOrder.put(toRelativePath(path), order);
+		}
+		settingsChanged();
+	}
+	
+	public boolean isOrderInherited(Path path)
+	{
+		synchronized (sortOrder)
+		{
+			return !sortOrder.containsKey(toRelativePath(path));
+		}
+	}
+	
+	public FileFolderOrder getSubDirectoriesSortOrder(Path path)
+	{
+		synchronized (sortOrder)
+		{
+			if (path == null)
+				return defaultSortOrder;
+			
+			path = toRelativePath(path);
+			
+			FileFolderOrder order = sortOrder.get(path.resolve(PATH_WILDCARD));
+			
+			return order != null ? order : getSortOrder(path);
+		}
+	}
+	
+	public void setSubDirectoriesSortOrder(Path path, FileFolderOrder order)
+	{
+		synchronized (sortOrder)
+		{
+			if (order == null)
+				sortOrder.remove(toRelativePath(path).resolve(PATH_WILDCARD));
+			else
+				sortOrder.put(toRelativePath(path).resolve(PATH_WILDCARD), order);
+		}
+		settingsChanged();
+	}
+	
+	public boolean isSubDirectoriesOrderInherited(Path path)
+	{
+		synchronized (sortOrder)
+		{
+			return !sortOrder.containsKey(toRelativePath(path).resolve(PATH_WILDCARD));
+		}
+	}
+	
+	public List<Script> getScripts()
+	{
+		synchronized (scripts)
+		{
+			return Collections.unmodifiableList(scripts);
+		}
+	}
+	
+	public Script newScript()
+	{
+		Script script = new Script();
+		synchronized (scripts)
+		{
+			scripts.add(script);
+		}
+		settingsChanged();
+		return script;
+	}
+	
+	public void deleteScript(Script script)
+	{
+		synchronized (scripts)
+		{
+			scripts.remove(script);
+		}
+		settingsChanged();
+	}
+
+	public void move(Path source, Path target)
+	{
+		final Path fSource = toAbsolutePath(source);
+		final Path fTarget = toAbsolutePath(target);
+		
+		try (ChangeBatch.Scope scope = batchChanges())
+		{
+			imagesLock.writeLock().lock();
+			try
+			{
+				synchronized (sortOrder)
+				{
+					Collection<Image> imagesToMove = findImagesIn(fSource, true);
+					
+					// Resolve the images overwritten before moving anything
+					Map<Image, Path> newPaths = new IdentityHashMap<>(imagesToMove.size());
+					List<Image> overwritten = new ArrayList<>();
+					for (Image image : imagesToMove)
+						newPaths.put(image, toRelativePath(fTarget.resolve(fSource.relativize(image.getAbsolutePath()))));
+					
+					for (Path newPath : newPaths.values())
+					{
+						Image existing = savedImagesByPath.get(newPath);
+						if (existing != null && !newPaths.containsKey(existing))
+							overwritten.add(existing);
+						existing = unsavedImages.get(newPath);
+						if (existing != null && !newPaths.containsKey(existing))
+							overwritten.add(existing);
+					}
+					
+					for (Image existing : overwritten)
+					{
+						if (images.remove(existing))
+							imagesById.remove(existing.getId());
+						PathIndex index = existing.isSaved() ? savedImagesByPath : unsavedImages;
+						if (index.get(existing.getPath()) == existing)
+							index.remove(existing.getPath());
+						tagIndex.remove(existing);
+						recordChange(changes -> changes.removed(existing));
+					}
+					
+					// Their new paths may be the current paths of each other
+					for (Image image : imagesToMove)
+						setImagePath(image, newPaths.get(image));
+					
+					Map<Path, Path> mapping = new HashMap<>();
+					for (Path path : sortOrder.keySet())
+					{
+						path = toAbsolutePath(path);
+						if (path.startsWith(fSource))
+							mapping.put(path, fTarget.resolve(fSource.relativize(path)));
+					}
+					
+					for (Entry<Path, Path> entry : mapping.entrySet())
+						sortOrder.put(toRelativePath(entry.getValue()), sortOrder.remove(toRelativePath(entry.getKey())));
+					if (!mapping.isEmpty())
+						recordChange(GalleryChange.Builder::settingsChanged);
+				}
+			}
+			finally
+			{
+				imagesLock.writeLock().unlock();
 			}
 		}
 	}
 	
 	public void compactIds()
 	{
-		synchronized (images)
-		{
-//			java.util.Map<Path, java.nio.file.attribute.FileTime> time = new java.util.HashMap<>(images.size());
-//			for (Image image : images)
-//				try
-//				{
-//					time.put(image.getPath(), java.nio.file.Files.getLastModifiedTime(toAbsolutePath(image.getPath())));
-//				}
-//				catch (java.io.IOException e)
-//				{
-//					e.printStackTrace();
-//				}
-//			images.sort(java.util.Comparator.comparing(i -> time.get(i.getPath())));
-			
-			// Force all references to load their image so updating image.id will update
-			// the reference
-			for (ImageReference ref : allImageReferences)
-				ref.getImage();
-			
-			nextId = 1;
-			for (Image image : images)
-				image.id = nextId++;
+		// The journal keys the images by id: the next save MUST be a snapshot
+		try (ChangeBatch.Scope scope = batchChanges())
+		{
+			imagesLock.writeLock().lock();
+			try
+			{
+//				java.util.Map<Path, java.nio.file.attribute.FileTime> time = new java.util.HashMap<>(images.size());
+//				for (Image image : images)
+//					try
+//					{
+//						time.put(image.getPath(), java.nio.file.Files.getLastModifiedTime(toAbsolutePath(image.getPath())));
+//					}
+//					catch (java.io.IOException e)
+//					{
+//						e.printStackTrace();
+//					}
+//				images.sort(java.util.Comparator.comparing(i -> time.get(i.getPath())));
+				
+				// The mappings not parsed yet would keep the old ids
+				for (Artist artist : artists)
+					for (Downloader autoDownloader : artist.getAutodownloaders())
+						autoDownloader.loadMapping();
+				
+				// Force all references to load their image so updating image.id will update
+				// the reference
+				for (ImageReference ref : allImageReferences)
+					ref.getImage();
+				
+				nextId = 1;
+				for (Image image : images)
+					image.id = nextId++;
+				
+				rebuildImageIdIndex();
+				
+				synchronized (downloadersByImageId)
+				{
+					downloadersByImageId.clear();
+				}
+				for (Artist artist : artists)
+					for (Downloader autoDownloader : artist.getAutodownloaders())
+						autoDownloader.registerMapping();
+			}
+			finally
+			{
+				imagesLock.writeLock().unlock();
+			}
+			recordChange(GalleryChange.Builder::settingsChanged);
+		}
+	}
+	
+	private void resolveLoadedImageTags()
+	{
+		int[] actualIds = new int[loadedTagNames.size()];
+		for (int i = 0 ; i < actualIds.length ; i++)
+			actualIds[i] = getTag(loadedTagNames.get(i)).getId();
+		
+		for (Image image : images)
+			image.resolveLoadedTags(actualIds);
+		
+		loadedTagNames = null;
+		loadedTagIds = null;
+	}
+	
+	/**
+	 * Apply the last state of the images, tags and downloaders saved in the
+	 * journal, between deserialization and postConstruct.
+	 * 
+	 * @param journaledImages by id, null if deleted
+	 * @param journaledTags replace the tags of the same name
+	 * @param journaledDownloaders replace the downloaders of the same type and creator
+	 */
+	void replayJournal(Map<Long, Image> journaledImages,
+	                   Collection<Tag> journaledTags,
+	                   Collection<Downloader> journaledDownloaders)
+	{
+		if (images == null)
+			images = new ArrayList<>();
+		if (tags == null)
+			tags = new ArrayList<>();
+		
+		Map<Long, Image> remainingImages = new LinkedHashMap<>(journaledImages);
+		ListIterator<Image> imageIt = images.listIterator();
+		while (imageIt.hasNext())
+		{
+			long id = imageIt.next().getId();
+			if (!remainingImages.containsKey(id))
+				continue;
+			
+			Image journaledImage = remainingImages.remove(id);
+			if (journaledImage == null)
+				imageIt.remove();
+			else
+				imageIt.set(journaledImage);
+		}
+		for (Image image : remainingImages.values())
+			if (image != null)
+				images.add(image);
+		
+		Map<String, Tag> remainingTags = new LinkedHashMap<>();
+		for (Tag tag : journaledTags)
+			remainingTags.put(tag.getName(), tag);
+		tags.replaceAll(tag -> Utils.coalesce(remainingTags.remove(tag.getName()), tag));
+		tags.addAll(remainingTags.values());
+		
+		if (artists != null)
+			for (Downloader journaledDownloader : journaledDownloaders)
+				for (Artist artist : artists)
+					if (artist.autodownloaders != null)
+						artist.autodownloaders.replaceAll(downloader ->
+								downloader.getType() == journaledDownloader.getType()
+								&& Objects.equals(downloader.getCreatorId(), journaledDownloader.getCreatorId())
+								? journaledDownloader : downloader);
+	}
+	
+	/*
+	 * Only the references not resolved yet need to be tracked (see
+	 * renameTag() and compactIds())
+	 */
+	private void resolveLoadedReferences()
+	{
+		for (TagReference ref : loadedTagReferences)
+			if (!ref.resolveLoaded())
+				allTagReferences.add(ref);
+		
+		for (ImageReference ref : loadedImageReferences)
+			if (!ref.resolveLoaded())
+				allImageReferences.add(ref);
+		
+		loadedTagReferences = null;
+		loadedImageReferences = null;
+	}
+	
+	private void rebuildTagImageIndex()
+	{
+		tagIndex = new TagImageIndex(this);
+		for (Image image : images)
+			tagIndex.add(image);
+	}
+	
+	private void rebuildTagDictionary()
+	{
+		tagDictionary = new TagDictionary(tags.size());
+		for (Tag tag : tags)
+			if (!tagDictionary.register(tag))
+				LOGGER.warn("Duplicate tag {}", tag.getName());
+	}
+	
+	private void rebuildImagePathIndex()
+	{
+		savedImagesByPath = new PathIndex();
+		for (Image image : images)
+			savedImagesByPath.put(image.getPath(), image);
+	}
+	
+	private void rebuildImageIdIndex()
+	{
+		imagesById = new LongObjectHashMap<>(images.size());
+		for (Image image : images)
+		{
+			// Keep the first one, like the linear search used to
+			if (imagesById.containsKey(image.getId()))
+				LOGGER.warn("Duplicate image id {}: {}", image.getId(), image.getPath());
+			else
+				imagesById.put(image.getId(), image);
+		}
+	}
+	
+	private class BitmapIndexView implements ImageBitmapIndex
+	{
+		@Override
+		public CompressedBitmap allImages()
+		{
+			return tagIndex.allImages();
+		}
+		
+		@Override
+		public CompressedBitmap imagesWithTag(String normalizedTagName)
+		{
+			return tagIndex.imagesWithTag(findTag(normalizedTagName));
+		}
+		
+		@Override
+		public CompressedBitmap imagesIn(Path path)
+		{
+			CompressedBitmap result = new CompressedBitmap();
+			for (Image image : findImagesIn(path, true))
+				if (image.ordinal >= 0)
+					result.add(image.ordinal);
+			return result;
+		}
+		
+		@Override
+		public CompressedBitmap imagesWithTagMatching(TagPattern pattern)
+		{
+			CompressedBitmap result = new CompressedBitmap();
+			for (Tag tag : findTags(pattern))
+				result.orWith(tagIndex.imagesWithTag(tag));
+			return result;
+		}
+		
+		@Override
+		public CompressedBitmap imagesWithPathContaining(String normalizedText)
+		{
+			return tagIndex.imagesWithPathContaining(normalizedText);
+		}
+		
+		@Override
+		public CompressedBitmap imagesMaybeWithPathContaining(String normalizedText)
+		{
+			return tagIndex.imagesMaybeWithPathContaining(normalizedText);
+		}
+		
+		@Override
+		public CompressedBitmap imagesMatching(CompressedBitmap candidates, Predicate<? super Image> predicate)
+		{
+			return tagIndex.imagesMatching(candidates, predicate);
+		}
+		
+		@Override
+		public Image image(int ordinal)
+		{
+			return tagIndex.image(ordinal);
+		}
+	}
+	
+	/**
+	 * Streaming (de)serializer of the gallery, read into the gallery of the
+	 * injection context.<br/>
+	 * Artists, images and tags (the bulk of the file) are (de)serialized by
+	 * hand: they're built with the gallery given directly rather than each one
+	 * injected by reflection, and their references to tags and images are
+	 * resolved at once by {@link Gallery#postConstruct(Path)}. The other
+	 * properties are small and delegated to gson.
+	 */
+	public static class GalleryTypeAdapterFactory implements TypeAdapterFactory
+	{
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type)
+		{
+			return type.getRawType() == Gallery.class ? (TypeAdapter<T>) new GalleryTypeAdapter(gson) : null;
+		}
+	}
+	
+	private static class GalleryTypeAdapter extends TypeAdapter<Gallery>
+	{
+		//@formatter:off
+		private static final Type SORT_ORDER_TYPE = new TypeToken<HashMap<Path, FileFolderOrder>>(){}.getType();
+		private static final Type CUSTOM_SORT_BY_TYPE = new TypeToken<HashMap<String, SortBy>>(){}.getType();
+		//@formatter:on
+		
+		private final Gson gson;
+		private final TypeAdapter<Path> pathAdapter;
+		private final TypeAdapter<Downloader> downloaderAdapter;
+		private final TypeAdapter<FileFolderOrder> fileFolderOrderAdapter;
+		private final TypeAdapter<JsonElement> jsonAdapter;
+		private final TypeAdapter<SlideShowParameters> slideShowParameterAdapter;
+		private final TypeAdapter<ArrayList<Script>> scriptsAdapter;
+		private final GsonContext context;
+		
+		GalleryTypeAdapter(Gson gson)
+		{
+			this.gson = gson;
+			this.pathAdapter = gson.getAdapter(Path.class);
+			this.downloaderAdapter = gson.getAdapter(Downloader.class);
+			this.fileFolderOrderAdapter = gson.getAdapter(FileFolderOrder.class);
+			this.jsonAdapter = gson.getAdapter(JsonElement.class);
+			this.slideShowParameterAdapter = gson.getAdapter(SlideShowParameters.class);
+			this.scriptsAdapter = gson.getAdapter(new TypeToken<ArrayList<Script>>(){});
+			this.context = new GsonContext();
+		}
+		
+		@Override
+		public void write(JsonWriter out, Gallery gallery) throws IOException
+		{
+			if (gallery == null)
+			{
+				out.nullValue();
+				return;
+			}
+			
+			Artist.ArtistTypeAdapter artistAdapter = new Artist.ArtistTypeAdapter(gallery, downloaderAdapter);
+			Image.ImageTypeAdapter imageAdapter = new Image.ImageTypeAdapter(gallery, pathAdapter);
+			Tag.TagTypeAdapter tagAdapter = new Tag.TagTypeAdapter(gallery);
+			
+			List<Artist> artists;
+			synchronized (gallery.artists)
+			{
+				artists = new ArrayList<>(gallery.artists);
+			}
+			
+			// Consistent snapshot of the images, written without blocking the changes
+			long[] imageIds;
+			Path[] imagePaths;
+			int[][] imageTagIds;
+			List<Tag> tags;
+			gallery.imagesLock.readLock().lock();
+			try
+			{
+				int nbImages = gallery.images.size();
+				imageIds = new long[nbImages];
+				imagePaths = new Path[nbImages];
+				imageTagIds = new int[nbImages][];
+				for (int i = 0 ; i < nbImages ; i++)
+				{
+					Image image = gallery.images.get(i);
+					imageIds[i] = image.getId();
+					imagePaths[i] = image.getPath();
+					imageTagIds[i] = image.getTagIds();
+				}
+				tags = gallery.getTagsSnapshot();
+			}
+			finally
+			{
+				gallery.imagesLock.readLock().unlock();
+			}
+			
+			out.beginObject();
+			
+			out.name("artists");
+			out.beginArray();
+			for (Artist artist : artists)
+				artistAdapter.write(out, artist);
+			out.endArray();
+			
+			out.name("images");
+			out.beginArray();
+			for (int i = 0 ; i < imageIds.length ; i++)
+				imageAdapter.write(out, imageIds[i], imagePaths[i], imageTagIds[i]);
+			out.endArray();
+			
+			out.name("tags");
+			out.beginArray();
+			for (Tag tag : tags)
+				tagAdapter.write(out, tag);
+			out.endArray();
+			
+			FileFolderOrder defaultSortOrder;
+			JsonElement sortOrder;
+			synchronized (gallery.sortOrder)
+			{
+				defaultSortOrder = gallery.defaultSortOrder;
+				sortOrder = new SortOrderSerializer().serialize(gallery.sortOrder, SORT_ORDER_TYPE, context);
+			}
+			if (defaultSortOrder != null)
+			{
+				out.name("defaultSortOrder");
+				fileFolderOrderAdapter.write(out, defaultSortOrder);
+			}
+			out.name("sortOrder");
+			jsonAdapter.write(out, sortOrder);
+			
+			if (gallery.customSortBy != null)
+			{
+				out.name("customSortBy");
+				jsonAdapter.write(out, new CustomSortByMapSerializer().serialize(gallery.customSortBy,
+				                                                                 CUSTOM_SORT_BY_TYPE,
+				                                                                 context));
+			}
+			
+			if (gallery.slideShowParameter != null)
+			{
+				out.name("slideShowParameter");
+				slideShowParameterAdapter.write(out, gallery.slideShowParameter);
+			}
+			
+			out.name("scripts");
+			scriptsAdapter.write(out, new ArrayList<>(gallery.getScripts()));
+			
+			out.endObject();
+		}
+		
+		@Override
+		public Gallery read(JsonReader in) throws IOException
+		{
+			if (in.peek() == JsonToken.NULL)
+			{
+				in.nextNull();
+				return null;
+			}
+			
+			Gallery gallery = Injector.getInstance(Gallery.class);
+			
+			Artist.ArtistTypeAdapter artistAdapter = new Artist.ArtistTypeAdapter(gallery, downloaderAdapter);
+			Image.ImageTypeAdapter imageAdapter = new Image.ImageTypeAdapter(gallery, pathAdapter);
+			Tag.TagTypeAdapter tagAdapter = new Tag.TagTypeAdapter(gallery);
+			
+			in.beginObject();
+			while (in.hasNext())
+			{
+				String property = in.nextName();
+				if (in.peek() == JsonToken.NULL)
+				{
+					in.nextNull();
+					continue;
+				}
+				
+				switch (property)
+				{
+					case "artists" -> gallery.artists = readList(in, artistAdapter);
+					case "images" -> gallery.images = readList(in, imageAdapter);
+					case "tags" -> gallery.tags = readList(in, tagAdapter);
+					case "defaultSortOrder" -> gallery.defaultSortOrder = fileFolderOrderAdapter.read(in);
+					case "sortOrder" -> gallery.sortOrder = new SortOrderSerializer().deserialize(jsonAdapter.read(in),
+					                                                                              SORT_ORDER_TYPE,
+					                                                                              context);
+					case "customSortBy" -> gallery.customSortBy = new CustomSortByMapSerializer().deserialize(jsonAdapter.read(in),
+					                                                                                          CUSTOM_SORT_BY_TYPE,
+					                                                                                          context);
+					case "slideShowParameter" -> gallery.slideShowParameter = slideShowParameterAdapter.read(in);
+					case "scripts" -> gallery.scripts = scriptsAdapter.read(in);
+					default -> in.skipValue();
+				}
+			}
+			in.endObject();
+			
+			return gallery;
+		}
+		
+		private static <E> ArrayList<E> readList(JsonReader in, TypeAdapter<E> elementAdapter) throws IOException
+		{
+			ArrayList<E> list = new ArrayList<>();
+			in.beginArray();
+			while (in.hasNext())
+				list.add(elementAdapter.read(in));
+			in.endArray();
+			return list;
+		}
+		
+		/*
+		 * For the tree based serializers of the small properties
+		 */
+		private class GsonContext implements JsonSerializationContext, JsonDeserializationContext
+		{
+			@Override
+			public JsonElement serialize(Object src)
+			{
+				return gson.toJsonTree(src);
+			}
+			
+			@Override
+			public JsonElement serialize(Object src, Type typeOfSrc)
+			{
+				return gson.toJsonTree(src, typeOfSrc);
+			}
+			
+			@Override
+			public <R> R deserialize(JsonElement json, Type typeOfT) throws JsonParseException
+			{
+				return gson.fromJson(json, typeOfT);
+			}
 		}
 	}
 	
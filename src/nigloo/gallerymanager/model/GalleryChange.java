@@ -0,0 +1,124 @@
+package nigloo.gallerymanager.model;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import nigloo.gallerymanager.autodownloader.Downloader;
+
+/**
+ * Changes made to the gallery during a {@link ChangeBatch}, coalesced: an image
+ * appears in at most one of added, removed and retagged, and an image added
+ * then removed during the batch doesn't appear at all.
+ *
+ * @param added images now known by the gallery (saved or not)
+ * @param removed images not known by the gallery anymore
+ * @param moved images moved and their path before the batch
+ * @param retagged images whose tags changed
+ * @param saved images saved in the gallery (they may also be added)
+ * @param updatedDownloaders downloaders whose mapping or last post checked changed
+ * @param changedTags tags renamed or whose parents or color changed
+ * @param tagHierarchyChanged true if any tag was renamed or had its parents changed
+ * @param settingsChanged true if any artist, downloader, sort order or script
+ *            was created or deleted
+ */
+public record GalleryChange(Set<Image> added,
+                            Set<Image> removed,
+                            Map<Image, Path> moved,
+                            Set<Image> retagged,
+                            Set<Image> saved,
+                            Set<Downloader> updatedDownloaders,
+                            Set<Tag> changedTags,
+                            boolean tagHierarchyChanged,
+                            boolean settingsChanged)
+{
+	public boolean isEmpty()
+	{
+		return added.isEmpty() && removed.isEmpty() && moved.isEmpty() && retagged.isEmpty() && saved.isEmpty()
+		        && updatedDownloaders.isEmpty() && changedTags.isEmpty() && !tagHierarchyChanged && !settingsChanged;
+	}
+
+	/*
+	 * Not thread safe
+	 */
+	static final class Builder
+	{
+		private final Set<Image> added = new HashSet<>();
+		private final Set<Image> removed = new HashSet<>();
+		private final Map<Image, Path> moved = new HashMap<>();
+		private final Set<Image> retagged = new HashSet<>();
+		private final Set<Image> saved = new HashSet<>();
+		private final Set<Downloader> updatedDownloaders = new HashSet<>();
+		private final Set<Tag> changedTags = new HashSet<>();
+		private boolean tagHierarchyChanged = false;
+		private boolean settingsChanged = false;
+
+		void added(Image image)
+		{
+			removed.remove(image);
+			added.add(image);
+		}
+
+		void removed(Image image)
+		{
+			moved.remove(image);
+			retagged.remove(image);
+			saved.remove(image);
+			if (!added.remove(image))
+				removed.add(image);
+		}
+
+		void moved(Image image, Path source)
+		{
+			if (!added.contains(image) && !removed.contains(image))
+				moved.putIfAbsent(image, source);
+		}
+
+		void retagged(Image image)
+		{
+			if (!added.contains(image) && !removed.contains(image))
+				retagged.add(image);
+		}
+
+		void saved(Image image)
+		{
+			saved.add(image);
+		}
+		
+		void downloaderUpdated(Downloader downloader)
+		{
+			updatedDownloaders.add(downloader);
+		}
+		
+		void tagChanged(Tag tag)
+		{
+			changedTags.add(tag);
+		}
+		
+		void tagHierarchyChanged()
+		{
+			tagHierarchyChanged = true;
+		}
+		
+		void settingsChanged()
+		{
+			settingsChanged = true;
+		}
+
+		GalleryChange build()
+		{
+			return new GalleryChange(Collections.unmodifiableSet(added),
+			                         Collections.unmodifiableSet(removed),
+			                         Collections.unmodifiableMap(moved),
+			                         Collections.unmodifiableSet(retagged),
+			                         Collections.unmodifiableSet(saved),
+			                         Collections.unmodifiableSet(updatedDownloaders),
+			                         Collections.unmodifiableSet(changedTags),
+			                         tagHierarchyChanged,
+			                         settingsChanged);
+		}
+	}
+}
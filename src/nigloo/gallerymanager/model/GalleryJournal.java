@@ -0,0 +1,382 @@
+package nigloo.gallerymanager.model;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import nigloo.gallerymanager.autodownloader.Downloader;
+
+/**
+ * Write-ahead journal of the gallery: what changed since the last snapshot
+ * (the gallery file), appended as one JSON record per line.<br/>
+ * Fed by the changes published by the gallery, the journal only remembers
+ * what changed and writes its current state on {@link #sync()}: the images
+ * saved, moved or retagged, the images deleted, the tags created or changed
+ * and the downloaders whose mapping changed. The other changes (artists, downloaders, sort orders
+ * and scripts created or deleted, tags renamed) aren't journaled, a new
+ * snapshot is required instead.<br/>
+ * The first record identifies the snapshot the journal applies to, a journal
+ * left from another snapshot is ignored (ex: the snapshot was written but the
+ * journal not reset yet).
+ */
+public final class GalleryJournal implements Consumer<GalleryChange>, Closeable
+{
+	private static final Logger LOGGER = LogManager.getLogger(GalleryJournal.class);
+
+	private final Gallery gallery;
+	private final Path journalFile;
+	private final TypeAdapter<Image> imageAdapter;
+	private final TypeAdapter<Tag> tagAdapter;
+	private final TypeAdapter<Downloader> downloaderAdapter;
+
+	// Guarded by this
+	private FileChannel channel = null;
+	private final Set<Image> dirtyImages = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final Set<Long> deletedImageIds = new HashSet<>();
+	private final Set<Downloader> dirtyDownloaders = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final Set<Tag> dirtyTags = Collections.newSetFromMap(new IdentityHashMap<>());
+	private boolean snapshotRequired = false;
+	// Tags as last written (in the snapshot or the journal), by id
+	private final Map<Integer, String> writtenTagNames = new HashMap<>();
+	private final Map<Integer, String> writtenTags = new HashMap<>();
+	// The tags created since (ids from it) aren't written yet
+	private int writtenTagIdBound = 0;
+
+	public GalleryJournal(Gallery gallery, Path journalFile, Gson gson)
+	{
+		this.gallery = gallery;
+		this.journalFile = journalFile;
+		this.imageAdapter = new Image.ImageTypeAdapter(gallery, gson.getAdapter(Path.class));
+		this.tagAdapter = new Tag.TagTypeAdapter(gallery);
+		this.downloaderAdapter = gson.getAdapter(Downloader.class);
+	}
+
+	/**
+	 * Apply the journal to the gallery just deserialized from snapshotFile,
+	 * MUST be called before {@link Gallery#postConstruct(Path)}.
+	 *
+	 * @return the number of records replayed
+	 */
+	public int replay(Path snapshotFile) throws IOException
+	{
+		List<String> lines;
+		try
+		{
+			lines = Files.readAllLines(journalFile, StandardCharsets.UTF_8);
+		}
+		catch (NoSuchFileException e)
+		{
+			return 0;
+		}
+
+		if (lines.isEmpty() || !lines.get(0).equals(header(snapshotFile)))
+		{
+			LOGGER.info("Journal {} ignored: not from the snapshot {}", journalFile, snapshotFile);
+			return 0;
+		}
+
+		Map<Long, Image> images = new LinkedHashMap<>();
+		Map<String, Tag> tags = new LinkedHashMap<>();
+		List<Downloader> downloaders = new ArrayList<>();
+		int nbRecords = 0;
+
+		for (String line : lines.subList(1, lines.size()))
+		{
+			try (JsonReader in = new JsonReader(new StringReader(line)))
+			{
+				in.beginObject();
+				switch (in.nextName())
+				{
+					case "image" ->
+					{
+						Image image = imageAdapter.read(in);
+						images.put(image.getId(), image);
+					}
+					case "deletedImage" -> images.put(in.nextLong(), null);
+					case "tag" ->
+					{
+						Tag tag = tagAdapter.read(in);
+						tags.put(tag.getName(), tag);
+					}
+					case "downloader" ->
+					{
+						Downloader downloader = downloaderAdapter.read(in);
+						downloaders.removeIf(d -> d.getType() == downloader.getType()
+						        && d.getCreatorId().equals(downloader.getCreatorId()));
+						downloaders.add(downloader);
+					}
+					default -> in.skipValue();
+				}
+				in.endObject();
+				nbRecords++;
+			}
+			catch (IOException | RuntimeException e)
+			{
+				// Only the last record can be incomplete: the application stopped while writing it
+				LOGGER.warn("Journal " + journalFile + " truncated after " + nbRecords + " records", e);
+				break;
+			}
+		}
+
+		gallery.replayJournal(images, tags.values(), downloaders);
+		LOGGER.info("{} records replayed from journal {}", nbRecords, journalFile);
+		return nbRecords;
+	}
+
+	/**
+	 * Start recording the changes of the gallery loaded from snapshotFile,
+	 * after the journal has been replayed
+	 */
+	public synchronized void start(Path snapshotFile) throws IOException
+	{
+		boolean sameSnapshot;
+		try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8))
+		{
+			sameSnapshot = header(snapshotFile).equals(reader.readLine());
+		}
+		catch (NoSuchFileException e)
+		{
+			sameSnapshot = false;
+		}
+
+		channel = FileChannel.open(journalFile,
+		                           StandardOpenOption.CREATE,
+		                           StandardOpenOption.WRITE,
+		                           StandardOpenOption.APPEND);
+		if (!sameSnapshot)
+			reset(snapshotFile);
+
+		rememberWrittenTags();
+		gallery.addChangeListener(this);
+	}
+
+	@Override
+	public synchronized void accept(GalleryChange change)
+	{
+		for (Image image : change.removed())
+		{
+			dirtyImages.remove(image);
+			if (image.isSaved())
+				deletedImageIds.add(image.getId());
+		}
+		dirtyImages.addAll(change.saved());
+		dirtyImages.addAll(change.retagged());
+		dirtyImages.addAll(change.moved().keySet());
+		dirtyDownloaders.addAll(change.updatedDownloaders());
+		dirtyTags.addAll(change.changedTags());
+		if (change.settingsChanged())
+			snapshotRequired = true;
+	}
+
+	/**
+	 * Append the changes since the last sync and force them to the disk
+	 *
+	 * @return false if some changes cannot be journaled: a new snapshot is
+	 *         required (see {@link #beginSnapshot()})
+	 */
+	public synchronized boolean sync() throws IOException
+	{
+		if (snapshotRequired)
+			return false;
+
+		StringWriter records = new StringWriter();
+		int nbRecords = 0;
+
+		// Only the tags created or changed since the last sync
+		int tagIdBound = gallery.getTagIdBound();
+		for (int tagId = writtenTagIdBound ; tagId < tagIdBound ; tagId++)
+		{
+			Tag tag = gallery.findTag(tagId);
+			if (tag != null)
+				dirtyTags.add(tag);
+		}
+
+		Map<Tag, String> changedTags = new HashMap<>();
+		for (Tag tag : dirtyTags)
+		{
+			String writtenName = writtenTagNames.get(tag.getId());
+			if (writtenName != null && !writtenName.equals(tag.getName()))
+			{
+				snapshotRequired = true;
+				return false;
+			}
+
+			String json = toJson(tagAdapter, tag);
+			if (!json.equals(writtenTags.get(tag.getId())))
+			{
+				changedTags.put(tag, json);
+				appendRecord(records, "tag", json);
+				nbRecords++;
+			}
+		}
+
+		for (Image image : dirtyImages)
+			if (image.isSaved() && gallery.findImage(image.getId()) == image)
+			{
+				appendRecord(records, "image", toJson(imageAdapter, image));
+				nbRecords++;
+			}
+
+		for (long imageId : deletedImageIds)
+		{
+			appendRecord(records, "deletedImage", Long.toString(imageId));
+			nbRecords++;
+		}
+
+		for (Downloader downloader : dirtyDownloaders)
+			if (downloader.getArtist() != null)
+			{
+				appendRecord(records, "downloader", toJson(downloaderAdapter, downloader));
+				nbRecords++;
+			}
+
+		if (nbRecords > 0)
+		{
+			write(records.toString());
+			channel.force(false);
+		}
+
+		changedTags.forEach((tag, json) ->
+		{
+			writtenTagNames.put(tag.getId(), tag.getName());
+			writtenTags.put(tag.getId(), json);
+		});
+		writtenTagIdBound = tagIdBound;
+		dirtyTags.clear();
+		dirtyImages.clear();
+		deletedImageIds.clear();
+		dirtyDownloaders.clear();
+
+		LOGGER.debug("{} records appended to journal {}", nbRecords, journalFile);
+		return true;
+	}
+
+	/**
+	 * @return the size of the journal in bytes
+	 */
+	public synchronized long size() throws IOException
+	{
+		return channel == null ? 0 : channel.size();
+	}
+
+	/**
+	 * To call before writing a snapshot: the changes made from now on will be
+	 * journaled on top of it
+	 */
+	public synchronized void beginSnapshot()
+	{
+		dirtyImages.clear();
+		deletedImageIds.clear();
+		dirtyDownloaders.clear();
+		dirtyTags.clear();
+		snapshotRequired = false;
+		rememberWrittenTags();
+	}
+
+	/**
+	 * To call once the snapshot is written: discard the journal of the previous one
+	 */
+	public synchronized void snapshotWritten(Path snapshotFile) throws IOException
+	{
+		reset(snapshotFile);
+	}
+
+	/**
+	 * To call if the snapshot couldn't be written: the changes cleared by
+	 * {@link #beginSnapshot()} are still to save
+	 */
+	public synchronized void snapshotFailed()
+	{
+		snapshotRequired = true;
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		gallery.removeChangeListener(this);
+		if (channel != null)
+		{
+			channel.close();
+			channel = null;
+		}
+	}
+
+	private void reset(Path snapshotFile) throws IOException
+	{
+		channel.truncate(0);
+		write(header(snapshotFile) + "\n");
+		channel.force(false);
+	}
+
+	private void rememberWrittenTags()
+	{
+		writtenTagNames.clear();
+		writtenTags.clear();
+		writtenTagIdBound = gallery.getTagIdBound();
+		for (Tag tag : gallery.getTagsSnapshot())
+		{
+			writtenTagNames.put(tag.getId(), tag.getName());
+			writtenTags.put(tag.getId(), toJson(tagAdapter, tag));
+		}
+	}
+
+	private void write(String data) throws IOException
+	{
+		ByteBuffer buffer = StandardCharsets.UTF_8.encode(data);
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static void appendRecord(StringWriter records, String type, String json)
+	{
+		records.append("{\"").append(type).append("\":").append(json).append("}\n");
+	}
+
+	private static <T> String toJson(TypeAdapter<T> adapter, T value)
+	{
+		try
+		{
+			StringWriter json = new StringWriter();
+			adapter.write(new JsonWriter(json), value);
+			return json.toString();
+		}
+		catch (IOException e)
+		{
+			// Cannot happen with a StringWriter
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String header(Path snapshotFile) throws IOException
+	{
+		return "{\"snapshot\":{\"size\":" + Files.size(snapshotFile) + ",\"lastModified\":"
+		        + Files.getLastModifiedTime(snapshotFile).toMillis() + "}}";
+	}
+}
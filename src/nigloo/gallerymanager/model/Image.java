@@ -1,30 +1,46 @@
 package nigloo.gallerymanager.model;
 
+import java.io.IOException;
 import java.nio.file.Path;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
-import java.util.stream.Collectors;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import lombok.Getter;
 import nigloo.gallerymanager.ui.FXImageVideoWrapper;
 import nigloo.gallerymanager.ui.util.ImageCache;
+import nigloo.tool.Utils;
 import nigloo.tool.injection.Injector;
 import nigloo.tool.injection.annotation.Inject;
 
 public class Image
 {
+	static final int[] NO_TAGS = new int[0];
+	
 	@Getter
 	long id;
 	@Getter
-	private Path path;
-	private Set<TagReference> tags = new HashSet<>();
+	Path path;
+	// path normalized for the path filters, computed on first use and after each move
+	private transient volatile NormalizedPath normalizedPath = null;
+	// Sorted ids of the tags (see Tag#getId()), copy on write holding the write lock of the gallery images.
+	// Serialized as tag names
+	private volatile int[] tags = NO_TAGS;
 	
-	private transient Set<String> implicitTags = null;
+	// Ids of the tags and all their ancestors, for one tags array and one version of the tag hierarchy
+	private transient volatile ImplicitTags implicitTags = null;
+	// Position in the tag index of the gallery
+	transient int ordinal = -1;
 	
 	@Inject
 	private transient Gallery gallery;
@@ -41,15 +57,55 @@ public class Image
 		this.path = path;
 	}
 	
+	/*
+	 * Used by the deserializers, which give the gallery instead of injecting
+	 * each image
+	 */
+	Image(Gallery gallery, long id, Path path, int[] tags)
+	{
+		this.gallery = gallery;
+		this.id = id;
+		this.path = path;
+		this.tags = tags;
+	}
+	
+	/**
+	 * Change the path of the image in the gallery (the file isn't moved)
+	 *
+	 * @param target relative to the root folder of the gallery
+	 * @throws IllegalArgumentException if target is absolute or already the
+	 *             path of another image of the gallery
+	 */
 	public void move(Path target)
 	{
 		if (target.isAbsolute())
 			throw new IllegalArgumentException("target must be relative. Got: " + target);
 		
-		path = target;
-		
-		if (isNotSaved())
-			gallery.unsavedImagesValid = false;
+		gallery.moveImage(this, target);
+	}
+	
+	/**
+	 * @return the path of the image normalized with {@link #normalizePath(String)}
+	 */
+	public String getNormalizedPath()
+	{
+		Path currentPath = path;
+		NormalizedPath normalized = normalizedPath;
+		if (normalized == null || normalized.path() != currentPath)
+		{
+			normalized = new NormalizedPath(currentPath, normalizePath(currentPath.toString()));
+			normalizedPath = normalized;
+		}
+		return normalized.value();
+	}
+	
+	/**
+	 * Normalize a path, or part of it, to be searched: lowercase, without
+	 * accents
+	 */
+	public static String normalizePath(String path)
+	{
+		return Utils.stripAccents(path).toLowerCase(Locale.ROOT);
 	}
 	
 	public boolean isSaved()
@@ -69,63 +125,186 @@ public class Image
 	
 	public Collection<Tag> getTags()
 	{
-		return tags.stream().map(TagReference::getTag).collect(Collectors.toUnmodifiableSet());
+		int[] tagIds = tags;
+		List<Tag> result = new ArrayList<>(tagIds.length);
+		for (int tagId : tagIds)
+			result.add(gallery.findTag(tagId));
+		
+		return Collections.unmodifiableList(result);
+	}
+	
+	/*
+	 * Sorted ids of the tags. MUST NOT be modified
+	 */
+	int[] getTagIds()
+	{
+		return tags;
+	}
+	
+	public boolean hasTag(Tag tag)
+	{
+		return tag != null && tag.getId() >= 0 && Arrays.binarySearch(tags, tag.getId()) >= 0;
 	}
 	
 	public boolean addTag(Tag tag)
 	{
-		boolean added = tags.add(new TagReference(tag));
-		if (added)
-			implicitTags = null;
-		
-		return added;
+		return gallery.changeImageTag(this, tag, true, () ->
+		{
+			int[] tagIds = tags;
+			int pos = Arrays.binarySearch(tagIds, tag.getId());
+			if (pos >= 0)
+				return false;
+			
+			pos = -pos - 1;
+			int[] newTagIds = new int[tagIds.length + 1];
+			System.arraycopy(tagIds, 0, newTagIds, 0, pos);
+			newTagIds[pos] = tag.getId();
+			System.arraycopy(tagIds, pos, newTagIds, pos + 1, tagIds.length - pos);
+			
+			tags = newTagIds;
+			return true;
+		});
 	}
 	
 	public boolean addTag(String tagName)
 	{
-		boolean added = tags.add(new TagReference(gallery.getTag(tagName)));
-		if (added)
-			implicitTags = null;
-		
-		return added;
+		return addTag(gallery.getTag(tagName));
 	}
 	
 	public boolean removeTag(Tag tag)
 	{
-		boolean removed = tags.remove(new TagReference(tag));
-		if (removed)
-			implicitTags = null;
-		
-		return removed;
+		return gallery.changeImageTag(this, tag, false, () ->
+		{
+			int[] tagIds = tags;
+			int pos = Arrays.binarySearch(tagIds, tag.getId());
+			if (pos < 0)
+				return false;
+			
+			int[] newTagIds = tagIds.length == 1 ? NO_TAGS : new int[tagIds.length - 1];
+			System.arraycopy(tagIds, 0, newTagIds, 0, pos);
+			System.arraycopy(tagIds, pos + 1, newTagIds, pos, tagIds.length - pos - 1);
+			
+			tags = newTagIds;
+			return true;
+		});
 	}
 	
 	public boolean removeTag(String tagName)
 	{
-		boolean removed = tags.remove(new TagReference(tagName));
-		if (removed)
-			implicitTags = null;
-		
-		return removed;
+		Tag tag = gallery.findTag(tagName);
+		return tag != null && removeTag(tag);
 	}
 	
 	public Set<String> getImplicitTags()
 	{
-		if (implicitTags == null)
+		Set<String> implicitTags = new HashSet<>();
+		getImplicitTagIds().forEach(tagId -> implicitTags.add(gallery.findTag(tagId).getName()));
+		return Collections.unmodifiableSet(implicitTags);
+	}
+	
+	/**
+	 * @return true if this image has tag, explicitly or implicitly (through a descendant tag)
+	 */
+	public boolean hasImplicitTag(Tag tag)
+	{
+		return tag != null && tag.getId() >= 0 && getImplicitTagIds().contains(tag.getId());
+	}
+	
+	public boolean hasImplicitTag(String tagName)
+	{
+		return hasImplicitTag(gallery.findTag(tagName));
+	}
+	
+	/*
+	 * Union of the precomputed ancestor closures of the tags. MUST NOT be modified
+	 */
+	CompressedBitmap getImplicitTagIds()
+	{
+		// Read before the ancestors: at worst an up to date union is computed again
+		int version = gallery.getTagHierarchyVersion();
+		int[] tagIds = tags;
+		ImplicitTags cached = implicitTags;
+		if (cached != null && cached.tagIds() == tagIds && cached.version() == version)
+			return cached.ids();
+		
+		CompressedBitmap ids;
+		if (tagIds.length == 1)
+			ids = gallery.getTagAncestors(tagIds[0]);
+		else
 		{
-			implicitTags = new HashSet<>();
-			ArrayDeque<Tag> patentsToVisit = new ArrayDeque<>(tags.stream().map(TagReference::getTag).toList());
-			
-			Tag tag;
-			while ((tag = patentsToVisit.poll()) != null)
-				if (implicitTags.add(tag.getName()))
-					patentsToVisit.addAll(tag.getParents());
-			
-			implicitTags = Collections.unmodifiableSet(implicitTags);
+			ids = new CompressedBitmap();
+			for (int tagId : tagIds)
+				ids.orWith(gallery.getTagAncestors(tagId));
 		}
 		
-		return implicitTags;
+		implicitTags = new ImplicitTags(tagIds, version, ids);
+		return ids;
+	}
+	
+	/*
+	 * Replaced as a whole so the ids are never read with the tags or the
+	 * version of another union
+	 */
+	private record ImplicitTags(int[] tagIds, int version, CompressedBitmap ids)
+	{
+	}
+	
+	/*
+	 * Called by the gallery once loaded: replace the temporary ids given while
+	 * deserializing (see Gallery#loadedTagId(String)) by the actual tag ids
+	 */
+	void resolveLoadedTags(int[] actualIds)
+	{
+		int[] tagIds = tags;
+		if (tagIds.length == 0)
+			return;
+		
+		int[] newTagIds = new int[tagIds.length];
+		for (int i = 0 ; i < tagIds.length ; i++)
+			newTagIds[i] = actualIds[tagIds[i]];
+		
+		// Different names may have been normalized to the same tag
+		Arrays.sort(newTagIds);
+		int nbTags = 1;
+		for (int i = 1 ; i < newTagIds.length ; i++)
+			if (newTagIds[i] != newTagIds[nbTags - 1])
+				newTagIds[nbTags++] = newTagIds[i];
+		
+		tags = nbTags == newTagIds.length ? newTagIds : Arrays.copyOf(newTagIds, nbTags);
 	}
 	
+	/*
+	 * Called by the gallery when tags are merged, holding the write lock of
+	 * the images: replace each tag id by replacements[id] unless out of range
+	 * or negative
+	 *
+	 * @return the ids before, or null if unchanged
+	 */
+	int[] replaceTags(int[] replacements)
+	{
+		int[] tagIds = tags;
+		int[] newTagIds = new int[tagIds.length];
+		boolean changed = false;
+		for (int i = 0 ; i < tagIds.length ; i++)
+		{
+			int tagId = tagIds[i];
+			newTagIds[i] = tagId < replacements.length && replacements[tagId] >= 0 ? replacements[tagId] : tagId;
+			changed |= newTagIds[i] != tagId;
+		}
+		if (!changed)
+			return null;
+		
+		// Merged with a tag the image already has
+		Arrays.sort(newTagIds);
+		int nbTags = 1;
+		for (int i = 1 ; i < newTagIds.length ; i++)
+			if (newTagIds[i] != newTagIds[nbTags - 1])
+				newTagIds[nbTags++] = newTagIds[i];
+		
+		tags = nbTags == newTagIds.length ? newTagIds : Arrays.copyOf(newTagIds, nbTags);
+		return tagIds;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -194,4 +373,97 @@ public class Image
 	{
 		return isActuallyVideo(path);
 	}
+	
+	private record NormalizedPath(Path path, String value)
+	{
+	}
+	
+	/**
+	 * Streaming (de)serializer of the images of a gallery, see
+	 * {@link Gallery.GalleryTypeAdapterFactory}
+	 */
+	static final class ImageTypeAdapter extends TypeAdapter<Image>
+	{
+		private final Gallery gallery;
+		private final TypeAdapter<Path> pathAdapter;
+		
+		ImageTypeAdapter(Gallery gallery, TypeAdapter<Path> pathAdapter)
+		{
+			this.gallery = gallery;
+			this.pathAdapter = pathAdapter;
+		}
+		
+		@Override
+		public void write(JsonWriter out, Image image) throws IOException
+		{
+			write(out, image.id, image.path, image.tags);
+		}
+		
+		/*
+		 * Write an image as it was, from a snapshot of its state
+		 */
+		void write(JsonWriter out, long id, Path path, int[] tagIds) throws IOException
+		{
+			out.beginObject();
+			out.name("id");
+			out.value(id);
+			out.name("path");
+			pathAdapter.write(out, path);
+			out.name("tags");
+			out.beginArray();
+			for (int tagId : tagIds)
+				out.value(gallery.findTag(tagId).getName());
+			out.endArray();
+			out.endObject();
+		}
+		
+		@Override
+		public Image read(JsonReader in) throws IOException
+		{
+			long id = 0;
+			Path path = null;
+			int[] tagIds = NO_TAGS;
+			
+			in.beginObject();
+			while (in.hasNext())
+			{
+				String property = in.nextName();
+				if (in.peek() == JsonToken.NULL)
+				{
+					in.nextNull();
+					continue;
+				}
+				
+				switch (property)
+				{
+					case "id" -> id = in.nextLong();
+					case "path" -> path = pathAdapter.read(in);
+					case "tags" -> tagIds = readTags(in);
+					default -> in.skipValue();
+				}
+			}
+			in.endObject();
+			
+			return new Image(gallery, id, path, tagIds);
+		}
+		
+		/*
+		 * The tags may not be loaded yet: use temporary ids, see Gallery#loadedTagId(String)
+		 */
+		private int[] readTags(JsonReader in) throws IOException
+		{
+			int[] tagIds = new int[8];
+			int nbTags = 0;
+			in.beginArray();
+			while (in.hasNext())
+			{
+				if (nbTags == tagIds.length)
+					tagIds = Arrays.copyOf(tagIds, nbTags * 2);
+				tagIds[nbTags++] = gallery.loadedTagId(in.nextString());
+			}
+			in.endArray();
+			
+			return nbTags == 0 ? NO_TAGS : Arrays.copyOf(tagIds, nbTags);
+		}
+	}
 }
@@ -0,0 +1,60 @@
+package nigloo.gallerymanager.model;
+
+import java.nio.file.Path;
+import java.util.function.Predicate;
+
+/**
+ * Read only view of the gallery images as bitmaps of image ordinals, given to
+ * the queries run by {@link Gallery#findImages(java.util.function.Function)}.<br/>
+ * Bitmaps returned by this index belong to the gallery and MUST NOT be
+ * modified, use the static operations of {@link CompressedBitmap} to combine
+ * them. They are only valid during the query.
+ */
+public interface ImageBitmapIndex
+{
+	/**
+	 * @return every image of the gallery, saved or not
+	 */
+	CompressedBitmap allImages();
+
+	/**
+	 * @param normalizedTagName a normalized tag name (see {@link Tag#normalize(String)})
+	 * @return the images having this tag, explicitly or implicitly (through a descendant tag)
+	 */
+	CompressedBitmap imagesWithTag(String normalizedTagName);
+
+	/**
+	 * @return the images having any tag matching pattern, explicitly or implicitly
+	 */
+	CompressedBitmap imagesWithTagMatching(TagPattern pattern);
+
+	/**
+	 * @return the images whose path starts with path
+	 */
+	CompressedBitmap imagesIn(Path path);
+
+	/**
+	 * @param normalizedText normalized with {@link Image#normalizePath(String)}
+	 * @return the images whose normalized path contains normalizedText
+	 */
+	CompressedBitmap imagesWithPathContaining(String normalizedText);
+
+	/**
+	 * Narrow the images to test for {@link #imagesWithPathContaining(String)}
+	 * from the trigram index of the paths, without reading any of them.
+	 *
+	 * @param normalizedText normalized with {@link Image#normalizePath(String)}
+	 * @return the images whose normalized path may contain normalizedText, a
+	 *         superset of {@link #imagesWithPathContaining(String)}
+	 */
+	CompressedBitmap imagesMaybeWithPathContaining(String normalizedText);
+
+	/**
+	 * Test the images one by one, in parallel by partitions of the candidates
+	 *
+	 * @return the candidates whose image matches predicate
+	 */
+	CompressedBitmap imagesMatching(CompressedBitmap candidates, Predicate<? super Image> predicate);
+
+	Image image(int ordinal);
+}
@@ -32,6 +32,22 @@ public class ImageReference
 		registerInstance();
 	}
 	
+	/**
+	 * Used by the deserializers, which give the gallery instead of injecting
+	 * each reference
+	 */
+	public ImageReference(Gallery gallery, long imageId)
+	{
+		this.imageId = imageId;
+		this.image = null;
+		
+		if (imageId <= 0)
+			throw new IllegalArgumentException("imageId must be strictly positive. Got: " + imageId);
+		
+		this.gallery = Objects.requireNonNull(gallery, "gallery");
+		registerInstance();
+	}
+	
 	public ImageReference(Image image)
 	{
 		this.image = Objects.requireNonNull(image, "image");
@@ -47,7 +63,19 @@ public class ImageReference
 	// MUST be the LAST instruction of ANY constructor
 	private void registerInstance()
 	{
-		gallery.allImageReferences.add(this);
+		gallery.registerReference(this);
+	}
+	
+	/*
+	 * Called by the gallery once loaded. Return false if the image doesn't
+	 * exist, the reference is then resolved on first use as usual
+	 */
+	boolean resolveLoaded()
+	{
+		if (image == null)
+			image = gallery.findImage(imageId);
+		
+		return image != null;
 	}
 	
 	public Image getImage()
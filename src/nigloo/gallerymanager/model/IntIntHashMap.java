@@ -0,0 +1,182 @@
+package nigloo.gallerymanager.model;
+
+import java.util.Arrays;
+
+/**
+ * Minimal hash map from primitive int keys to int counts.<br/>
+ * Open addressing with linear probing, no boxing and no entry objects. A key
+ * whose count drops to 0 is removed, by backward shifting so no tombstone is
+ * ever left behind: 0 marks the free slots.<br/>
+ * Not thread safe: callers are expected to hold the lock of the structure it indexes.
+ */
+final class IntIntHashMap
+{
+	private static final int MIN_CAPACITY = 4;
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private int[] keys;
+	private int[] values;
+	private int size;
+	private int mask;
+	private int resizeThreshold;
+
+	public IntIntHashMap()
+	{
+		this(MIN_CAPACITY);
+	}
+
+	public IntIntHashMap(int expectedSize)
+	{
+		allocate(tableSizeFor(expectedSize));
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * @return the count of key, 0 if absent
+	 */
+	public int get(int key)
+	{
+		int idx = slot(key);
+		while (values[idx] != 0)
+		{
+			if (keys[idx] == key)
+				return values[idx];
+			idx = (idx + 1) & mask;
+		}
+		return 0;
+	}
+
+	/**
+	 * Add delta to the count of key, the key is removed once its count is 0
+	 *
+	 * @return the new count
+	 */
+	public int addTo(int key, int delta)
+	{
+		int idx = slot(key);
+		while (values[idx] != 0)
+		{
+			if (keys[idx] == key)
+			{
+				int value = values[idx] + delta;
+				if (value == 0)
+				{
+					shiftBack(idx);
+					size--;
+				}
+				else
+					values[idx] = value;
+				return value;
+			}
+			idx = (idx + 1) & mask;
+		}
+
+		if (delta == 0)
+			return 0;
+
+		keys[idx] = key;
+		values[idx] = delta;
+		if (++size > resizeThreshold)
+			rehash(values.length * 2);
+
+		return delta;
+	}
+
+	public void clear()
+	{
+		Arrays.fill(values, 0);
+		size = 0;
+	}
+
+	public void forEach(Visitor visitor)
+	{
+		for (int i = 0 ; i < values.length ; i++)
+			if (values[i] != 0)
+				visitor.visit(keys[i], values[i]);
+	}
+
+	@FunctionalInterface
+	public interface Visitor
+	{
+		void visit(int key, int value);
+	}
+
+	/*
+	 * Move back the following entries of the probe sequence so a lookup never
+	 * stops on the hole left by a removal.
+	 */
+	private void shiftBack(int hole)
+	{
+		int idx = hole;
+		while (true)
+		{
+			idx = (idx + 1) & mask;
+			if (values[idx] == 0)
+				break;
+
+			int home = slot(keys[idx]);
+			// Entry can fill the hole only if its home slot is not in ]hole, idx]
+			boolean movable = (hole <= idx) ? (home <= hole || home > idx) : (home <= hole && home > idx);
+			if (movable)
+			{
+				keys[hole] = keys[idx];
+				values[hole] = values[idx];
+				hole = idx;
+			}
+		}
+		values[hole] = 0;
+	}
+
+	private int slot(int key)
+	{
+		// Fibonacci hashing: tag ids are sequential, spread them over the table
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void rehash(int newCapacity)
+	{
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+
+		allocate(newCapacity);
+
+		for (int i = 0 ; i < oldValues.length ; i++)
+		{
+			if (oldValues[i] == 0)
+				continue;
+
+			int idx = slot(oldKeys[i]);
+			while (values[idx] != 0)
+				idx = (idx + 1) & mask;
+
+			keys[idx] = oldKeys[i];
+			values[idx] = oldValues[i];
+		}
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new int[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		resizeThreshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static int tableSizeFor(int expectedSize)
+	{
+		int capacity = MIN_CAPACITY;
+		while (capacity * LOAD_FACTOR < expectedSize)
+			capacity <<= 1;
+		return capacity;
+	}
+}
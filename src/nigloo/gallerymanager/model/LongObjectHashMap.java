@@ -0,0 +1,196 @@
+package nigloo.gallerymanager.model;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Minimal hash map from primitive long keys to objects.<br/>
+ * Open addressing with linear probing, no boxing of the keys and no entry
+ * objects. Removals use backward shifting so no tombstone is ever left behind.<br/>
+ * Not thread safe: callers are expected to hold the lock of the structure it indexes.
+ */
+final class LongObjectHashMap<V>
+{
+	private static final int MIN_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int mask;
+	private int resizeThreshold;
+
+	public LongObjectHashMap()
+	{
+		this(MIN_CAPACITY);
+	}
+
+	public LongObjectHashMap(int expectedSize)
+	{
+		allocate(tableSizeFor(expectedSize));
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key)
+	{
+		int idx = indexOf(key);
+		return idx < 0 ? null : (V) values[idx];
+	}
+
+	public boolean containsKey(long key)
+	{
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @return the previous value associated with key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value)
+	{
+		if (value == null)
+			throw new NullPointerException("value");
+
+		int idx = slot(key);
+		while (values[idx] != null)
+		{
+			if (keys[idx] == key)
+			{
+				V old = (V) values[idx];
+				values[idx] = value;
+				return old;
+			}
+			idx = (idx + 1) & mask;
+		}
+
+		keys[idx] = key;
+		values[idx] = value;
+		if (++size > resizeThreshold)
+			rehash(values.length * 2);
+
+		return null;
+	}
+
+	/**
+	 * @return the value that was associated with key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key)
+	{
+		int idx = indexOf(key);
+		if (idx < 0)
+			return null;
+
+		V old = (V) values[idx];
+		shiftBack(idx);
+		size--;
+		return old;
+	}
+
+	public void clear()
+	{
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEachValue(Consumer<? super V> action)
+	{
+		for (Object value : values)
+			if (value != null)
+				action.accept((V) value);
+	}
+
+	private int indexOf(long key)
+	{
+		int idx = slot(key);
+		Object value;
+		while ((value = values[idx]) != null)
+		{
+			if (keys[idx] == key)
+				return idx;
+			idx = (idx + 1) & mask;
+		}
+		return -1;
+	}
+
+	/*
+	 * Move back the following entries of the probe sequence so a lookup never
+	 * stops on the hole left by a removal.
+	 */
+	private void shiftBack(int hole)
+	{
+		int idx = hole;
+		while (true)
+		{
+			idx = (idx + 1) & mask;
+			if (values[idx] == null)
+				break;
+
+			int home = slot(keys[idx]);
+			// Entry can fill the hole only if its home slot is not in ]hole, idx]
+			boolean movable = (hole <= idx) ? (home <= hole || home > idx) : (home <= hole && home > idx);
+			if (movable)
+			{
+				keys[hole] = keys[idx];
+				values[hole] = values[idx];
+				hole = idx;
+			}
+		}
+		values[hole] = null;
+	}
+
+	private int slot(long key)
+	{
+		// Fibonacci hashing: image ids are sequential, spread them over the table
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void rehash(int newCapacity)
+	{
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		allocate(newCapacity);
+
+		for (int i = 0 ; i < oldValues.length ; i++)
+		{
+			if (oldValues[i] == null)
+				continue;
+
+			int idx = slot(oldKeys[i]);
+			while (values[idx] != null)
+				idx = (idx + 1) & mask;
+
+			keys[idx] = oldKeys[i];
+			values[idx] = oldValues[i];
+		}
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		resizeThreshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static int tableSizeFor(int expectedSize)
+	{
+		int capacity = MIN_CAPACITY;
+		while (capacity * LOAD_FACTOR < expectedSize)
+			capacity <<= 1;
+		return capacity;
+	}
+}
@@ -0,0 +1,166 @@
+package nigloo.gallerymanager.model;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Trie of images keyed on the name elements of their relative path.<br/>
+ * Exact lookups are O(depth) and subtree queries are O(depth + result size):
+ * nodes holding no image in their subtree are pruned on removal, so a
+ * traversal never walks an empty branch.<br/>
+ * Segments are kept as {@link Path} so they compare with the file system
+ * rules (ex: case insensitive on Windows), exactly like {@link Path#equals}
+ * and {@link Path#startsWith} did.<br/>
+ * Not thread safe: callers are expected to hold the lock of the structure it indexes.
+ */
+final class PathIndex
+{
+	private final Node root = new Node(null, null);
+
+	public int size()
+	{
+		return root.nbImages;
+	}
+
+	public Image get(Path relPath)
+	{
+		Node node = find(relPath);
+		return node == null ? null : node.image;
+	}
+
+	/**
+	 * @return the image previously indexed at relPath, or null
+	 */
+	public Image put(Path relPath, Image image)
+	{
+		if (image == null)
+			throw new NullPointerException("image");
+
+		Node node = root;
+		for (int i = 0 ; i < depth(relPath) ; i++)
+			node = node.getOrCreateChild(relPath.getName(i));
+
+		Image previous = node.image;
+		node.image = image;
+		if (previous == null)
+			for (Node n = node ; n != null ; n = n.parent)
+				n.nbImages++;
+
+		return previous;
+	}
+
+	/**
+	 * @return the image that was indexed at relPath, or null
+	 */
+	public Image remove(Path relPath)
+	{
+		Node node = find(relPath);
+		if (node == null || node.image == null)
+			return null;
+
+		Image previous = node.image;
+		node.image = null;
+		for (Node n = node ; n != null ; n = n.parent)
+			n.nbImages--;
+
+		// Prune the branches left without any image
+		while (node.parent != null && node.nbImages == 0)
+		{
+			node.parent.children.remove(node.segment);
+			if (node.parent.children.isEmpty())
+				node.parent.children = null;
+			node = node.parent;
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Add to result every image whose path starts with relPath (including the
+	 * one at relPath itself)
+	 */
+	public void collectIn(Path relPath, Collection<? super Image> result)
+	{
+		Node node = find(relPath);
+		if (node != null)
+			forEachIn(node, result::add);
+	}
+
+	public void forEach(Consumer<? super Image> action)
+	{
+		forEachIn(root, action);
+	}
+
+	public List<Image> values()
+	{
+		List<Image> values = new ArrayList<>(size());
+		forEach(values::add);
+		return values;
+	}
+
+	public void clear()
+	{
+		root.children = null;
+		root.image = null;
+		root.nbImages = 0;
+	}
+
+	private Node find(Path relPath)
+	{
+		Node node = root;
+		for (int i = 0 ; i < depth(relPath) && node != null ; i++)
+			node = node.children == null ? null : node.children.get(relPath.getName(i));
+
+		return node;
+	}
+
+	private static void forEachIn(Node node, Consumer<? super Image> action)
+	{
+		ArrayDeque<Node> toVisit = new ArrayDeque<>();
+		toVisit.add(node);
+		while ((node = toVisit.poll()) != null)
+		{
+			if (node.image != null)
+				action.accept(node.image);
+			if (node.children != null)
+				toVisit.addAll(node.children.values());
+		}
+	}
+
+	/*
+	 * The empty path (root folder relativized against itself) has one empty
+	 * name element but designates the root of the trie.
+	 */
+	private static int depth(Path relPath)
+	{
+		return relPath.toString().isEmpty() ? 0 : relPath.getNameCount();
+	}
+
+	private static final class Node
+	{
+		final Node parent;
+		final Path segment;
+		HashMap<Path, Node> children = null;
+		Image image = null;
+		int nbImages = 0;
+
+		Node(Node parent, Path segment)
+		{
+			this.parent = parent;
+			this.segment = segment;
+		}
+
+		Node getOrCreateChild(Path segment)
+		{
+			if (children == null)
+				children = new HashMap<>(4);
+
+			return children.computeIfAbsent(segment, s -> new Node(this, s));
+		}
+	}
+}
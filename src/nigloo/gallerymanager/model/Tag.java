@@ -1,18 +1,25 @@
 package nigloo.gallerymanager.model;
 
+import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
-import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
 import javafx.scene.paint.Color;
 import lombok.Getter;
-import lombok.Setter;
 import nigloo.tool.gson.javafx.ColorTypeAdapter;
 import nigloo.tool.injection.Injector;
 import nigloo.tool.injection.annotation.Inject;
@@ -24,20 +31,33 @@ public class Tag
 	                                                            .collect(Collectors.toUnmodifiableSet());
 	@Getter
 	String name;
+	@Getter
+	transient int id = -1;
 	private HashSet<TagReference> parents;
-	@Setter
-	@JsonAdapter(ColorTypeAdapter.class)
 	private Color color;
+	// Result of getColor(), valid until the parents or the color of any tag change
+	private transient volatile ResolvedColor resolvedColor = null;
 	
 	@Inject
 	private transient Gallery gallery;
 	
-	// Used by deserializer
 	private Tag()
 	{
 		Injector.init(this);
 	}
 	
+	/*
+	 * Used by the deserializers, which give the gallery instead of injecting
+	 * each tag
+	 */
+	Tag(Gallery gallery, String name, HashSet<TagReference> parents, Color color)
+	{
+		this.gallery = gallery;
+		this.name = name;
+		this.parents = parents;
+		this.color = color;
+	}
+	
 	Tag(String name)
 	{
 		this();
@@ -64,66 +84,112 @@ public class Tag
 		return parents == null ? Set.of() : parents.stream().map(TagReference::getTag).collect(Collectors.toUnmodifiableSet());
 	}
 	
-	public void setParents(Collection<Tag> parents)
+	/*
+	 * Same as getParents().forEach(action) without building a new collection
+	 */
+	void forEachParent(Consumer<? super Tag> action)
 	{
-		if (parents == null || parents.isEmpty())
-		{
-			this.parents = null;
-			return;
-		}
-		
-		HashSet<TagReference> potentialParents = parents.stream().map(TagReference::new).collect(Collectors.toCollection(HashSet::new));
+		if (parents != null)
+			for (TagReference parent : parents)
+				action.accept(parent.getTag());
+	}
 	
-		ArrayDeque<Tag> cycle = getClosestAncestorWith(potentialParents, t -> t == this);
+	public void setParents(Collection<Tag> parents)
+	{
+		HashSet<TagReference> potentialParents = (parents == null || parents.isEmpty()) ? null
+		        : parents.stream().map(TagReference::new).collect(Collectors.toCollection(HashSet::new));
 		
-		if (cycle == null)
-			this.parents = potentialParents;
-		else
+		gallery.changeTagParents(this, () ->
 		{
-			Tag badParent = cycle.getFirst();
-			cycle.addFirst(this);
-			throw new IllegalArgumentException("Cannot set " + badParent.getName() + " as parent of " + this.getName()
-			        + " as that would create the cycle "
-			        + cycle.stream().map(Tag::getName).collect(Collectors.joining(" -> ", "[", "]")));
-		}
+			// Checked under the lock: the ancestors can't change meanwhile
+			ArrayDeque<Tag> cycle = getClosestAncestorWith(potentialParents, t -> t == this);
+			if (cycle != null)
+			{
+				Tag badParent = cycle.getFirst();
+				cycle.addFirst(this);
+				throw new IllegalArgumentException("Cannot set " + badParent.getName() + " as parent of " + this.getName()
+				        + " as that would create the cycle "
+				        + cycle.stream().map(Tag::getName).collect(Collectors.joining(" -> ", "[", "]")));
+			}
+			
+			this.parents = potentialParents;
+		});
 	}
 	
+	/*
+	 * Breadth first search of the ancestors reachable from parents, each one
+	 * visited once even with diamond shaped hierarchies (or cycles in a loaded
+	 * file). Return the path from one of the parents to the closest ancestor
+	 * matching predicate, or null if none.
+	 */
 	private static ArrayDeque<Tag> getClosestAncestorWith(Collection<TagReference> parents, Predicate<Tag> predicate)
 	{
 		if (parents == null)
 			return null;
 		
-		ArrayDeque<Tag> shortestAncestors = null;
+		// Tag -> the tag it was reached from, null for the parents
+		Map<Tag, Tag> reachedFrom = new HashMap<>();
+		ArrayDeque<Tag> toVisit = new ArrayDeque<>();
 		for (TagReference parentRef : parents)
 		{
 			Tag parent = parentRef.getTag();
-			if (predicate.test(parent))
+			if (!reachedFrom.containsKey(parent))
 			{
-				shortestAncestors = new ArrayDeque<>();
-				shortestAncestors.add(parent);
-				return shortestAncestors;
+				reachedFrom.put(parent, null);
+				toVisit.add(parent);
 			}
-			
-			ArrayDeque<Tag> ancestors = getClosestAncestorWith(parent.parents, predicate);
-			if (shortestAncestors == null || (ancestors != null && ancestors.size() < shortestAncestors.size()-1))
+		}
+		
+		Tag tag;
+		while ((tag = toVisit.poll()) != null)
+		{
+			if (predicate.test(tag))
 			{
-				shortestAncestors = ancestors;
-				
-				if (shortestAncestors != null)
-					shortestAncestors.addFirst(parent);
+				ArrayDeque<Tag> path = new ArrayDeque<>();
+				for (Tag t = tag ; t != null ; t = reachedFrom.get(t))
+					path.addFirst(t);
+				return path;
 			}
+			
+			if (tag.parents != null)
+				for (TagReference parentRef : tag.parents)
+				{
+					Tag parent = parentRef.getTag();
+					if (!reachedFrom.containsKey(parent))
+					{
+						reachedFrom.put(parent, tag);
+						toVisit.add(parent);
+					}
+				}
 		}
 		
-		return shortestAncestors;
+		return null;
 	}
 	
+	/**
+	 * @return the color of this tag, or else of its closest ancestor having one
+	 */
 	public Color getColor()
 	{
 		if (color != null)
 			return color;
 		
-		ArrayDeque<Tag> tags = getClosestAncestorWith(parents, t -> t.color != null);
-		return tags == null ? null : tags.getLast().color;
+		int version = gallery.getTagColorVersion();
+		ResolvedColor resolved = resolvedColor;
+		if (resolved == null || resolved.version() != version)
+		{
+			ArrayDeque<Tag> tags = getClosestAncestorWith(parents, t -> t.color != null);
+			resolved = new ResolvedColor(version, tags == null ? null : tags.getLast().color);
+			resolvedColor = resolved;
+		}
+		
+		return resolved.color();
+	}
+	
+	public void setColor(Color color)
+	{
+		this.color = color;
+		gallery.tagColorChanged(this);
 	}
 	
 	public static boolean isCharacterAllowed(char c)
@@ -152,4 +218,83 @@ public class Tag
 
 		return tagName.isEmpty() ? null : tagName;
 	}
+	
+	private record ResolvedColor(int version, Color color)
+	{
+	}
+	
+	/**
+	 * Streaming (de)serializer of the tags of a gallery, see
+	 * {@link Gallery.GalleryTypeAdapterFactory}
+	 */
+	static final class TagTypeAdapter extends TypeAdapter<Tag>
+	{
+		private final Gallery gallery;
+		private final ColorTypeAdapter colorAdapter = new ColorTypeAdapter();
+		
+		TagTypeAdapter(Gallery gallery)
+		{
+			this.gallery = gallery;
+		}
+		
+		@Override
+		public void write(JsonWriter out, Tag tag) throws IOException
+		{
+			out.beginObject();
+			out.name("name");
+			out.value(tag.name);
+			HashSet<TagReference> parents = tag.parents;
+			if (parents != null)
+			{
+				out.name("parents");
+				out.beginArray();
+				for (TagReference parent : parents)
+					out.value(parent.getTagName());
+				out.endArray();
+			}
+			if (tag.color != null)
+			{
+				out.name("color");
+				colorAdapter.write(out, tag.color);
+			}
+			out.endObject();
+		}
+		
+		@Override
+		public Tag read(JsonReader in) throws IOException
+		{
+			String name = null;
+			HashSet<TagReference> parents = null;
+			Color color = null;
+			
+			in.beginObject();
+			while (in.hasNext())
+			{
+				String property = in.nextName();
+				if (in.peek() == JsonToken.NULL)
+				{
+					in.nextNull();
+					continue;
+				}
+				
+				switch (property)
+				{
+					case "name" -> name = in.nextString();
+					case "parents" ->
+					{
+						parents = new HashSet<>();
+						in.beginArray();
+						while (in.hasNext())
+							parents.add(new TagReference(gallery, in.nextString()));
+						in.endArray();
+					}
+					case "color" -> color = colorAdapter.read(in);
+					default -> in.skipValue();
+				}
+			}
+			in.endObject();
+			
+			return new Tag(gallery, name, parents == null || parents.isEmpty() ? null : parents, color);
+		}
+	}
 }
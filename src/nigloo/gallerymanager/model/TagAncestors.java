@@ -0,0 +1,78 @@
+package nigloo.gallerymanager.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Transitive closure of the tag hierarchy: for each tag, the ids of itself and
+ * all its ancestors.<br/>
+ * Closures are computed on demand, each one from the closures of the direct
+ * parents, and kept until the tag hierarchy changes. A cached closure is never
+ * modified afterward so it can be shared (ex: by an image with a single tag).<br/>
+ * Not thread safe: callers are expected to hold the lock of the tag list.
+ */
+final class TagAncestors
+{
+	private static final CompressedBitmap EMPTY = new CompressedBitmap();
+
+	private final Gallery gallery;
+
+	// By tag id
+	private CompressedBitmap[] closures = new CompressedBitmap[16];
+	private final BitSet inProgress = new BitSet();
+	private int hierarchyVersion;
+
+	TagAncestors(Gallery gallery)
+	{
+		this.gallery = gallery;
+		this.hierarchyVersion = gallery.getTagHierarchyVersion();
+	}
+
+	/**
+	 * @return the ids of tag and all its ancestors. MUST NOT be modified
+	 */
+	public CompressedBitmap selfAndAncestors(Tag tag)
+	{
+		int currentVersion = gallery.getTagHierarchyVersion();
+		if (currentVersion != hierarchyVersion)
+		{
+			hierarchyVersion = currentVersion;
+			Arrays.fill(closures, null);
+		}
+
+		return closure(tag);
+	}
+
+	private CompressedBitmap closure(Tag tag)
+	{
+		int id = tag.getId();
+		if (id < 0)
+			return EMPTY;
+
+		if (id >= closures.length)
+			closures = Arrays.copyOf(closures, Math.max(id + 1, closures.length * 2));
+
+		CompressedBitmap closure = closures[id];
+		if (closure != null)
+			return closure;
+
+		// setParents() forbid cycles but the loaded file may still have some
+		if (inProgress.get(id))
+			return EMPTY;
+
+		inProgress.set(id);
+		try
+		{
+			CompressedBitmap result = new CompressedBitmap();
+			result.add(id);
+			tag.forEachParent(parent -> result.orWith(closure(parent)));
+
+			closures[id] = result;
+			return result;
+		}
+		finally
+		{
+			inProgress.clear(id);
+		}
+	}
+}
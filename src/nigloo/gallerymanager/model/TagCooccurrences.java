@@ -0,0 +1,122 @@
+package nigloo.gallerymanager.model;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Sparse symmetric matrix tag x tag of the number of images explicitly tagged
+ * with both, only the pairs found on some image are stored.<br/>
+ * Kept up to date image by image from the tags before and after each change,
+ * so the related tags of some tags are found without scanning the images.<br/>
+ * Not thread safe: callers are expected to hold the lock of the images to
+ * modify it and at least its read lock to query it.
+ */
+final class TagCooccurrences
+{
+	private static final int[] NONE = new int[0];
+
+	// By tag id
+	private IntIntHashMap[] byTag = new IntIntHashMap[16];
+
+	/**
+	 * Count the pairs of tags of an image again
+	 *
+	 * @param previousTagIds the sorted tag ids of the image when last counted
+	 * @param tagIds its sorted tag ids now
+	 */
+	public void update(int[] previousTagIds, int[] tagIds)
+	{
+		if (previousTagIds == tagIds)
+			return;
+
+		for (int tagId : previousTagIds)
+			if (Arrays.binarySearch(tagIds, tagId) < 0)
+				pairsChanged(tagId, previousTagIds, tagIds, -1);
+
+		for (int tagId : tagIds)
+			if (Arrays.binarySearch(previousTagIds, tagId) < 0)
+				pairsChanged(tagId, tagIds, previousTagIds, 1);
+	}
+
+	/*
+	 * tagId is added to (or removed from) the image having tagIds, those of
+	 * otherTagIds are kept. A pair of tags both added (or removed) is visited
+	 * once from each side.
+	 */
+	private void pairsChanged(int tagId, int[] tagIds, int[] otherTagIds, int delta)
+	{
+		for (int otherId : tagIds)
+		{
+			if (otherId == tagId)
+				continue;
+
+			add(tagId, otherId, delta);
+			if (Arrays.binarySearch(otherTagIds, otherId) >= 0)
+				add(otherId, tagId, delta);
+		}
+	}
+
+	/**
+	 * @return the number of images explicitly tagged with both tags
+	 */
+	public int count(int tagId, int otherId)
+	{
+		return tagId >= 0 && tagId < byTag.length && byTag[tagId] != null ? byTag[tagId].get(otherId) : 0;
+	}
+
+	/**
+	 * Tags the most often found along with some tags: each one is scored by
+	 * the number of images it shares with each of the tags, summed.
+	 *
+	 * @return the ids of at most limit tags, not among tagIds, the best scored
+	 *         first then the oldest
+	 */
+	public int[] related(int[] tagIds, int limit)
+	{
+		if (limit <= 0)
+			return NONE;
+
+		// Dense: the most used tags are found along with most of the others
+		int[] scores = new int[byTag.length];
+		for (int tagId : tagIds)
+			if (tagId >= 0 && tagId < byTag.length && byTag[tagId] != null)
+				byTag[tagId].forEach((otherId, count) -> scores[otherId] += count);
+
+		for (int tagId : tagIds)
+			if (tagId >= 0 && tagId < scores.length)
+				scores[tagId] = 0;
+
+		// Score in the high bits, the lowest ids ranked first on ties
+		PriorityQueue<Long> best = new PriorityQueue<>(Math.min(limit, scores.length) + 1);
+		for (int tagId = 0 ; tagId < scores.length ; tagId++)
+		{
+			if (scores[tagId] == 0)
+				continue;
+
+			long ranked = ((long) scores[tagId] << 32) | (Integer.MAX_VALUE - tagId);
+			if (best.size() < limit)
+				best.add(ranked);
+			else if (ranked > best.peek())
+			{
+				best.poll();
+				best.add(ranked);
+			}
+		}
+
+		int[] result = new int[best.size()];
+		for (int i = result.length - 1 ; i >= 0 ; i--)
+			result[i] = Integer.MAX_VALUE - (int) (long) best.poll();
+		return result;
+	}
+
+	private void add(int tagId, int otherId, int delta)
+	{
+		if (tagId >= byTag.length)
+			byTag = Arrays.copyOf(byTag, Math.max(tagId + 1, byTag.length * 2));
+		if (byTag[tagId] == null)
+			byTag[tagId] = new IntIntHashMap();
+
+		if (byTag[tagId].addTo(otherId, delta) == 0 && byTag[tagId].isEmpty())
+			byTag[tagId] = null;
+	}
+}
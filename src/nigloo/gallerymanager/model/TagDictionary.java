@@ -0,0 +1,174 @@
+package nigloo.gallerymanager.model;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Name -> Tag lookup in constant time, and interning of every tag under a
+ * dense int id (its index in registration order).<br/>
+ * The names are also kept sorted and indexed by trigram, to find the tags
+ * matching a {@link TagPattern} or containing some text without testing
+ * every tag.<br/>
+ * Ids are never reused nor reassigned for the lifetime of the gallery
+ * instance, they are not persisted.<br/>
+ * Not thread safe: callers are expected to hold the lock of the tag list.
+ */
+final class TagDictionary
+{
+	private final HashMap<String, Tag> byName;
+	private final ArrayList<Tag> byId;
+	// Same tags as byName
+	private final TreeMap<String, Tag> sortedByName = new TreeMap<>();
+	private final TrigramIndex nameGrams = new TrigramIndex();
+
+	public TagDictionary()
+	{
+		this(16);
+	}
+
+	public TagDictionary(int expectedSize)
+	{
+		byName = new HashMap<>(Math.max(16, (int) (expectedSize / 0.75f) + 1));
+		byId = new ArrayList<>(expectedSize);
+	}
+
+	public Tag get(String name)
+	{
+		return byName.get(name);
+	}
+
+	public Tag get(int id)
+	{
+		return (id >= 0 && id < byId.size()) ? byId.get(id) : null;
+	}
+
+	/**
+	 * Give tag its id. If another tag already has the same name, the
+	 * first registered one keeps being the one found by name.
+	 *
+	 * @return true if tag can be found by its name
+	 */
+	public boolean register(Tag tag)
+	{
+		tag.id = byId.size();
+		byId.add(tag);
+		return putName(tag);
+	}
+
+	public void rename(Tag tag, String newName)
+	{
+		if (byName.get(tag.getName()) == tag)
+		{
+			byName.remove(tag.getName());
+			sortedByName.remove(tag.getName());
+			nameGrams.remove(tag.getId(), tag.getName());
+		}
+
+		tag.name = newName;
+		putName(tag);
+	}
+
+	/**
+	 * @return the tags found by a name matching pattern, sorted by name
+	 */
+	public List<Tag> find(TagPattern pattern)
+	{
+		List<Tag> found = new ArrayList<>();
+		String prefix = pattern.prefix();
+		if (!prefix.isEmpty())
+		{
+			for (Map.Entry<String, Tag> entry : sortedByName.tailMap(prefix, true).entrySet())
+			{
+				if (!entry.getKey().startsWith(prefix))
+					break;
+				if (pattern.matches(entry.getKey()))
+					found.add(entry.getValue());
+			}
+			return found;
+		}
+
+		CompressedBitmap candidates = nameGrams.candidates(pattern.longestPart());
+		if (candidates == null)
+		{
+			for (Tag tag : sortedByName.values())
+				if (pattern.matches(tag.getName()))
+					found.add(tag);
+			return found;
+		}
+
+		candidates.forEach(id ->
+		{
+			Tag tag = byId.get(id);
+			if (pattern.matches(tag.getName()))
+				found.add(tag);
+		});
+		found.sort(Comparator.comparing(Tag::getName));
+		return found;
+	}
+
+	/**
+	 * @param usage number of images tagged, by tag id
+	 * @return the limit best tags whose name contains text: by position of
+	 *         text in the name, then the most used first, then by name
+	 */
+	public List<Tag> findContaining(String text, int limit, IntUnaryOperator usage)
+	{
+		if (limit <= 0)
+			return List.of();
+
+		// Only the limit best matches are kept, the worst one on top
+		Comparator<TagMatch> ranking = Comparator.comparingInt(TagMatch::position)
+		                                         .thenComparing(Comparator.comparingInt(TagMatch::usage).reversed())
+		                                         .thenComparing(match -> match.tag().getName());
+		PriorityQueue<TagMatch> best = new PriorityQueue<>(limit + 1, ranking.reversed());
+		Consumer<Tag> match = tag ->
+		{
+			int position = tag.getName().indexOf(text);
+			if (position < 0)
+				return;
+
+			best.add(new TagMatch(tag, position, usage.applyAsInt(tag.getId())));
+			if (best.size() > limit)
+				best.poll();
+		};
+
+		CompressedBitmap candidates = nameGrams.candidates(text);
+		if (candidates == null)
+			sortedByName.values().forEach(match);
+		else
+			candidates.forEach(id -> match.accept(byId.get(id)));
+
+		List<TagMatch> sorted = new ArrayList<>(best);
+		sorted.sort(ranking);
+		return sorted.stream().map(TagMatch::tag).toList();
+	}
+
+	/**
+	 * @return the upper bound (exclusive) of the tag ids
+	 */
+	public int idBound()
+	{
+		return byId.size();
+	}
+
+	private record TagMatch(Tag tag, int position, int usage)
+	{
+	}
+
+	private boolean putName(Tag tag)
+	{
+		if (byName.putIfAbsent(tag.getName(), tag) != null)
+			return false;
+
+		sortedByName.put(tag.getName(), tag);
+		nameGrams.add(tag.getId(), tag.getName());
+		return true;
+	}
+}
@@ -0,0 +1,372 @@
+package nigloo.gallerymanager.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+import nigloo.gallerymanager.AsyncPools;
+
+/**
+ * Inverted index tag -> images.<br/>
+ * Every image known by the gallery (saved or not) gets a dense ordinal, and
+ * each tag the bitmap of the ordinals of the images explicitly tagged with it.
+ * The bitmaps including the implicit tags (images tagged with a descendant)
+ * are computed on demand from the explicit ones, then cached and kept up to
+ * date until the tag hierarchy changes.<br/>
+ * Ordinals of removed images are reused, they are not persisted.<br/>
+ * The normalized paths of the images are indexed too, by trigram (see
+ * {@link TrigramIndex}), to find the images whose path contains some text.<br/>
+ * The pairs of tags found together on the images are counted too (see
+ * {@link TagCooccurrences}), from the tags of each image when last indexed.<br/>
+ * Callers are expected to hold the write lock of the gallery images to modify
+ * the index and at least its read lock to query it. Concurrent queries only
+ * share the lazily computed bitmaps, which are guarded by the index itself.
+ */
+final class TagImageIndex
+{
+	private static final CompressedBitmap EMPTY = new CompressedBitmap();
+	// Smallest number of images tested by a parallel task
+	private static final int MIN_PARTITION_SIZE = 2048;
+
+	private final Gallery gallery;
+
+	private final ArrayList<Image> images = new ArrayList<>();
+	// By ordinal, the tag ids of the images counted in cooccurrences
+	private final ArrayList<int[]> indexedTagIds = new ArrayList<>();
+	private int[] freeOrdinals = new int[16];
+	private int nbFreeOrdinals = 0;
+	private final CompressedBitmap allImages = new CompressedBitmap();
+	private final TrigramIndex pathGrams = new TrigramIndex();
+	private final TagCooccurrences cooccurrences = new TagCooccurrences();
+
+	// By tag id
+	private CompressedBitmap[] explicitImages = new CompressedBitmap[16];
+	private CompressedBitmap[] implicitImages = new CompressedBitmap[16];
+	private int[][] children = null;
+	private int hierarchyVersion;
+
+	TagImageIndex(Gallery gallery)
+	{
+		this.gallery = gallery;
+		this.hierarchyVersion = gallery.getTagHierarchyVersion();
+	}
+
+	public CompressedBitmap allImages()
+	{
+		return allImages;
+	}
+
+	public Image image(int ordinal)
+	{
+		return images.get(ordinal);
+	}
+
+	public void add(Image image)
+	{
+		if (image.ordinal >= 0)
+			return;
+
+		int ordinal;
+		if (nbFreeOrdinals > 0)
+		{
+			ordinal = freeOrdinals[--nbFreeOrdinals];
+			images.set(ordinal, image);
+			indexedTagIds.set(ordinal, Image.NO_TAGS);
+		}
+		else
+		{
+			ordinal = images.size();
+			images.add(image);
+			indexedTagIds.add(Image.NO_TAGS);
+		}
+
+		image.ordinal = ordinal;
+		allImages.add(ordinal);
+		pathGrams.add(ordinal, image.getNormalizedPath());
+
+		for (Tag tag : image.getTags())
+			tagAdded(image, tag);
+	}
+
+	public void remove(Image image)
+	{
+		int ordinal = image.ordinal;
+		if (ordinal < 0 || ordinal >= images.size() || images.get(ordinal) != image)
+			return;
+
+		for (Tag tag : image.getTags())
+			tagRemoved(image, tag);
+
+		cooccurrences.update(indexedTagIds.get(ordinal), Image.NO_TAGS);
+		allImages.remove(ordinal);
+		pathGrams.remove(ordinal, image.getNormalizedPath());
+		images.set(ordinal, null);
+		indexedTagIds.set(ordinal, null);
+		if (nbFreeOrdinals == freeOrdinals.length)
+			freeOrdinals = Arrays.copyOf(freeOrdinals, nbFreeOrdinals * 2);
+		freeOrdinals[nbFreeOrdinals++] = ordinal;
+		image.ordinal = -1;
+	}
+
+	public void tagAdded(Image image, Tag tag)
+	{
+		if (!isIndexed(image))
+			return;
+
+		ensureCapacity(tag.getId());
+		if (explicitImages[tag.getId()] == null)
+			explicitImages[tag.getId()] = new CompressedBitmap();
+		explicitImages[tag.getId()].add(image.ordinal);
+		updateCooccurrences(image);
+
+		checkHierarchyVersion();
+		gallery.getTagAncestors(tag.getId()).forEach(ancestorId ->
+		{
+			if (ancestorId < implicitImages.length && implicitImages[ancestorId] != null)
+				implicitImages[ancestorId].add(image.ordinal);
+		});
+	}
+
+	public void tagRemoved(Image image, Tag tag)
+	{
+		if (!isIndexed(image) || tag.getId() >= explicitImages.length || explicitImages[tag.getId()] == null)
+			return;
+
+		explicitImages[tag.getId()].remove(image.ordinal);
+		updateCooccurrences(image);
+
+		// The image may still have the ancestors through another tag
+		checkHierarchyVersion();
+		gallery.getTagAncestors(tag.getId()).forEach(ancestorId ->
+		{
+			if (ancestorId < implicitImages.length)
+				implicitImages[ancestorId] = null;
+		});
+	}
+
+	public void imageMoved(Image image, String previousNormalizedPath)
+	{
+		if (!isIndexed(image))
+			return;
+
+		pathGrams.remove(image.ordinal, previousNormalizedPath);
+		pathGrams.add(image.ordinal, image.getNormalizedPath());
+	}
+
+	/**
+	 * @param normalizedText normalized with {@link Image#normalizePath(String)}
+	 * @return the images whose normalized path contains normalizedText
+	 */
+	public CompressedBitmap imagesWithPathContaining(String normalizedText)
+	{
+		return imagesMatching(imagesMaybeWithPathContaining(normalizedText),
+		                      image -> image.getNormalizedPath().contains(normalizedText));
+	}
+
+	/**
+	 * @param normalizedText normalized with {@link Image#normalizePath(String)}
+	 * @return the images whose normalized path may contain normalizedText (all
+	 *         of them if it is too short to use the trigram index). MUST NOT
+	 *         be modified
+	 */
+	public CompressedBitmap imagesMaybeWithPathContaining(String normalizedText)
+	{
+		CompressedBitmap candidates = pathGrams.candidates(normalizedText);
+		return candidates != null ? candidates : allImages;
+	}
+
+	/**
+	 * Test the candidates by partitions of consecutive ordinals, in parallel
+	 * on {@link AsyncPools#COMPUTE}. The calling thread keeps the lock of the
+	 * gallery images until every partition is tested.
+	 *
+	 * @return the candidates whose image matches predicate
+	 */
+	public CompressedBitmap imagesMatching(CompressedBitmap candidates, Predicate<? super Image> predicate)
+	{
+		int[] ordinals = candidates.toArray();
+		int nbPartitions = Math.min(AsyncPools.COMPUTE.getParallelism() * 4, ordinals.length / MIN_PARTITION_SIZE);
+		if (nbPartitions <= 1)
+			return imagesMatching(ordinals, 0, ordinals.length, predicate);
+
+		List<ForkJoinTask<CompressedBitmap>> partitions = new ArrayList<>(nbPartitions);
+		for (int i = 0 ; i < nbPartitions ; i++)
+		{
+			int from = (int) ((long) ordinals.length * i / nbPartitions);
+			int to = (int) ((long) ordinals.length * (i + 1) / nbPartitions);
+			partitions.add(AsyncPools.COMPUTE.submit(() -> imagesMatching(ordinals, from, to, predicate)));
+		}
+
+		CompressedBitmap result = new CompressedBitmap();
+		for (ForkJoinTask<CompressedBitmap> partition : partitions)
+			result.orWith(partition.join());
+		return result;
+	}
+
+	private CompressedBitmap imagesMatching(int[] ordinals, int from, int to, Predicate<? super Image> predicate)
+	{
+		CompressedBitmap result = new CompressedBitmap();
+		for (int i = from ; i < to ; i++)
+			if (predicate.test(images.get(ordinals[i])))
+				result.add(ordinals[i]);
+		return result;
+	}
+
+	/**
+	 * @return the number of images explicitly tagged with the tag
+	 */
+	public int usage(int tagId)
+	{
+		return tagId >= 0 && tagId < explicitImages.length && explicitImages[tagId] != null
+		        ? explicitImages[tagId].cardinality()
+		        : 0;
+	}
+
+	/**
+	 * See {@link TagCooccurrences#related(int[], int)}
+	 */
+	public int[] relatedTags(int[] tagIds, int limit)
+	{
+		return cooccurrences.related(tagIds, limit);
+	}
+
+	/**
+	 * @return the images explicitly tagged with the tag. MUST NOT be modified
+	 */
+	public CompressedBitmap imagesWithExplicitTag(int tagId)
+	{
+		return tagId >= 0 && tagId < explicitImages.length && explicitImages[tagId] != null
+		        ? explicitImages[tagId]
+		        : EMPTY;
+	}
+
+	public synchronized CompressedBitmap imagesWithTag(Tag tag)
+	{
+		if (tag == null || tag.getId() < 0)
+			return EMPTY;
+
+		checkHierarchyVersion();
+		ensureCapacity(tag.getId());
+
+		CompressedBitmap result = implicitImages[tag.getId()];
+		if (result == null)
+		{
+			result = new CompressedBitmap();
+			for (int descendantId : selfAndDescendants(tag))
+				if (descendantId < explicitImages.length && explicitImages[descendantId] != null)
+					result.orWith(explicitImages[descendantId]);
+
+			implicitImages[tag.getId()] = result;
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return true if the image is known by the gallery (saved or not)
+	 */
+	public boolean isIndexed(Image image)
+	{
+		return image.ordinal >= 0 && image.ordinal < images.size() && images.get(image.ordinal) == image;
+	}
+
+	/*
+	 * Count the pairs of tags of the image again, against its tags when last
+	 * indexed: right even if the image was retagged again since the change
+	 * notified (each notification then only updates what is left)
+	 */
+	private void updateCooccurrences(Image image)
+	{
+		int[] tagIds = image.getTagIds();
+		cooccurrences.update(indexedTagIds.get(image.ordinal), tagIds);
+		indexedTagIds.set(image.ordinal, tagIds);
+	}
+
+	private void checkHierarchyVersion()
+	{
+		int currentVersion = gallery.getTagHierarchyVersion();
+		if (currentVersion != hierarchyVersion)
+		{
+			hierarchyVersion = currentVersion;
+			Arrays.fill(implicitImages, null);
+			children = null;
+		}
+	}
+
+	private void ensureCapacity(int tagId)
+	{
+		if (tagId >= explicitImages.length)
+		{
+			int newLength = Math.max(tagId + 1, explicitImages.length * 2);
+			explicitImages = Arrays.copyOf(explicitImages, newLength);
+			implicitImages = Arrays.copyOf(implicitImages, newLength);
+		}
+	}
+
+	private List<Integer> selfAndDescendants(Tag tag)
+	{
+		if (children == null)
+			children = buildChildren();
+
+		return traverse(tag.getId(), id -> id < children.length && children[id] != null ? children[id] : new int[0]);
+	}
+
+	/*
+	 * Tags reachable from start (itself included), each one only once even
+	 * with diamond shaped hierarchies.
+	 */
+	private static List<Integer> traverse(int start, IntFunction<int[]> next)
+	{
+		List<Integer> visited = new ArrayList<>();
+		BitSet seen = new BitSet();
+		ArrayDeque<Integer> toVisit = new ArrayDeque<>();
+		toVisit.add(start);
+		seen.set(start);
+
+		Integer id;
+		while ((id = toVisit.poll()) != null)
+		{
+			visited.add(id);
+			for (int nextId : next.apply(id))
+				if (nextId >= 0 && !seen.get(nextId))
+				{
+					seen.set(nextId);
+					toVisit.add(nextId);
+				}
+		}
+		return visited;
+	}
+
+	private int[][] buildChildren()
+	{
+		Collection<Tag> allTags = gallery.getTagsSnapshot();
+		int[][] children = new int[allTags.stream().mapToInt(Tag::getId).max().orElse(-1) + 1][];
+		int[] nbChildren = new int[children.length];
+
+		for (Tag tag : allTags)
+			tag.forEachParent(parent ->
+			{
+				int p = parent.getId();
+				if (p >= 0 && p < children.length)
+				{
+					if (children[p] == null)
+						children[p] = new int[2];
+					else if (nbChildren[p] == children[p].length)
+						children[p] = Arrays.copyOf(children[p], nbChildren[p] * 2);
+					children[p][nbChildren[p]++] = tag.getId();
+				}
+			});
+
+		for (int i = 0 ; i < children.length ; i++)
+			if (children[i] != null)
+				children[i] = Arrays.copyOf(children[i], nbChildren[i]);
+
+		return children;
+	}
+}
@@ -0,0 +1,144 @@
+package nigloo.gallerymanager.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pattern of normalized tag names where {@value #WILDCARD} stands for any
+ * sequence of characters (ex: artist_*, *_outfit). As tags may contain
+ * {@value #WILDCARD}, {@value #ESCAPE}{@value #WILDCARD} stands for it
+ * literally (ex: 5\*_rating).<br/>
+ * See {@link Gallery#findTags(TagPattern)}.
+ */
+public final class TagPattern
+{
+	public static final char WILDCARD = '*';
+	public static final char ESCAPE = '\\';
+
+	private final String pattern;
+	// The pattern split around the wildcards and unescaped, the first and last ones may be empty
+	private final String[] parts;
+
+	public TagPattern(String normalizedPattern)
+	{
+		this.pattern = normalizedPattern;
+		
+		List<String> parts = new ArrayList<>();
+		StringBuilder part = new StringBuilder();
+		for (int i = 0 ; i < normalizedPattern.length() ; i++)
+		{
+			char c = normalizedPattern.charAt(i);
+			if (isEscapedWildcard(normalizedPattern, i))
+			{
+				part.append(WILDCARD);
+				i++;
+			}
+			else if (c == WILDCARD)
+			{
+				parts.add(part.toString());
+				part.setLength(0);
+			}
+			else
+				part.append(c);
+		}
+		parts.add(part.toString());
+		this.parts = parts.toArray(String[]::new);
+	}
+
+	/**
+	 * @return true if normalizedTagName has a wildcard not escaped
+	 */
+	public static boolean isPattern(String normalizedTagName)
+	{
+		for (int i = 0 ; i < normalizedTagName.length() ; i++)
+		{
+			if (isEscapedWildcard(normalizedTagName, i))
+				i++;
+			else if (normalizedTagName.charAt(i) == WILDCARD)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the tag name written without its escapes, for a name which
+	 *         isn't a pattern (see {@link #isPattern(String)})
+	 */
+	public static String unescape(String normalizedTagName)
+	{
+		return normalizedTagName.replace(ESCAPE + "" + WILDCARD, String.valueOf(WILDCARD));
+	}
+
+	/**
+	 * @return how to write tagName so it isn't read as a pattern
+	 */
+	public static String escape(String tagName)
+	{
+		return tagName.replace(String.valueOf(WILDCARD), ESCAPE + "" + WILDCARD);
+	}
+
+	private static boolean isEscapedWildcard(String s, int pos)
+	{
+		return s.charAt(pos) == ESCAPE && pos + 1 < s.length() && s.charAt(pos + 1) == WILDCARD;
+	}
+
+	public boolean matches(String tagName)
+	{
+		String first = parts[0];
+		String last = parts[parts.length - 1];
+		if (parts.length == 1)
+			return tagName.equals(first);
+		if (tagName.length() < first.length() + last.length() || !tagName.startsWith(first)
+		        || !tagName.endsWith(last))
+			return false;
+
+		int pos = first.length();
+		int end = tagName.length() - last.length();
+		for (int i = 1 ; i < parts.length - 1 ; i++)
+		{
+			int found = tagName.indexOf(parts[i], pos);
+			if (found < 0 || found + parts[i].length() > end)
+				return false;
+			pos = found + parts[i].length();
+		}
+		return true;
+	}
+
+	/**
+	 * @return what the matching names start with, maybe empty
+	 */
+	String prefix()
+	{
+		return parts[0];
+	}
+
+	/**
+	 * @return the longest text every matching name contains
+	 */
+	String longestPart()
+	{
+		String longest = "";
+		for (String part : parts)
+			if (part.length() > longest.length())
+				longest = part;
+		return longest;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		return obj instanceof TagPattern other && pattern.equals(other.pattern);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return pattern.hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		return pattern;
+	}
+}
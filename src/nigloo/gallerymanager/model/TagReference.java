@@ -38,10 +38,36 @@ public class TagReference
 		registerInstance();
 	}
 	
+	/*
+	 * Used by the deserializers, which give the gallery instead of injecting
+	 * each reference
+	 */
+	TagReference(Gallery gallery, String tagName)
+	{
+		this.tagName = Objects.requireNonNull(tagName, "tagName");
+		this.tag = null;
+		this.gallery = gallery;
+		
+		registerInstance();
+	}
+	
 	// MUST be the LAST instruction of ANY constructor
 	private void registerInstance()
 	{
-		gallery.allTagReferences.add(this);
+		gallery.registerReference(this);
+	}
+	
+	/*
+	 * Called by the gallery once loaded. Return false if the tag doesn't exist
+	 * (yet), the reference is then resolved on first use as usual
+	 */
+	boolean resolveLoaded()
+	{
+		String normalizedName = Tag.normalize(tagName);
+		if (tag == null && normalizedName != null)
+			tag = gallery.findTag(normalizedName);
+		
+		return tag != null;
 	}
 	
 	public Tag getTag()
@@ -0,0 +1,103 @@
+package nigloo.gallerymanager.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Number of images of a set having each tag (explicitly), kept up to date
+ * image by image: only the images added to the set, removed from it or
+ * retagged are counted again.<br/>
+ * Not thread safe.
+ */
+public final class TagUsageCounts
+{
+	private final Gallery gallery;
+	// Tags counted for each image of the set (the tag arrays of the images are copy on write)
+	private final Map<Image, int[]> countedTags = new IdentityHashMap<>();
+	// By tag id
+	private int[] counts = new int[16];
+
+	public TagUsageCounts(Gallery gallery)
+	{
+		this.gallery = gallery;
+	}
+
+	public static TagUsageCounts of(Gallery gallery, Collection<Image> images)
+	{
+		TagUsageCounts tagCounts = new TagUsageCounts(gallery);
+		for (Image image : images)
+			tagCounts.update(image, true);
+		return tagCounts;
+	}
+
+	/**
+	 * Count the tags of the image again, if in the set
+	 *
+	 * @return true if any count changed
+	 */
+	public boolean update(Image image, boolean inSet)
+	{
+		int[] previousTagIds = countedTags.get(image);
+		int[] tagIds = inSet ? image.getTagIds() : null;
+		if (previousTagIds == tagIds)
+			return false;
+
+		if (previousTagIds != null)
+			for (int tagId : previousTagIds)
+				counts[tagId]--;
+
+		if (tagIds == null)
+		{
+			countedTags.remove(image);
+		}
+		else
+		{
+			countedTags.put(image, tagIds);
+			for (int tagId : tagIds)
+			{
+				if (tagId >= counts.length)
+					counts = Arrays.copyOf(counts, Math.max(tagId + 1, counts.length * 2));
+				counts[tagId]++;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of images in the set
+	 */
+	public int getNbImages()
+	{
+		return countedTags.size();
+	}
+
+	public int getCount(Tag tag)
+	{
+		return tag.getId() >= 0 && tag.getId() < counts.length ? counts[tag.getId()] : 0;
+	}
+
+	/**
+	 * @return the tags used by the images of the set, the most used first then by name
+	 */
+	public List<TagCount> getSortedCounts()
+	{
+		List<TagCount> result = new ArrayList<>();
+		for (int tagId = 0 ; tagId < counts.length ; tagId++)
+			if (counts[tagId] > 0)
+				result.add(new TagCount(gallery.findTag(tagId), counts[tagId]));
+
+		result.sort(Comparator.comparingInt(TagCount::count)
+		                      .reversed()
+		                      .thenComparing(tagCount -> tagCount.tag().getName()));
+		return result;
+	}
+
+	public record TagCount(Tag tag, int count)
+	{
+	}
+}
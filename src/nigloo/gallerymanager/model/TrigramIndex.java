@@ -0,0 +1,83 @@
+package nigloo.gallerymanager.model;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Trigram index of texts identified by an int (the normalized paths of the
+ * images by ordinal, see {@link TagImageIndex}, or the tag names by id, see
+ * {@link TagDictionary}): for each sequence of 3 characters, the bitmap of
+ * the ids of the texts containing it.<br/>
+ * A text containing a substring has all its trigrams, so their intersection
+ * narrows the texts to check to a few candidates.<br/>
+ * Not thread safe: same locking as the index maintaining it.
+ */
+final class TrigramIndex
+{
+	static final int GRAM_LENGTH = 3;
+
+	private final LongObjectHashMap<CompressedBitmap> idsByGram = new LongObjectHashMap<>();
+
+	void add(int id, String text)
+	{
+		forEachGram(text, gram ->
+		{
+			CompressedBitmap ids = idsByGram.get(gram);
+			if (ids == null)
+			{
+				ids = new CompressedBitmap();
+				idsByGram.put(gram, ids);
+			}
+			ids.add(id);
+		});
+	}
+
+	void remove(int id, String text)
+	{
+		forEachGram(text, gram ->
+		{
+			CompressedBitmap ids = idsByGram.get(gram);
+			if (ids != null && ids.remove(id) && ids.isEmpty())
+				idsByGram.remove(gram);
+		});
+	}
+
+	/**
+	 * @return the ids of the texts which may contain substring, or null if it
+	 *         is too short to use the index. MUST NOT be modified as it may
+	 *         belong to the index
+	 */
+	CompressedBitmap candidates(String substring)
+	{
+		if (substring.length() < GRAM_LENGTH)
+			return null;
+
+		List<CompressedBitmap> gramIds = new ArrayList<>();
+		boolean[] missing = { false };
+		forEachGram(substring, gram ->
+		{
+			CompressedBitmap ids = idsByGram.get(gram);
+			if (ids == null)
+				missing[0] = true;
+			else
+				gramIds.add(ids);
+		});
+		if (missing[0])
+			return new CompressedBitmap();
+
+		// Rarest first, the intersection only shrinks
+		gramIds.sort(Comparator.comparingInt(CompressedBitmap::cardinality));
+		CompressedBitmap result = gramIds.get(0);
+		for (int i = 1 ; i < gramIds.size() && !result.isEmpty() ; i++)
+			result = CompressedBitmap.and(result, gramIds.get(i));
+		return result;
+	}
+
+	private static void forEachGram(String s, LongConsumer action)
+	{
+		for (int i = 0 ; i + GRAM_LENGTH <= s.length() ; i++)
+			action.accept((long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2));
+	}
+}
@@ -3,17 +3,23 @@ package nigloo.gallerymanager.script;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Path;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 
 import org.apache.logging.log4j.Level;
 
+import nigloo.gallerymanager.filter.ImageFilter;
+import nigloo.gallerymanager.filter.ImageFilterPlan;
 import nigloo.gallerymanager.model.Gallery;
 import nigloo.gallerymanager.ui.UIController;
+import nigloo.tool.Utils;
 import nigloo.tool.injection.Injector;
 import nigloo.tool.injection.annotation.Inject;
 
@@ -48,7 +54,26 @@ public class ScriptAPI implements AutoCloseable
 	
 	public void saveGallery() throws IOException
 	{
-		uiController.saveGallery();
+		try
+		{
+			asyncSaveGallery().get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException ioe)
+				throw ioe;
+			throw Utils.asRunTimeException(e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while saving the gallery", e);
+		}
+	}
+	
+	public CompletableFuture<Void> asyncSaveGallery()
+	{
+		return uiController.syncGallery();
 	}
 	
 	public CompletableFuture<Void> asyncRefreshFileSystem(Collection<Path> paths, boolean deep)
@@ -66,6 +91,34 @@ public class ScriptAPI implements AutoCloseable
 		return uiController.delete(toAbsolute(paths), deleteOnDisk);
 	}
 
+	/**
+	 * @return the plan of the filter expression evaluated on the whole
+	 *         gallery, with the estimated and actual number of matching images
+	 *         of each term
+	 */
+	public String explainFilter(String filterExpression) throws ParseException
+	{
+		ImageFilter filter = ImageFilter.parse(filterExpression);
+		ImageFilterPlan[] plan = new ImageFilterPlan[1];
+		gallery.findImages(index ->
+		{
+			plan[0] = filter.plan(index);
+			return plan[0].evaluate(index);
+		});
+		return plan[0].explain();
+	}
+
+	/**
+	 * Rename or merge many tags at once (ex: { "old_name": "new_name",
+	 * "duplicate": "existing_tag" }), see {@link Gallery#renameTags(Map)}
+	 *
+	 * @return the number of images retagged
+	 */
+	public int renameTags(Map<String, String> plan)
+	{
+		return gallery.renameTags(plan);
+	}
+
 	public Executor getAsyncExecutor()
 	{
 		return asyncExecutor;
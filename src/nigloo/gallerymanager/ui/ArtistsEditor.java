@@ -271,6 +271,8 @@ public class ArtistsEditor extends SplitPane {
             String titleFilter = editor.titleFilterRegex.getText();
             downloader.setTitleFilterRegex(Utils.isNotBlank(titleFilter) ? Pattern.compile(titleFilter) : null);
         }
+
+        gallery.settingsChanged();
     }
 
     private void validate(ArtistData artistData) throws IllegalArgumentException
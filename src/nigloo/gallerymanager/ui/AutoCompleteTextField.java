@@ -5,6 +5,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
@@ -27,9 +31,11 @@ import javafx.scene.text.TextFlow;
 import javafx.stage.Popup;
 import javafx.util.Duration;
 import lombok.Getter;
+import nigloo.gallerymanager.AsyncPools;
 
 public class AutoCompleteTextField extends TextField
 {
+	private static final Logger LOGGER = LogManager.getLogger(AutoCompleteTextField.class);
 	private static final int SUGGESTION_DELAY = 500;
 	
 	@Getter
@@ -38,6 +44,8 @@ public class AutoCompleteTextField extends TextField
 	private final SuggestionsPopup entriesPopup;
 	
 	private final Timeline delayedShowSuggestion;
+	// Suggestions being computed, only accessed from the FX application thread
+	private CompletableFuture<Collection<String>> pendingSuggestions = null;
 	
 	private final ChangeListener<Number> caretPositionChangeListener;
 	private final ChangeListener<Boolean> focusedChangeListener;
@@ -70,6 +78,9 @@ public class AutoCompleteTextField extends TextField
 		{
 			String chars = event.getCharacter();
 			
+			// The text changed, the suggestions being computed are stale
+			cancelPendingSuggestions();
+			
 			if (chars.equals(" ") && event.isControlDown())
 				showSuggestions(true);
 			else if (!chars.contains("\r") && !chars.contains("\n") && !event.isControlDown())
@@ -115,28 +126,61 @@ public class AutoCompleteTextField extends TextField
 		this.resultMaxHeight.set(resultMaxHeight);
 	}
 
+	/*
+	 * The suggestions are computed in the background, and only shown if the
+	 * text didn't change meanwhile
+	 */
 	private void showSuggestions(boolean showEvenIfEmptySearchText)
 	{
 		Platform.runLater(() ->
 		{
-			String searchText = autoCompletionBehavior.getSearchText(this);
-			Collection<String> suggestions = autoCompletionBehavior.getSuggestions(this, searchText);
+			cancelPendingSuggestions();
 			
+			String searchText = autoCompletionBehavior.getSearchText(this);
 			if ((searchText == null || searchText.isEmpty()) && !showEvenIfEmptySearchText)
 			{
 				// Don't show suggestions. Don't hide any visible one either (from ctrl+space)
+				return;
 			}
-			else if (suggestions != null && !suggestions.isEmpty())
-			{
-				entriesPopup.showSearchResult(suggestions, searchText);
-			}
-			else
+			
+			AutoCompletionBehavior behavior = autoCompletionBehavior;
+			CompletableFuture<Collection<String>> suggestions =
+			        CompletableFuture.supplyAsync(() -> behavior.getSuggestions(this, searchText), AsyncPools.COMPUTE);
+			pendingSuggestions = suggestions;
+			
+			suggestions.whenCompleteAsync((result, error) ->
 			{
-				entriesPopup.hide();
-			}
+				if (pendingSuggestions != suggestions)
+					return;
+				pendingSuggestions = null;
+				
+				if (error != null)
+				{
+					LOGGER.error("Cannot get the suggestions for " + searchText, error);
+					entriesPopup.hide();
+				}
+				else if (result != null && !result.isEmpty())
+				{
+					entriesPopup.showSearchResult(result, searchText);
+				}
+				else
+				{
+					entriesPopup.hide();
+				}
+			}, AsyncPools.FX_APPLICATION);
 		});
 	}
 	
+	private void cancelPendingSuggestions()
+	{
+		if (pendingSuggestions != null)
+		{
+			// Not computed at all if not started yet
+			pendingSuggestions.cancel(false);
+			pendingSuggestions = null;
+		}
+	}
+	
 	private class SuggestionsPopup extends Popup
 	{
 		private final ObservableList<Node> items;
@@ -256,6 +300,10 @@ public class AutoCompleteTextField extends TextField
 			return field.getText();
 		}
 		
+		/**
+		 * Called outside the FX application thread: the field MUST NOT be
+		 * accessed
+		 */
 		Collection<String> getSuggestions(AutoCompleteTextField field, String searchText);
 		
 		default void onSuggestionSelected(AutoCompleteTextField field, String suggestion)
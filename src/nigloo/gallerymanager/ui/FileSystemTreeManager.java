@@ -45,11 +45,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -751,6 +753,33 @@ public class FileSystemTreeManager
 		StopWatch timer = new StopWatch();
 		timer.start();
 		
+		return refreshItems(images).thenApplyAsync(v ->
+		{
+			final HashSet<Image> imagesSet = new HashSet<>(images);
+			
+			List<Image> sortedImages = getImages(treeView.getRoot()).filter(image -> imagesSet.contains(image))
+			                                                        .toList();
+			
+			LOGGER.debug(UPDATE_THUMBNAILS,
+			             "List<Image> sortedImages = getImages(...) ({}) : {}ms",
+			             sortedImages.size(),
+			             timer.split());
+			
+			return sortedImages;
+		}, AsyncPools.FX_APPLICATION);
+	}
+	
+	/**
+	 * Make sure every image has its item in the tree, with its status up to
+	 * date. Completes in the FX application thread.
+	 */
+	public CompletableFuture<Void> refreshItems(Collection<Image> images)
+	{
+		assert Platform.isFxApplicationThread();
+		
+		StopWatch timer = new StopWatch();
+		timer.start();
+		
 		return completableFutureAllOf(images.stream().map(image ->
 		{
 			Path absPath = image.getAbsolutePath();
@@ -759,7 +788,7 @@ public class FileSystemTreeManager
 			return item == null || !item.getValue().isImage()
 			        ? CompletableFuture.supplyAsync(() -> Map.entry(image, Files.exists(absPath)), AsyncPools.DISK_IO)
 			        : null;
-		}).filter(Objects::nonNull).toList()).thenApplyAsync(results ->
+		}).filter(Objects::nonNull).toList()).thenAcceptAsync(results ->
 		{
 			LOGGER.debug(UPDATE_THUMBNAILS, "Return allOf Files.exists ({}) : {}ms", results.size(), timer.split());
 			
@@ -783,21 +812,57 @@ public class FileSystemTreeManager
 			}
 			
 			LOGGER.debug(UPDATE_THUMBNAILS, "Update treeView ({}) : {}ms", results.size(), timer.split());
-			
-			final HashSet<Image> imagesSet = new HashSet<>(images);
-			
-			List<Image> sortedImages = getImages(treeView.getRoot()).filter(image -> imagesSet.contains(image))
-			                                                        .toList();
-			
-			LOGGER.debug(UPDATE_THUMBNAILS,
-			             "List<Image> sortedImages = getImages(...) ({}) : {}ms",
-			             sortedImages.size(),
-			             timer.split());
-			
-			return sortedImages;
 		}, AsyncPools.FX_APPLICATION);
 	}
 	
+	/**
+	 * The order of the images in the tree, the one of
+	 * {@link #refreshAndGetInOrder(Collection)}. Images without item are
+	 * sorted last.<br/>
+	 * Only valid until the tree is modified: the position of the items are
+	 * cached, and only computed for the folders of the images compared.
+	 */
+	public Comparator<Image> treeOrder()
+	{
+		assert Platform.isFxApplicationThread();
+		
+		Map<TreeItem<FileSystemElement>, Map<TreeItem<FileSystemElement>, Integer>> childIndexes = new IdentityHashMap<>();
+		Map<Image, int[]> positions = new IdentityHashMap<>();
+		
+		return Comparator.comparing(image -> positions.computeIfAbsent(image, i -> treePosition(i, childIndexes)),
+		                            Comparator.nullsLast(Arrays::compare));
+	}
+	
+	/*
+	 * Index of each item in its parent, from the root to the item of image
+	 */
+	private int[] treePosition(Image image,
+	                           Map<TreeItem<FileSystemElement>, Map<TreeItem<FileSystemElement>, Integer>> childIndexes)
+	{
+		TreeItem<FileSystemElement> item = getTreeItem(image.getAbsolutePath(), false);
+		if (item == null || !item.getValue().isImage())
+			return null;
+		
+		int depth = 0;
+		for (TreeItem<FileSystemElement> i = item ; i.getParent() != null ; i = i.getParent())
+			depth++;
+		
+		int[] position = new int[depth];
+		for (TreeItem<FileSystemElement> i = item ; i.getParent() != null ; i = i.getParent())
+		{
+			Map<TreeItem<FileSystemElement>, Integer> indexes = childIndexes.computeIfAbsent(i.getParent(), parent ->
+			{
+				Map<TreeItem<FileSystemElement>, Integer> map = new IdentityHashMap<>();
+				for (TreeItem<FileSystemElement> child : parent.getChildren())
+					map.put(child, map.size());
+				return map;
+			});
+			position[--depth] = indexes.get(i);
+		}
+		
+		return position;
+	}
+	
 	private static Stream<Image> getImages(TreeItem<FileSystemElement> rootItem)
 	{
 		if (rootItem.getValue().isImage())
@@ -0,0 +1,366 @@
+package nigloo.gallerymanager.ui;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+
+import nigloo.gallerymanager.model.BinaryGallerySnapshot;
+import nigloo.gallerymanager.model.Gallery;
+import nigloo.gallerymanager.model.GalleryChange;
+import nigloo.gallerymanager.model.GalleryJournal;
+import nigloo.tool.StopWatch;
+
+/**
+ * Save the gallery in the background.<br/>
+ * The changes published by the gallery mark it dirty, and the saves requested
+ * within the save delay are coalesced in a single write, made by a dedicated
+ * thread: the changes are appended to the journal, or a new snapshot of the
+ * gallery is written when they cannot be journaled, when the journal is
+ * getting too big or when explicitly requested. The gallery is serialized from
+ * a consistent snapshot of its images, without blocking the changes.<br/>
+ * On {@link #close()} only the pending changes are flushed.<br/>
+ * Optionally, a binary copy of the snapshot is kept next to it to open the
+ * gallery faster (see {@link BinaryGallerySnapshot}), regenerated after each
+ * snapshot or when found stale.
+ */
+public final class GalleryPersistence implements Consumer<GalleryChange>, AutoCloseable
+{
+	private static final Logger LOGGER = LogManager.getLogger(GalleryPersistence.class);
+	// Compact the journal into a new snapshot once bigger than this fraction of the snapshot
+	private static final int JOURNAL_MAX_SIZE_RATIO = 4;
+
+	private final Path galleryFile;
+	// null if disabled
+	private final Path binaryFile;
+	private final Gson gson;
+	private final long saveDelayMs;
+	private final ScheduledThreadPoolExecutor executor;
+
+	private Gallery gallery;
+	// Changes since the last snapshot of the gallery (galleryFile)
+	private GalleryJournal journal;
+
+	// Guarded by this
+	private boolean dirty = false;
+	private long firstUnsavedChange = 0;
+	private boolean snapshotRequested = false;
+	private CompletableFuture<Void> pendingSave = null;
+	private boolean closed = false;
+
+	public GalleryPersistence(Path galleryFile, Gson gson, long saveDelayMs, boolean binarySnapshot)
+	{
+		this.galleryFile = galleryFile;
+		this.binaryFile = binarySnapshot ? galleryFile.resolveSibling(galleryFile.getFileName() + ".bin") : null;
+		this.gson = gson;
+		this.saveDelayMs = saveDelayMs;
+		this.executor = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name("gallery-persistence").daemon().factory());
+		this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * Read the gallery and its journal, then start saving its changes
+	 */
+	public Gallery open() throws IOException
+	{
+		LOGGER.info("Opening gallery {}", galleryFile);
+		StopWatch timer = new StopWatch().start();
+		gallery = binaryFile == null ? null : BinaryGallerySnapshot.read(binaryFile, galleryFile, gson);
+		boolean binaryUpToDate = gallery != null;
+		if (!binaryUpToDate)
+		{
+			try (Reader reader = Files.newBufferedReader(galleryFile, StandardCharsets.UTF_8))
+			{
+				gallery = gson.fromJson(reader, Gallery.class);
+			}
+		}
+		long readTime = timer.split();
+
+		journal = new GalleryJournal(gallery, galleryFile.resolveSibling(galleryFile.getFileName() + ".journal"), gson);
+		journal.replay(galleryFile);
+
+		timer = new StopWatch().start();
+		gallery.postConstruct(galleryFile.getParent());
+		long postConstructTime = timer.split();
+
+		journal.start(galleryFile);
+		gallery.addChangeListener(this);
+
+		if (binaryUpToDate)
+			logGalleryThroughput("read from binary snapshot", Files.size(binaryFile), readTime);
+		else
+			logGalleryThroughput("read", Files.size(galleryFile), readTime);
+		LOGGER.info("Gallery post construct: {}ms", postConstructTime);
+
+		if (binaryFile != null && !binaryUpToDate)
+			executor.execute(this::writeBinarySnapshot);
+
+		return gallery;
+	}
+
+	@Override
+	public void accept(GalleryChange change)
+	{
+		synchronized (this)
+		{
+			if (!dirty)
+			{
+				dirty = true;
+				firstUnsavedChange = System.currentTimeMillis();
+			}
+		}
+		requestSave();
+	}
+
+	/**
+	 * Save the changes within the save delay, along with the other changes
+	 * requested meanwhile
+	 *
+	 * @return completed once the changes are saved
+	 */
+	public synchronized CompletableFuture<Void> requestSave()
+	{
+		if (closed)
+			return CompletableFuture.completedFuture(null);
+
+		if (pendingSave == null)
+		{
+			pendingSave = new CompletableFuture<>();
+			executor.schedule(this::save, saveDelayMs, TimeUnit.MILLISECONDS);
+		}
+		return pendingSave;
+	}
+
+	/**
+	 * Write a new snapshot of the gallery now, the journal is emptied
+	 *
+	 * @return completed once the snapshot is written
+	 */
+	public CompletableFuture<Void> requestSnapshot()
+	{
+		CompletableFuture<Void> result;
+		synchronized (this)
+		{
+			if (closed)
+				return CompletableFuture.completedFuture(null);
+
+			snapshotRequested = true;
+			result = requestSave();
+			// The delayed save still runs, with nothing left to save
+			executor.execute(this::save);
+		}
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		synchronized (this)
+		{
+			if (closed)
+				return;
+			closed = true;
+		}
+
+		executor.shutdown();
+		if (journal == null)
+			return;
+
+		gallery.removeChangeListener(this);
+		try
+		{
+			if (!executor.awaitTermination(1, TimeUnit.MINUTES))
+				LOGGER.warn("Gallery still saving after 1 minute");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		try
+		{
+			saveNow(false);
+		}
+		finally
+		{
+			journal.close();
+		}
+	}
+
+	private void save()
+	{
+		try
+		{
+			saveNow(true);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			LOGGER.error("Cannot save gallery " + galleryFile, e);
+		}
+	}
+
+	/*
+	 * Only called by the executor thread, or once it is terminated
+	 */
+	private void saveNow(boolean compactJournal) throws IOException
+	{
+		CompletableFuture<Void> done;
+		boolean snapshot;
+		long pendingSince;
+		synchronized (this)
+		{
+			done = pendingSave;
+			pendingSave = null;
+			if (!dirty && !snapshotRequested)
+			{
+				if (done != null)
+					done.complete(null);
+				return;
+			}
+
+			snapshot = snapshotRequested;
+			pendingSince = firstUnsavedChange;
+			dirty = false;
+			snapshotRequested = false;
+		}
+
+		try
+		{
+			if (!gallery.isValid())
+				throw new IllegalStateException("Cannot save gallery because it's invalid");
+
+			write(snapshot, compactJournal, pendingSince);
+			if (done != null)
+				done.complete(null);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			synchronized (this)
+			{
+				if (!dirty || pendingSince < firstUnsavedChange)
+					firstUnsavedChange = pendingSince;
+				dirty = true;
+				snapshotRequested |= snapshot;
+			}
+			if (done != null)
+				done.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	private void write(boolean snapshot, boolean compactJournal, long pendingSince) throws IOException
+	{
+		if (!snapshot)
+		{
+			StopWatch timer = new StopWatch().start();
+			long previousSize = journal.size();
+			if (journal.sync()
+			        && (!compactJournal || journal.size() <= Files.size(galleryFile) / JOURNAL_MAX_SIZE_RATIO))
+			{
+				LOGGER.info("Gallery journal synced: {}ms, {} bytes written, {}ms after the first change",
+				            timer.split(),
+				            journal.size() - previousSize,
+				            pendingSince == 0 ? 0 : System.currentTimeMillis() - pendingSince);
+				return;
+			}
+		}
+
+		journal.beginSnapshot();
+		try
+		{
+			writeSnapshot();
+			journal.snapshotWritten(galleryFile);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			journal.snapshotFailed();
+			throw e;
+		}
+		if (binaryFile != null)
+			writeBinarySnapshot();
+		LOGGER.info("Gallery snapshot saved {}ms after the first change",
+		            pendingSince == 0 ? 0 : System.currentTimeMillis() - pendingSince);
+	}
+
+	private void writeSnapshot() throws IOException
+	{
+		LOGGER.info("Saving gallery {}", galleryFile);
+		String datetime = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH.mm.ss")
+		                                   .format(Instant.now().atZone(ZoneId.systemDefault()));
+
+		Path tmpFile = galleryFile.resolveSibling("gallery_" + datetime + ".json");
+
+		StopWatch timer = new StopWatch().start();
+		try (Writer writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8))
+		{
+			gson.toJson(gallery, writer);
+		}
+		logGalleryThroughput("written", Files.size(tmpFile), timer.split());
+
+		int nbAttempt = 0;
+		while (true)
+		{
+			try {
+				Files.move(tmpFile, galleryFile, StandardCopyOption.REPLACE_EXISTING);
+				break;
+			}
+			catch (Exception e) {
+				if (nbAttempt++ >= 10)
+					throw e;
+
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Regenerate the binary snapshot from the JSON one. It is only a faster
+	 * copy: on failure the JSON snapshot is read instead
+	 */
+	private void writeBinarySnapshot()
+	{
+		try
+		{
+			StopWatch timer = new StopWatch().start();
+			long nbBytes = BinaryGallerySnapshot.write(galleryFile, binaryFile, gson);
+			logGalleryThroughput("binary snapshot written", nbBytes, timer.split());
+		}
+		catch (IOException | RuntimeException e)
+		{
+			LOGGER.error("Cannot write binary snapshot " + binaryFile, e);
+		}
+	}
+
+	private void logGalleryThroughput(String operation, long nbBytes, long timeMs)
+	{
+		int nbImages = gallery.getImages(false).size();
+		double seconds = Math.max(timeMs, 1) / 1000d;
+		LOGGER.info("Gallery {}: {}ms, {} bytes ({} MB/s), {} images ({} images/s)",
+		            operation,
+		            timeMs,
+		            nbBytes,
+		            String.format(Locale.ROOT, "%.1f", nbBytes / 1_000_000d / seconds),
+		            nbImages,
+		            Math.round(nbImages / seconds));
+	}
+}
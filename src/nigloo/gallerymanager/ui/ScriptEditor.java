@@ -134,6 +134,7 @@ public class ScriptEditor extends SplitPane
 		script.setTitle(scriptTitle.getText());
 		script.setAutoExecution(scriptAutoExecution.getValue());
 		script.setText(scriptText.getText());
+		gallery.settingsChanged();
 		
 		if (changed.get())
 			changed.invalidate();
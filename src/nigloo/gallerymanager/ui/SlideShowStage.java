@@ -335,6 +335,7 @@ public class SlideShowStage extends Stage
 		addEventHandler(WindowEvent.WINDOW_HIDDEN, event -> {
 			fullImageUpdatingThread.safeStop();
 			autoplay.stop();
+			gallery.settingsChanged();
 		});
 		
 		setFullScreenExitHint("");
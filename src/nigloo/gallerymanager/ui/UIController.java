@@ -7,16 +7,13 @@ import java.nio.file.*;
 import java.text.ChoiceFormat;
 import java.text.MessageFormat;
 import java.text.ParseException;
-import java.time.Instant;
-import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
-import java.util.function.Predicate;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -24,6 +21,8 @@ import java.util.stream.Collectors;
 import javafx.scene.control.*;
 import lombok.RequiredArgsConstructor;
 import nigloo.gallerymanager.filter.ImageFilter;
+import nigloo.gallerymanager.filter.ImageFilterCache;
+import nigloo.gallerymanager.filter.ImageFilterPlan;
 import nigloo.gallerymanager.model.*;
 import nigloo.gallerymanager.ui.util.UIUtils;
 import nigloo.tool.javafx.component.dialog.ExceptionDialog;
@@ -56,13 +55,13 @@ import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
 import nigloo.gallerymanager.AsyncPools;
 import nigloo.gallerymanager.model.Script.AutoExecution;
+import nigloo.gallerymanager.model.TagUsageCounts.TagCount;
 import nigloo.gallerymanager.ui.AutoCompleteTextField.AutoCompletionBehavior;
 import nigloo.gallerymanager.ui.FileSystemElement.Status;
 import nigloo.gallerymanager.ui.dialog.DownloadsProgressViewDialog;
 import nigloo.gallerymanager.ui.util.VScrollablePane;
 import nigloo.tool.StopWatch;
 import nigloo.tool.gson.DateTimeAdapter;
-import nigloo.tool.gson.InjectionInstanceCreator;
 import nigloo.tool.gson.PathTypeAdapter;
 import nigloo.tool.gson.PatternTypeAdapter;
 import nigloo.tool.injection.Injector;
@@ -78,6 +77,14 @@ public class UIController extends Application
 {
 	private static final Logger LOGGER = LogManager.getLogger(UIController.class);
 	public static final Marker UPDATE_THUMBNAILS = MarkerManager.getMarker("UPDATE_THUMBNAILS");
+	// Changes made within this delay are saved together (system property gallery.autosaveDelayMs)
+	private static final long AUTOSAVE_DELAY_MS = Long.getLong("gallery.autosaveDelayMs", 5000);
+	// Keep a binary copy of the gallery file to open it faster (system property gallery.binarySnapshot)
+	private static final boolean BINARY_SNAPSHOT = Boolean.getBoolean("gallery.binarySnapshot");
+	// Filters and thumbnail queries kept to switch quickly between searches
+	private static final int FILTER_CACHE_SIZE = 64;
+	private static final int QUERY_CACHE_SIZE = 8;
+	private static final int AUTOCOMPLETE_MAX_SUGGESTIONS = 50;
 	
 	public static final String STYLESHEET_DEFAULT = UIController.class.getModule()
 	                                                                  .getClassLoader()
@@ -91,10 +98,18 @@ public class UIController extends Application
 	@FXML
 	private AutoCompleteTextField tagFilterField;
 	@FXML
-	private Pane tagListView;
+	private ListView<TagCount> tagListView;
 	@FXML
 	private VScrollablePane thumbnailsView;
 	private ThumbnailUpdaterThread thumbnailUpdater;
+	// Query of the thumbnails displayed, null if none are
+	private volatile ThumbnailQuery thumbnailQuery = null;
+	private volatile boolean thumbnailsRefreshing = false;
+	private final ImageFilterCache filterCache = new ImageFilterCache(FILTER_CACHE_SIZE, QUERY_CACHE_SIZE);
+	// Images of thumbnailsView, only accessed from the FX application thread
+	private final Set<Image> thumbnailImages = new HashSet<>();
+	// Tags of thumbnailImages, only accessed from the FX application thread
+	private TagUsageCounts thumbnailTagCounts;
 
 	@FXML
 	private ArtistsEditor artistsEditor;
@@ -112,6 +127,7 @@ public class UIController extends Application
 	private Path galleryFile;
 	
 	private Gallery gallery;
+	private GalleryPersistence persistence;
 	
 	@Inject
 	private DownloadsProgressViewDialog downloadsProgressDialog;
@@ -159,7 +175,10 @@ public class UIController extends Application
 		
 		Injector.init(this);
 		
-		openGallery();
+		persistence = new GalleryPersistence(galleryFile, gson(), AUTOSAVE_DELAY_MS, BINARY_SNAPSHOT);
+		gallery = persistence.open();
+		// No thumbnail displayed until the first refresh, which may be cancelled if it finds none
+		thumbnailTagCounts = new TagUsageCounts(gallery);
 		
 //		gallery.compactIds();
 		
@@ -171,6 +190,7 @@ public class UIController extends Application
 
 		tagFilterField.setAutoCompletionBehavior(getMultiTagsAutocompleteBehavior(true));
 		tagFilterField.setOnAction(e -> requestRefreshThumbnails());
+		tagListView.setCellFactory(lv -> new TagCountCell());
 		
 		TreeItem<FileSystemElement> root = new TreeItem<>(new FileSystemElement(gallery.getRootFolder(), Status.NOT_LOADED));
 		root.setExpanded(true);
@@ -200,6 +220,7 @@ public class UIController extends Application
 		
 		thumbnailUpdater = new ThumbnailUpdaterThread(500);
 		thumbnailUpdater.start();
+		gallery.addChangeListener(new ThumbnailQueryUpdater());
 		
 		primaryStage.show();
 		
@@ -215,7 +236,7 @@ public class UIController extends Application
 		runScripts(AutoExecution.ON_APP_STOP);
 		
 		thumbnailUpdater.safeStop();
-		saveGallery();
+		persistence.close();
 	}
 	
 	public void requestRefreshThumbnails()
@@ -260,9 +281,12 @@ public class UIController extends Application
 						{
 							try {
 								updateRequested = false;
-								CompletableFuture.supplyAsync(UIController.this::getThumbnailImages, AsyncPools.FX_APPLICATION)
-										.thenCompose(UIController.this::cancelIfNoChange)
+								thumbnailsRefreshing = true;
+								CompletableFuture.supplyAsync(UIController.this::getThumbnailQuery, AsyncPools.FX_APPLICATION)
+										.thenApplyAsync(UIController.this::getThumbnailImages, AsyncPools.COMPUTE)
+										.thenComposeAsync(UIController.this::cancelIfNoChange, AsyncPools.FX_APPLICATION)
 										.thenCompose(fileSystemTreeManager::refreshAndGetInOrder)
+										.thenApplyAsync(images -> new ThumbnailImages(images, TagUsageCounts.of(gallery, images)), AsyncPools.COMPUTE)
 										.thenAcceptAsync(UIController.this::updateThumbnailImages, AsyncPools.FX_APPLICATION)
 										.join();
 							}
@@ -271,6 +295,9 @@ public class UIController extends Application
 								if (!(e.getCause() instanceof CancellationException))
 									AsyncPools.FX_APPLICATION.execute(() -> new ExceptionDialog(e, "Error while refreshing thumbnails").show());
 							}
+							finally {
+								thumbnailsRefreshing = false;
+							}
 							lastUpdate = System.currentTimeMillis();
 						}
 						else
@@ -289,7 +316,11 @@ public class UIController extends Application
 	}
 	
 	
-	private Collection<Image> getThumbnailImages()
+	/*
+	 * In the FX application thread, read the selection and the filter of the
+	 * thumbnails to display. Return null if nothing is selected
+	 */
+	private ThumbnailQuery getThumbnailQuery()
 	{
 		StopWatch timer = new StopWatch();
 		timer.start();
@@ -302,28 +333,54 @@ public class UIController extends Application
 		             timer.split());
 		
 		if (tagFilterField.getText().isBlank() && fsSelection.isEmpty())
-			return List.of();
-		
-		Predicate<Image> tagFilter = getTagFilter();
+			thumbnailQuery = null;
+		else
+			thumbnailQuery = new ThumbnailQuery(fsSelection.stream().map(gallery::toRelativePath).toList(),
+			                                    getTagFilter());
 		
-		Collection<Image> images = gallery.getImages(true);
+		return thumbnailQuery;
+	}
+	
+	/*
+	 * Evaluate the query outside the FX application thread: the filter is
+	 * evaluated on the selected images only and the images left are tested
+	 * in parallel (see ImageBitmapIndex#imagesMatching)
+	 */
+	private Collection<Image> getThumbnailImages(ThumbnailQuery query)
+	{
+		if (query == null)
+			return List.of();
 		
-		LOGGER.debug(UPDATE_THUMBNAILS, "gallery.getImages(true) ({}) : {}ms", images.size(), timer.split());
+		StopWatch timer = new StopWatch();
+		timer.start();
 		
-		if (!fsSelection.isEmpty())
+		ImageFilter tagFilter = query.filter();
+		Collection<Image> images = filterCache.findImages(gallery, query, index ->
 		{
-			images = images.stream()
-			               .filter(image -> fsSelection.stream()
-			                                           .anyMatch(selectedPath -> image.getAbsolutePath()
-			                                                                          .startsWith(selectedPath)))
-			               .toList();
+			CompressedBitmap selection;
+			if (query.selection().isEmpty())
+				selection = index.allImages();
+			else
+			{
+				selection = new CompressedBitmap();
+				for (Path selectedPath : query.selection())
+					selection.orWith(index.imagesIn(selectedPath));
+			}
 			
-			LOGGER.debug(UPDATE_THUMBNAILS, "Keep only selection ({}) : {}ms", images.size(), timer.split());
-		}
-		
-		images = images.stream().filter(tagFilter).toList();
+			LOGGER.debug(UPDATE_THUMBNAILS, "Keep only selection ({}) : {}ms", selection.cardinality(), timer.split());
+			
+			if (tagFilter == null)
+				return selection;
+			
+			ImageFilterPlan plan = tagFilter.plan(index);
+			CompressedBitmap result = plan.evaluate(index, selection);
+			if (LOGGER.isDebugEnabled(UPDATE_THUMBNAILS))
+				LOGGER.debug(UPDATE_THUMBNAILS, "Filter {}\n{}", plan, plan.explain());
+			return result;
+		});
 		
 		LOGGER.debug(UPDATE_THUMBNAILS, "Keep only with tags ({}) : {}ms", images.size(), timer.split());
+		LOGGER.debug(UPDATE_THUMBNAILS, "Filter cache: {}", filterCache.getStatistics());
 		
 		return images;
 	}
@@ -342,11 +399,12 @@ public class UIController extends Application
 			return CompletableFuture.completedFuture(images);
 	}
 	
-	private void updateThumbnailImages(List<Image> sortedImages)
+	private void updateThumbnailImages(ThumbnailImages thumbnails)
 	{
 		assert Platform.isFxApplicationThread();
 		
 		StopWatch timer = new StopWatch().start();
+		List<Image> sortedImages = thumbnails.sortedImages();
 		
 		List<Image> visibleImages = thumbnailsView
 				.getTiles()
@@ -368,40 +426,274 @@ public class UIController extends Application
 		else
 			thumbnailsView.scrollTo(0);
 		
+		thumbnailImages.clear();
+		thumbnailImages.addAll(sortedImages);
+		
 		LOGGER.debug("thumbnailsView.getTiles().setAll(...) ({}) : {}ms", sortedImages.size(), timer.split());
 		
-		tagListView.getChildren().clear();
-		sortedImages.stream()
-		            .flatMap(image -> image.getTags().stream())
-		            .collect(Collectors.groupingBy(tag -> tag, Collectors.counting()))
-		            .entrySet()
-		            .stream()
-		            .sorted(Comparator.<Entry<Tag,Long>,Long>comparing(Entry::getValue, Comparator.reverseOrder()).thenComparing(e -> e.getKey().getName()))
-		            .forEachOrdered(entry ->
-		            {
-			            Tag tag = entry.getKey();
-			            String tagName = tag.getName();
-			            Color tagColor = tag.getColor();
-			            long count = entry.getValue();
-			            
-			            Hyperlink tagText = new Hyperlink(tagName);
-			            tagText.getStyleClass().add("tag");
-			            if (tagColor != null)
-				            tagText.setStyle("-fx-text-fill: " + FXUtils.toRGBA(tagColor) + ";");
-			            tagText.setOnAction(event -> tagFilterField.setText(tagName));
-			            
-			            Text tagCountText = new Text(String.valueOf(count));
-			            tagCountText.getStyleClass().add("tag-count");
-			            
-			            TextFlow tagEntry = new TextFlow(tagText, new Text(" "), tagCountText);
-			            tagEntry.getStyleClass().add("tag-entry");
-			            
-			            tagListView.getChildren().add(tagEntry);
-		            });
+		thumbnailTagCounts = thumbnails.tagCounts();
+		updateTagList();
 		
 		LOGGER.debug("Update tagListView : {}ms", timer.split());
 	}
 	
+	private void updateTagList()
+	{
+		tagListView.getItems().setAll(thumbnailTagCounts.getSortedCounts());
+	}
+	
+	/*
+	 * The thumbnails to display, in the tree order, and their tags counted
+	 * beforehand off the FX application thread
+	 */
+	private record ThumbnailImages(List<Image> sortedImages, TagUsageCounts tagCounts)
+	{
+	}
+	
+	/*
+	 * Entry of tagListView: the cells are reused while scrolling, so only
+	 * the visible tags have nodes
+	 */
+	private class TagCountCell extends ListCell<TagCount>
+	{
+		private final Hyperlink tagText = new Hyperlink();
+		private final Text tagCountText = new Text();
+		private final TextFlow tagEntry = new TextFlow(tagText, new Text(" "), tagCountText);
+		
+		TagCountCell()
+		{
+			tagText.getStyleClass().add("tag");
+			tagCountText.getStyleClass().add("tag-count");
+			tagEntry.getStyleClass().add("tag-entry");
+			tagText.setOnAction(event -> tagFilterField.setText(getItem().tag().getName()));
+		}
+		
+		@Override
+		protected void updateItem(TagCount item, boolean empty)
+		{
+			super.updateItem(item, empty);
+			if (empty || item == null)
+			{
+				setGraphic(null);
+				return;
+			}
+			
+			Color tagColor = item.tag().getColor();
+			tagText.setText(item.tag().getName());
+			tagText.setStyle(tagColor == null ? "" : "-fx-text-fill: " + FXUtils.toRGBA(tagColor) + ";");
+			tagCountText.setText(String.valueOf(item.count()));
+			setGraphic(tagEntry);
+		}
+	}
+	
+	/*
+	 * Filter and selection of the thumbnails displayed, kept as a standing
+	 * query: the images changed in the gallery are tested against it to update
+	 * the thumbnails without evaluating everything again.
+	 */
+	private record ThumbnailQuery(Collection<Path> selection, ImageFilter filter)
+	{
+		boolean matches(Image image)
+		{
+			if (!selection.isEmpty() && selection.stream()
+			                                     .noneMatch(path -> path.toString().isEmpty()
+			                                             || image.getPath().startsWith(path)))
+				return false;
+			
+			return filter == null || filter.test(image);
+		}
+	}
+	
+	private enum ThumbnailChange
+	{
+		MATCH, MATCH_MOVED, NO_MATCH
+	}
+	
+	/*
+	 * Insert/remove the thumbnails of the images changed in the gallery. The
+	 * changes are tested against the query in the thread publishing them and
+	 * applied at most once per frame in the FX application thread.
+	 */
+	private class ThumbnailQueryUpdater implements Consumer<GalleryChange>
+	{
+		// Guarded by this
+		private Map<Image, ThumbnailChange> pendingChanges = new HashMap<>();
+		private ThumbnailQuery pendingQuery = null;
+		private boolean applyScheduled = false;
+		
+		@Override
+		public void accept(GalleryChange change)
+		{
+			ThumbnailQuery query = thumbnailQuery;
+			if (query == null)
+				return;
+			
+			if (change.tagHierarchyChanged() && query.filter() != null)
+			{
+				requestRefreshThumbnails();
+				return;
+			}
+			
+			Map<Image, ThumbnailChange> changes = new HashMap<>();
+			for (Image image : change.removed())
+				changes.put(image, ThumbnailChange.NO_MATCH);
+			for (Image image : change.added())
+				changes.put(image, stillMatches(query, image) ? ThumbnailChange.MATCH : ThumbnailChange.NO_MATCH);
+			for (Image image : change.retagged())
+				changes.put(image, stillMatches(query, image) ? ThumbnailChange.MATCH : ThumbnailChange.NO_MATCH);
+			for (Image image : change.moved().keySet())
+				changes.put(image, stillMatches(query, image) ? ThumbnailChange.MATCH_MOVED : ThumbnailChange.NO_MATCH);
+			
+			if (changes.isEmpty())
+				return;
+			
+			synchronized (this)
+			{
+				if (pendingQuery != query)
+				{
+					pendingChanges.clear();
+					pendingQuery = query;
+				}
+				
+				// Don't forget an image moved while it's still to reposition
+				changes.forEach((image, imageChange) -> pendingChanges.merge(image, imageChange, (previous, next) ->
+				        previous == ThumbnailChange.MATCH_MOVED && next == ThumbnailChange.MATCH ? previous : next));
+				
+				if (applyScheduled)
+					return;
+				applyScheduled = true;
+			}
+			
+			Platform.runLater(this::applyChanges);
+		}
+		
+		/*
+		 * The change may be published after the image was deleted by another
+		 * batch (see Gallery#addChangeListener): it must not be displayed again
+		 */
+		private boolean stillMatches(ThumbnailQuery query, Image image)
+		{
+			Image indexed = image.isSaved() ? gallery.findImage(image.getId())
+			        : gallery.findImage(image.getPath(), true);
+			return indexed == image && query.matches(image);
+		}
+		
+		private void applyChanges()
+		{
+			Map<Image, ThumbnailChange> changes;
+			ThumbnailQuery query;
+			synchronized (this)
+			{
+				changes = pendingChanges;
+				query = pendingQuery;
+				pendingChanges = new HashMap<>();
+				applyScheduled = false;
+			}
+			
+			if (changes.isEmpty())
+				return;
+			
+			// A full refresh would override the changes
+			if (thumbnailsRefreshing || query != thumbnailQuery)
+			{
+				requestRefreshThumbnails();
+				return;
+			}
+			
+			StopWatch timer = new StopWatch().start();
+			
+			Set<Image> toRemove = new HashSet<>();
+			List<Image> toInsert = new ArrayList<>();
+			boolean tagCountsChanged = false;
+			for (Entry<Image, ThumbnailChange> entry : changes.entrySet())
+			{
+				Image image = entry.getKey();
+				boolean displayed = thumbnailImages.contains(image);
+				switch (entry.getValue())
+				{
+					case MATCH -> {
+						if (!displayed)
+							toInsert.add(image);
+						else
+							// Maybe retagged
+							tagCountsChanged |= thumbnailTagCounts.update(image, true);
+					}
+					case MATCH_MOVED -> {
+						if (displayed)
+							toRemove.add(image);
+						toInsert.add(image);
+					}
+					case NO_MATCH -> {
+						if (displayed)
+							toRemove.add(image);
+					}
+				}
+			}
+			
+			if (!toRemove.isEmpty())
+			{
+				thumbnailsView.getTiles().removeIf(tile -> toRemove.contains(((ThumbnailView) tile).getGalleryImage()));
+				thumbnailImages.removeAll(toRemove);
+				for (Image image : toRemove)
+					tagCountsChanged |= thumbnailTagCounts.update(image, false);
+			}
+			
+			LOGGER.debug(UPDATE_THUMBNAILS, "Remove thumbnails ({}) : {}ms", toRemove.size(), timer.split());
+			
+			if (toInsert.isEmpty())
+			{
+				if (tagCountsChanged)
+					updateTagList();
+				return;
+			}
+			if (tagCountsChanged)
+				updateTagList();
+			
+			fileSystemTreeManager.refreshItems(toInsert).thenRunAsync(() ->
+			{
+				if (thumbnailsRefreshing || query != thumbnailQuery)
+				{
+					requestRefreshThumbnails();
+					return;
+				}
+				
+				Comparator<Image> treeOrder = fileSystemTreeManager.treeOrder();
+				ObservableList<Node> tiles = thumbnailsView.getTiles();
+				int nbInserted = 0;
+				for (Image image : toInsert)
+				{
+					// May have changed again while refreshing the tree
+					if (!query.matches(image) || !thumbnailImages.add(image))
+						continue;
+					
+					int low = 0;
+					int high = tiles.size();
+					while (low < high)
+					{
+						int mid = (low + high) >>> 1;
+						if (treeOrder.compare(((ThumbnailView) tiles.get(mid)).getGalleryImage(), image) <= 0)
+							low = mid + 1;
+						else
+							high = mid;
+					}
+					tiles.add(low, getImageView(image));
+					thumbnailTagCounts.update(image, true);
+					nbInserted++;
+				}
+				
+				LOGGER.debug(UPDATE_THUMBNAILS, "Insert thumbnails ({}) : {}ms", nbInserted, timer.split());
+				
+				if (nbInserted > 0)
+					updateTagList();
+			}, AsyncPools.FX_APPLICATION).exceptionally(e ->
+			{
+				LOGGER.error("Error while updating thumbnails", e);
+				requestRefreshThumbnails();
+				return null;
+			});
+		}
+	}
+	
 	private final Map<Image, SoftReference<ThumbnailView>> thumbnailImageViewCache = new WeakHashMap<>();
 	
 	private ThumbnailView getImageView(Image image)
@@ -469,31 +761,19 @@ public class UIController extends Application
 		slideShow.show();
 	}
 	
+	/*
+	 * The best tags containing tagSearch, see Gallery#autocompleteTags(String, int)
+	 */
 	public List<String> autocompleteTags(String tagSearch)
 	{
 		tagSearch = Tag.normalize(tagSearch);
 		if (tagSearch == null)
 			tagSearch = "";
 		
-		List<String> matchingTags = new ArrayList<>();
-		Map<String, Integer> matchingTagPos = new HashMap<>();
-		
-		for (Tag tag : gallery.getTags())
-		{
-			String tagName = tag.getName();
-			
-			int pos = tagName.indexOf(tagSearch);
-			if (pos >= 0)
-			{
-				matchingTags.add(tagName);
-				matchingTagPos.put(tagName, pos);
-			}
-		}
-		
-		matchingTags.sort(Comparator.comparing((String tagName) -> matchingTagPos.get(tagName))
-		                            .thenComparing(String.CASE_INSENSITIVE_ORDER));
-		
-		return matchingTags;
+		return gallery.autocompleteTags(tagSearch, AUTOCOMPLETE_MAX_SUGGESTIONS)
+		              .stream()
+		              .map(Tag::getName)
+		              .toList();
 	}
 
 	public final AutoCompletionBehavior getMultiTagsAutocompleteBehavior(boolean allowMetatag)
@@ -594,15 +874,18 @@ public class UIController extends Application
 		}
 	}
 	
-	private Predicate<Image> getTagFilter()
+	/*
+	 * Return null if there is no filter
+	 */
+	private ImageFilter getTagFilter()
 	{
 		String filterExpression = tagFilterField.getText();
 
 		if (filterExpression.isBlank())
-			return image -> true;
+			return null;
 		else {
 			try {
-				return ImageFilter.parse(filterExpression);
+				return filterCache.parse(filterExpression);
 			} catch (ParseException e) {
 				new ExceptionDialog(e, "Bad filter").show();
 				return image -> false;
@@ -639,53 +922,26 @@ public class UIController extends Application
 		                                                                                        .get()));
 	}
 	
-	private void openGallery() throws IOException
+	/**
+	 * Write a new snapshot of the gallery in the background, the journal is emptied
+	 */
+	@FXML
+	public void saveGallery()
 	{
-		LOGGER.info("Opening gallery {}", galleryFile);
-		try (Reader reader = Files.newBufferedReader(galleryFile, StandardCharsets.UTF_8))
+		persistence.requestSnapshot().exceptionallyAsync(e ->
 		{
-			gallery = gson().fromJson(reader, Gallery.class);
-		}
-		gallery.postConstruct(galleryFile.getParent());
+			new ExceptionDialog(e, "Cannot save gallery").show();
+			return null;
+		}, AsyncPools.FX_APPLICATION);
 	}
 	
-	@FXML
-	public void saveGallery() throws IOException
+	/**
+	 * Save the changes since the last save in the background, along with the
+	 * other changes made meanwhile
+	 */
+	public CompletableFuture<Void> syncGallery()
 	{
-		if (!gallery.isValid()) {
-			LOGGER.error("Cannot save gallery because it's invalid", gallery.getValidationError());
-			return;
-		}
-		
-		LOGGER.info("Saving gallery {}", galleryFile);
-		String datetime = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH.mm.ss")
-		                                   .format(Instant.now().atZone(ZoneId.systemDefault()));
-		
-		Path tmpFile = galleryFile.resolveSibling("gallery_" + datetime + ".json");
-		
-		try (Writer writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8))
-		{
-			gson().toJson(gallery, writer);
-		}
-		
-		int nbAttempt = 0;
-		while (true)
-		{
-			try {
-				Files.move(tmpFile, galleryFile, StandardCopyOption.REPLACE_EXISTING);
-				break;
-			}
-			catch (Exception e) {
-				if (nbAttempt++ >= 10)
-					throw e;
-				
-				try {
-					Thread.sleep(200);
-				} catch (InterruptedException e1) {
-					Thread.currentThread().interrupt();
-				}
-			}
-		}
+		return persistence.requestSave();
 	}
 	
 	private Gson gson = null;
@@ -697,7 +953,6 @@ public class UIController extends Application
 			gson = new GsonBuilder().registerTypeHierarchyAdapter(Path.class, new PathTypeAdapter())
 			                        .registerTypeAdapter(Pattern.class, new PatternTypeAdapter())
 			                        .registerTypeAdapter(ZonedDateTime.class, new DateTimeAdapter())
-			                        .registerTypeAdapter(Gallery.class, new InjectionInstanceCreator())
 			                        .disableHtmlEscaping()
 			                        .setPrettyPrinting()
 			                        .create();
@@ -2,7 +2,6 @@ package nigloo.gallerymanager.ui.dialog;
 
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,8 +12,10 @@ import java.util.stream.Collectors;
 
 import javafx.fxml.FXML;
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.Hyperlink;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextFormatter;
+import javafx.scene.layout.FlowPane;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.RowConstraints;
 import javafx.scene.paint.Color;
@@ -27,6 +28,8 @@ import javafx.stage.Window;
 import nigloo.gallerymanager.model.Gallery;
 import nigloo.gallerymanager.model.Image;
 import nigloo.gallerymanager.model.Tag;
+import nigloo.gallerymanager.model.TagUsageCounts;
+import nigloo.gallerymanager.model.TagUsageCounts.TagCount;
 import nigloo.gallerymanager.ui.AutoCompleteTextField;
 import nigloo.gallerymanager.ui.UIController;
 import nigloo.tool.injection.Injector;
@@ -35,6 +38,8 @@ import nigloo.tool.javafx.FXUtils;
 
 public class EditImageTagsDialog extends Stage
 {
+	private static final int MAX_RELATED_TAGS = 20;
+	
 	@Inject
 	private UIController uiController;
 	@Inject
@@ -47,6 +52,8 @@ public class EditImageTagsDialog extends Stage
 	@FXML
 	private Label messageLabel;
 	@FXML
+	private FlowPane relatedTagsView;
+	@FXML
 	private GridPane tagListView;
 	@FXML
 	private RowConstraints rowConstraint;
@@ -139,13 +146,34 @@ public class EditImageTagsDialog extends Stage
 		tagListView.getRowConstraints().clear();
 		tagToCheckBox.clear();
 		
-		images.stream()
-		      .flatMap(image -> image.getTags().stream())
-		      .collect(Collectors.groupingBy(tag -> tag, Collectors.counting()))
-		      .entrySet()
-		      .stream()
-		      .sorted(Comparator.<Entry<Tag,Long>,Long>comparing(Entry::getValue, Comparator.reverseOrder()).thenComparing(e -> e.getKey().getName()))
-		      .forEachOrdered(entry -> addTag(entry.getKey(), entry.getValue()));
+		for (TagCount tagCount : TagUsageCounts.of(gallery, images).getSortedCounts())
+			addTag(tagCount.tag(), tagCount.count());
+		
+		updateRelatedTags();
+	}
+	
+	/*
+	 * Suggest the tags the most often found along with the tags listed
+	 */
+	private void updateRelatedTags()
+	{
+		relatedTagsView.getChildren().clear();
+		for (Tag tag : gallery.relatedTags(tagToCheckBox.keySet(), MAX_RELATED_TAGS))
+		{
+			Color tagColor = tag.getColor();
+			
+			Hyperlink tagText = new Hyperlink(tag.getName());
+			tagText.getStyleClass().add("tag");
+			if (tagColor != null)
+				tagText.setStyle("-fx-text-fill: " + FXUtils.toRGBA(tagColor) + ";");
+			tagText.setOnAction(event ->
+			{
+				addTag(tag, images.size());
+				updateRelatedTags();
+			});
+			
+			relatedTagsView.getChildren().add(tagText);
+		}
 	}
 	
 	private void addTag(Tag tag, long count)
@@ -196,6 +224,7 @@ public class EditImageTagsDialog extends Stage
 		}
 		
 		addTag(gallery.getTag(tagNameField.getText()), images.size());
+		updateRelatedTags();
 	}
 	
 	@FXML
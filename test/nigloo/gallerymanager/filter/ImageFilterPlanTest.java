@@ -0,0 +1,166 @@
+package nigloo.gallerymanager.filter;
+
+import nigloo.gallerymanager.filter.ImageFilterGrammar.AndFilter;
+import nigloo.gallerymanager.filter.ImageFilterGrammar.NegateFilter;
+import nigloo.gallerymanager.filter.ImageFilterGrammar.OrFilter;
+import nigloo.gallerymanager.filter.ImageFilterGrammar.PathFilter;
+import nigloo.gallerymanager.filter.ImageFilterGrammar.TagFilter;
+import nigloo.gallerymanager.filter.ImageFilterGrammar.TagPatternFilter;
+import nigloo.gallerymanager.model.CompressedBitmap;
+import nigloo.gallerymanager.model.Gallery;
+import nigloo.gallerymanager.model.GalleryFixture;
+import nigloo.gallerymanager.model.Image;
+import nigloo.gallerymanager.model.ImageBitmapIndex;
+import nigloo.gallerymanager.model.TagPattern;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageFilterPlanTest {
+
+    private static final List<String> TAGS = List.of("a", "b", "c", "d", "e_1", "e_2");
+
+    private Gallery gallery;
+
+    @BeforeEach
+    void createGallery() {
+        gallery = GalleryFixture.newGallery();
+        // c implies b
+        GalleryFixture.tag(gallery, "c", "b");
+        Random random = new Random(42);
+        for (int i = 0 ; i < 500 ; i++) {
+            String[] tags = random.ints(random.nextInt(4), 0, TAGS.size()).mapToObj(TAGS::get).toArray(String[]::new);
+            GalleryFixture.savedImage(gallery, "folder_" + (i % 7) + "/image_" + i + ".png", tags);
+        }
+    }
+
+    @Test
+    void sameImagesAsTheFilterEvaluatedAsIs() {
+        Random random = new Random(42);
+        for (int i = 0 ; i < 300 ; i++) {
+            ImageFilter filter = randomFilter(random, 4);
+            withIndex(index -> {
+                CompressedBitmap expected = filter.evaluate(index);
+                assertEquals(expected, index.imagesMatching(index.allImages(), filter), filter::toString);
+
+                ImageFilterPlan plan = filter.plan(index);
+                assertEquals(expected, plan.evaluate(index), () -> filter + "\n" + plan.explain());
+
+                CompressedBitmap candidates = index.imagesIn(Path.of("folder_3"));
+                assertEquals(CompressedBitmap.and(expected, candidates), plan.evaluate(index, candidates), plan::explain);
+            });
+        }
+    }
+
+    @Test
+    void negationsAndDuplicatesAreSimplified() {
+        TagFilter a = new TagFilter("a");
+        TagFilter b = new TagFilter("b");
+        withIndex(index -> {
+            assertEquals("a", new NegateFilter(new NegateFilter(a)).plan(index).toString());
+            assertEquals("a", new AndFilter(a, a).plan(index).toString());
+            // b is more frequent than a (c implies b): first in a disjunction, last in a conjunction
+            assertEquals("-(b | a)", new AndFilter(new NegateFilter(a), new NegateFilter(b)).plan(index).toString());
+            assertEquals("-(a b)", new OrFilter(new NegateFilter(a), new NegateFilter(b)).plan(index).toString());
+            // Read back as the tag, not as a pattern
+            assertEquals("5\\*_rating", new TagFilter("5*_rating").plan(index).toString());
+        });
+    }
+
+    @Test
+    void mostSelectiveTermsFirstInAConjunction() {
+        // Every image is in a folder_*, few have a
+        ImageFilter filter = new AndFilter(new PathFilter("folder_"), new TagFilter("a"));
+        withIndex(index -> assertEquals("(a path:\"folder_\")", filter.plan(index).toString()));
+
+        ImageFilter disjunction = new OrFilter(new TagFilter("a"), new TagFilter("b"));
+        withIndex(index -> assertEquals("(b | a)", disjunction.plan(index).toString()));
+    }
+
+    @Test
+    void pathsAreEstimatedFromTheirTrigramsAndTestedLast() {
+        // Even if more likely to match than a in a disjunction
+        ImageFilter disjunction = new OrFilter(new TagFilter("a"), new PathFilter("folder_"));
+        withIndex(index -> assertEquals("(a | path:\"folder_\")", disjunction.plan(index).toString()));
+
+        ImageFilter filter = new AndFilter(new PathFilter("folder_3/"), new NegateFilter(new TagFilter("a")));
+        withIndex(index -> {
+            ImageFilterPlan plan = filter.plan(index);
+            assertEquals("(-a path:\"folder_3/\")", plan.toString());
+            // 1 image out of 7, the trigram _3/ is only in folder_3
+            assertTrue(plan.explain().contains("PATH path:\"folder_3/\"  (est=71, actual=?)"), plan::explain);
+
+            int withoutA = CompressedBitmap.andNot(index.allImages(), index.imagesWithTag("a")).cardinality();
+            int matches = plan.evaluate(index).cardinality();
+            assertTrue(matches < 71, plan::explain);
+            assertTrue(plan.explain().contains("NOT  (est=" + withoutA + ", actual=" + withoutA + ")"), plan::explain);
+            assertTrue(plan.explain().contains("(est=71, actual=" + matches + ")"), plan::explain);
+        });
+    }
+
+    @Test
+    void explainReportsTheActualMatches() {
+        ImageFilter filter = new AndFilter(new TagFilter("a"), new TagFilter("b"));
+        withIndex(index -> {
+            ImageFilterPlan plan = filter.plan(index);
+            assertTrue(plan.explain().contains("actual=?"), plan::explain);
+
+            int matches = plan.evaluate(index).cardinality();
+            assertTrue(plan.explain().contains("AND  (est="), plan::explain);
+            assertTrue(plan.explain().contains("actual=" + matches + ")"), plan::explain);
+        });
+    }
+
+    @Test
+    void resultIsNeverABitmapOfTheIndex() {
+        withIndex(index -> {
+            CompressedBitmap allImages = index.allImages();
+            CompressedBitmap withA = index.imagesWithTag("a").copy();
+            ImageFilterPlan plan = new TagFilter("a").plan(index);
+
+            CompressedBitmap empty = new CompressedBitmap();
+            assertNotSame(empty, plan.evaluate(index, empty));
+            assertNotSame(allImages, new AndFilter(new TagFilter("a"), new NegateFilter(new TagFilter("a"))).plan(index)
+                                                                                              .evaluate(index));
+
+            plan.evaluate(index).add(Integer.MAX_VALUE - 1);
+            assertEquals(withA, index.imagesWithTag("a"));
+        });
+    }
+
+    private void withIndex(Consumer<ImageBitmapIndex> test) {
+        gallery.findImages(index -> {
+            test.accept(index);
+            return new CompressedBitmap();
+        });
+    }
+
+    private static ImageFilter randomFilter(Random random, int depth) {
+        int kind = random.nextInt(depth <= 0 ? 4 : 8);
+        return switch (kind) {
+            case 0, 1 -> new TagFilter(TAGS.get(random.nextInt(TAGS.size())));
+            case 2 -> new TagPatternFilter(new TagPattern(random.nextBoolean() ? "e_*" : "*_2"));
+            case 3 -> new PathFilter("folder_" + random.nextInt(7));
+            case 4 -> new NegateFilter(randomFilter(random, depth - 1));
+            case 5 -> new AndFilter(randomFilter(random, depth - 1), randomFilter(random, depth - 1));
+            case 6 -> new OrFilter(randomFilter(random, depth - 1), randomFilter(random, depth - 1));
+            // Not backed by the index
+            default -> new ScanFilter(random.nextInt(3));
+        };
+    }
+
+    record ScanFilter(int modulo) implements ImageFilter {
+        @Override
+        public boolean test(Image image) {
+            return image.getId() % (modulo + 2) == 0;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package nigloo.gallerymanager.filter;
+
+import nigloo.tool.parser.grammar.Token;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ImageFilterTokenizerTest {
+
+    @Test
+    void tagsPatternsAndOperators() {
+        assertEquals(List.of("-", "a", "artist_*", "|", "[", "b", "path:\"some folder\"", "]"),
+                     tokens("-a artist_* | [b path:\"some folder\"]"));
+    }
+
+    @Test
+    void escapedWildcardStaysInTheTagName() {
+        assertEquals(List.of("5\\*_rating", "&", "5\\*_*"), tokens("5\\*_rating & 5\\*_*"));
+    }
+
+    @Test
+    void quotesOutsideAMetatagAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> tokens("\"a*b\""));
+    }
+
+    private static List<String> tokens(String filter) {
+        List<String> tokens = new ArrayList<>();
+        ImageFilterTokenizer tokenizer = new ImageFilterTokenizer(filter);
+        while (tokenizer.hasNext()) {
+            Token<TokenType> token = tokenizer.next();
+            tokens.add(token.value().toString());
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,119 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ChangeBatchTest
+{
+	private Gallery gallery;
+
+	@BeforeEach
+	void createGallery()
+	{
+		gallery = GalleryFixture.newGallery();
+	}
+
+	@Test
+	void changesOfABatchArePublishedOnceClosed()
+	{
+		List<GalleryChange> published = new ArrayList<>();
+		gallery.addChangeListener(published::add);
+
+		Image image = GalleryFixture.savedImage(gallery, "image.png");
+		published.clear();
+		try (ChangeBatch.Scope scope = gallery.batchChanges())
+		{
+			image.addTag("a");
+			image.addTag("b");
+			try (ChangeBatch.Scope nested = gallery.batchChanges())
+			{
+				image.removeTag("a");
+			}
+			assertTrue(published.isEmpty());
+		}
+
+		assertEquals(1, published.size());
+		assertEquals(Set.of(image), published.get(0).retagged());
+	}
+
+	@Test
+	void listenerChangingTheGalleryGetsItsChangeNext()
+	{
+		List<String> published = new ArrayList<>();
+		gallery.addChangeListener(change ->
+		{
+			published.add(change.settingsChanged() ? "settings" : "images");
+			if (!change.settingsChanged())
+			{
+				gallery.settingsChanged();
+				// Not called reentrantly
+				assertEquals(1, published.size());
+			}
+		});
+
+		gallery.getImage(Path.of("image.png"));
+		assertEquals(List.of("images", "settings"), published);
+	}
+
+	@Test
+	void listenersAreNeverCalledConcurrently() throws InterruptedException
+	{
+		AtomicInteger nbPublishing = new AtomicInteger();
+		AtomicBoolean overlapped = new AtomicBoolean();
+		AtomicInteger nbPublished = new AtomicInteger();
+		gallery.addChangeListener(change ->
+		{
+			if (nbPublishing.incrementAndGet() > 1)
+				overlapped.set(true);
+			Thread.yield();
+			nbPublished.incrementAndGet();
+			nbPublishing.decrementAndGet();
+		});
+
+		int nbThreads = 4;
+		int nbChangesPerThread = 500;
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0 ; t < nbThreads ; t++)
+		{
+			Thread thread = new Thread(() ->
+			{
+				try
+				{
+					start.await();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				for (int i = 0 ; i < nbChangesPerThread ; i++)
+				{
+					int before = nbPublished.get();
+					gallery.settingsChanged();
+					// Published before settingsChanged returns
+					assertTrue(nbPublished.get() > before);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		assertFalse(overlapped.get());
+		assertEquals(nbThreads * nbChangesPerThread, nbPublished.get());
+	}
+}
@@ -0,0 +1,206 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class CompressedBitmapTest
+{
+	private static final int CHUNK = 1 << 16;
+	// Size of a dense chunk: the 2^16 bits and the container
+	private static final long BITMAP_CONTAINER_SIZE = 32 + CHUNK / 8;
+
+	@Test
+	void addRemoveContains()
+	{
+		CompressedBitmap bitmap = new CompressedBitmap();
+		assertTrue(bitmap.isEmpty());
+
+		assertTrue(bitmap.add(5));
+		assertFalse(bitmap.add(5));
+		assertTrue(bitmap.add(CHUNK + 1));
+		assertTrue(bitmap.add(0));
+
+		assertEquals(3, bitmap.cardinality());
+		assertTrue(bitmap.contains(CHUNK + 1));
+		assertFalse(bitmap.contains(CHUNK));
+		assertFalse(bitmap.contains(-1));
+		assertArrayEquals(new int[] { 0, 5, CHUNK + 1 }, bitmap.toArray());
+
+		assertTrue(bitmap.remove(CHUNK + 1));
+		assertFalse(bitmap.remove(CHUNK + 1));
+		assertFalse(bitmap.remove(-1));
+		assertArrayEquals(new int[] { 0, 5 }, bitmap.toArray());
+
+		bitmap.clear();
+		assertTrue(bitmap.isEmpty());
+	}
+
+	@Test
+	void negativeValuesAreRejected()
+	{
+		assertThrows(IllegalArgumentException.class, () -> new CompressedBitmap().add(-1));
+	}
+
+	@Test
+	void sparseChunkBecomesDenseThenSparseAgain()
+	{
+		CompressedBitmap bitmap = new CompressedBitmap();
+		BitSet expected = new BitSet();
+		// Every other value: the chunk is dense past 4096 values
+		for (int i = 0 ; i < 4096 ; i++)
+			add(bitmap, expected, 2 * i);
+		assertTrue(bitmap.sizeInBytes() <= emptySize() + BITMAP_CONTAINER_SIZE);
+		assertSameValues(expected, bitmap);
+
+		add(bitmap, expected, 2 * 4096);
+		assertTrue(bitmap.sizeInBytes() >= emptySize() + BITMAP_CONTAINER_SIZE);
+		assertSameValues(expected, bitmap);
+
+		// Kept dense down to 2048 values, so it doesn't flip at each add/remove
+		for (int i = 4096 ; i > 2048 ; i--)
+			remove(bitmap, expected, 2 * i);
+		assertTrue(bitmap.sizeInBytes() >= emptySize() + BITMAP_CONTAINER_SIZE);
+		assertSameValues(expected, bitmap);
+
+		remove(bitmap, expected, 2 * 2048);
+		assertTrue(bitmap.sizeInBytes() < emptySize() + BITMAP_CONTAINER_SIZE / 2 + 64);
+		assertSameValues(expected, bitmap);
+
+		// Dense again, then the chunk is removed once empty
+		for (int i = 0 ; i < 5000 ; i++)
+			add(bitmap, expected, 1 + 2 * i);
+		assertSameValues(expected, bitmap);
+		for (int value = expected.nextSetBit(0) ; value >= 0 ; value = expected.nextSetBit(value + 1))
+			assertTrue(bitmap.remove(value));
+		assertTrue(bitmap.isEmpty());
+	}
+
+	@Test
+	void binaryOperationsOnEveryKindOfChunk()
+	{
+		Random random = new Random(42);
+		for (int round = 0 ; round < 20 ; round++)
+		{
+			BitSet expectedA = new BitSet();
+			BitSet expectedB = new BitSet();
+			CompressedBitmap a = randomBitmap(random, expectedA);
+			CompressedBitmap b = randomBitmap(random, expectedB);
+			CompressedBitmap copyOfA = a.copy();
+			CompressedBitmap copyOfB = b.copy();
+
+			BitSet and = (BitSet) expectedA.clone();
+			and.and(expectedB);
+			assertSameValues(and, CompressedBitmap.and(a, b));
+			assertSameValues(and, CompressedBitmap.and(b, a));
+
+			BitSet or = (BitSet) expectedA.clone();
+			or.or(expectedB);
+			assertSameValues(or, CompressedBitmap.or(a, b));
+			assertSameValues(or, CompressedBitmap.or(b, a));
+
+			BitSet andNot = (BitSet) expectedA.clone();
+			andNot.andNot(expectedB);
+			assertSameValues(andNot, CompressedBitmap.andNot(a, b));
+
+			CompressedBitmap orWith = a.copy();
+			orWith.orWith(b);
+			assertSameValues(or, orWith);
+
+			// The operands are left untouched
+			assertEquals(copyOfA, a);
+			assertEquals(copyOfB, b);
+		}
+	}
+
+	@Test
+	void resultsDontShareTheContainersOfTheOperands()
+	{
+		CompressedBitmap a = new CompressedBitmap();
+		CompressedBitmap b = new CompressedBitmap();
+		a.add(1);
+		b.add(CHUNK + 1);
+
+		// Chunks only found in one operand are copied
+		CompressedBitmap or = CompressedBitmap.or(a, b);
+		CompressedBitmap andNot = CompressedBitmap.andNot(a, b);
+		CompressedBitmap copy = a.copy();
+		or.add(2);
+		andNot.add(3);
+		copy.add(4);
+
+		assertArrayEquals(new int[] { 1 }, a.toArray());
+		assertArrayEquals(new int[] { CHUNK + 1 }, b.toArray());
+	}
+
+	@Test
+	void equalityDoesntDependOnTheRepresentation()
+	{
+		CompressedBitmap dense = new CompressedBitmap();
+		for (int i = 0 ; i < 5000 ; i++)
+			dense.add(i);
+		// Still dense (see sparseChunkBecomesDenseThenSparseAgain)
+		for (int i = 100 ; i < 5000 ; i++)
+			dense.remove(i);
+		CompressedBitmap sparse = new CompressedBitmap();
+		for (int i = 0 ; i < 100 ; i++)
+			sparse.add(i);
+
+		assertEquals(sparse, dense);
+		assertEquals(sparse.hashCode(), dense.hashCode());
+		sparse.add(100);
+		assertNotEquals(sparse, dense);
+	}
+
+	/*
+	 * Random values over 3 chunks, each one empty, sparse or dense
+	 */
+	private static CompressedBitmap randomBitmap(Random random, BitSet expected)
+	{
+		CompressedBitmap bitmap = new CompressedBitmap();
+		for (int chunk = 0 ; chunk < 3 ; chunk++)
+		{
+			int nbValues = switch (random.nextInt(3))
+			{
+				case 0 -> 0;
+				case 1 -> random.nextInt(3000);
+				default -> 4097 + random.nextInt(20_000);
+			};
+			for (int i = 0 ; i < nbValues ; i++)
+				add(bitmap, expected, chunk * CHUNK + random.nextInt(CHUNK));
+		}
+		return bitmap;
+	}
+
+	private static void add(CompressedBitmap bitmap, BitSet expected, int value)
+	{
+		assertEquals(!expected.get(value), bitmap.add(value));
+		expected.set(value);
+	}
+
+	private static void remove(CompressedBitmap bitmap, BitSet expected, int value)
+	{
+		assertEquals(expected.get(value), bitmap.remove(value));
+		expected.clear(value);
+	}
+
+	private static void assertSameValues(BitSet expected, CompressedBitmap bitmap)
+	{
+		assertArrayEquals(expected.stream().toArray(), bitmap.toArray());
+		assertEquals(expected.cardinality(), bitmap.cardinality());
+		assertEquals(expected.isEmpty(), bitmap.isEmpty());
+	}
+
+	private static long emptySize()
+	{
+		return new CompressedBitmap().sizeInBytes();
+	}
+}
@@ -0,0 +1,111 @@
+package nigloo.gallerymanager.model;
+
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import nigloo.tool.gson.DateTimeAdapter;
+import nigloo.tool.gson.PathTypeAdapter;
+import nigloo.tool.gson.PatternTypeAdapter;
+import nigloo.tool.injection.Injector;
+import nigloo.tool.injection.impl.SingletonInjectionContext;
+
+/**
+ * Empty galleries to test, the images and tags they create are injected with
+ * the last gallery created (like the application does with its only one).
+ */
+public final class GalleryFixture
+{
+	public static final Path ROOT_FOLDER = Path.of(System.getProperty("java.io.tmpdir"), "gallery").toAbsolutePath();
+
+	private static SingletonInjectionContext context = null;
+
+	private GalleryFixture()
+	{
+	}
+
+	public static Gallery newGallery()
+	{
+		Gallery gallery = injectedGallery();
+		gallery.postConstruct(ROOT_FOLDER);
+		return gallery;
+	}
+
+	/**
+	 * @return the gallery read from json, as opened by the application
+	 */
+	public static Gallery readGallery(String json)
+	{
+		injectedGallery();
+		Gallery gallery = gson().fromJson(json, Gallery.class);
+		gallery.postConstruct(ROOT_FOLDER);
+		return gallery;
+	}
+
+	/**
+	 * @return the gallery as saved by the application
+	 */
+	public static String writeGallery(Gallery gallery)
+	{
+		return gson().toJson(gallery);
+	}
+
+	/**
+	 * Same configuration as the application (see UIController)
+	 */
+	public static Gson gson()
+	{
+		return new GsonBuilder().registerTypeHierarchyAdapter(Path.class, new PathTypeAdapter())
+		                        .registerTypeAdapter(Pattern.class, new PatternTypeAdapter())
+		                        .registerTypeAdapter(ZonedDateTime.class, new DateTimeAdapter())
+		                        .disableHtmlEscaping()
+		                        .setPrettyPrinting()
+		                        .create();
+	}
+
+	/*
+	 * Not constructed yet, injected in the images, tags and downloaders
+	 * created from now on
+	 */
+	private static synchronized Gallery injectedGallery()
+	{
+		if (context == null)
+		{
+			Injector.ENABLE();
+			context = new SingletonInjectionContext();
+			Injector.addContext(context);
+		}
+
+		Gallery gallery = new Gallery();
+		context.setSingletonInstance(Gallery.class, gallery);
+		return gallery;
+	}
+
+	/**
+	 * @return a new image saved in gallery at path (relative), explicitly
+	 *         tagged with tagNames
+	 */
+	public static Image savedImage(Gallery gallery, String path, String... tagNames)
+	{
+		Image image = gallery.getImage(Path.of(path));
+		gallery.saveImage(image);
+		for (String tagName : tagNames)
+			image.addTag(tagName);
+		return image;
+	}
+
+	/**
+	 * @return the tag named tagName, with parentNames as parents
+	 */
+	public static Tag tag(Gallery gallery, String tagName, String... parentNames)
+	{
+		Tag tag = gallery.getTag(tagName);
+		if (parentNames.length > 0)
+			tag.setParents(Arrays.stream(parentNames).map(gallery::getTag).toList());
+		return tag;
+	}
+}
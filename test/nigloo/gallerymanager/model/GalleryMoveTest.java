@@ -0,0 +1,68 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class GalleryMoveTest
+{
+	private Gallery gallery;
+
+	@BeforeEach
+	void createGallery()
+	{
+		gallery = GalleryFixture.newGallery();
+	}
+
+	@Test
+	void moveUpdatesThePathIndexes()
+	{
+		Image image = GalleryFixture.savedImage(gallery, "a/image.png");
+		image.move(Path.of("b/image.png"));
+
+		assertEquals(Path.of("b/image.png"), image.getPath());
+		assertSame(image, gallery.findImage(Path.of("b/image.png"), false));
+		assertEquals(null, gallery.findImage(Path.of("a/image.png"), true));
+		// Onto itself
+		image.move(Path.of("b/image.png"));
+		assertSame(image, gallery.findImage(Path.of("b/image.png"), false));
+	}
+
+	@Test
+	void moveOntoAnotherImageIsRejected()
+	{
+		Image image = GalleryFixture.savedImage(gallery, "a.png");
+		Image other = GalleryFixture.savedImage(gallery, "b.png");
+		Image unsaved = gallery.getImage(Path.of("c.png"));
+
+		assertThrows(IllegalArgumentException.class, () -> image.move(Path.of("b.png")));
+		assertThrows(IllegalArgumentException.class, () -> image.move(Path.of("c.png")));
+		assertThrows(IllegalArgumentException.class, () -> unsaved.move(Path.of("a.png")));
+
+		assertEquals(Path.of("a.png"), image.getPath());
+		assertSame(image, gallery.findImage(Path.of("a.png"), false));
+		assertSame(other, gallery.findImage(Path.of("b.png"), false));
+		assertSame(unsaved, gallery.findImage(Path.of("c.png"), true));
+	}
+
+	@Test
+	void folderMovedIntoItselfKeepsEveryImage()
+	{
+		// a/1.png goes where a/a/1.png was, which goes further down
+		Image top = GalleryFixture.savedImage(gallery, "a/1.png");
+		Image nested = GalleryFixture.savedImage(gallery, "a/a/1.png");
+
+		gallery.move(Path.of("a"), Path.of("a/a"));
+
+		assertEquals(Path.of("a/a/1.png"), top.getPath());
+		assertEquals(Path.of("a/a/a/1.png"), nested.getPath());
+		assertSame(top, gallery.findImage(Path.of("a/a/1.png"), false));
+		assertSame(nested, gallery.findImage(Path.of("a/a/a/1.png"), false));
+		assertEquals(null, gallery.findImage(Path.of("a/1.png"), true));
+	}
+}
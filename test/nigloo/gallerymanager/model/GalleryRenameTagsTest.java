@@ -0,0 +1,108 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class GalleryRenameTagsTest
+{
+	private Gallery gallery;
+
+	@BeforeEach
+	void createGallery()
+	{
+		gallery = GalleryFixture.newGallery();
+	}
+
+	@Test
+	void mergeMovesImagesChildrenAndParents()
+	{
+		Tag x = GalleryFixture.tag(gallery, "x", "px");
+		Tag y = GalleryFixture.tag(gallery, "y", "py");
+		Tag child = GalleryFixture.tag(gallery, "child", "x");
+		Image image = GalleryFixture.savedImage(gallery, "image.png", "x");
+
+		assertEquals(1, gallery.renameTags(Map.of("x", "y")));
+
+		assertEquals(Set.of(y), Set.copyOf(image.getTags()));
+		assertEquals(Set.of(y), Set.copyOf(child.getParents()));
+		assertEquals(Set.of(gallery.findTag("px"), gallery.findTag("py")), Set.copyOf(y.getParents()));
+		// Kept, unused
+		assertEquals(x, gallery.findTag("x"));
+	}
+
+	@Test
+	void mergingAParentAndItsChildIsNoCycle()
+	{
+		Tag parent = GalleryFixture.tag(gallery, "parent");
+		Tag child = GalleryFixture.tag(gallery, "child", "parent");
+		Tag grandChild = GalleryFixture.tag(gallery, "grand_child", "child");
+
+		gallery.renameTags(Map.of("parent", "child"));
+
+		assertTrue(child.getParents().isEmpty());
+		assertEquals(Set.of(child), Set.copyOf(grandChild.getParents()));
+		assertFalse(parent.getParents().contains(child));
+	}
+
+	@Test
+	void cycleInTheSecondEntryKeepsTheFirstOneApplied()
+	{
+		Tag x = GalleryFixture.tag(gallery, "x");
+		Tag y = GalleryFixture.tag(gallery, "y");
+		Tag child = GalleryFixture.tag(gallery, "child", "x");
+		Image imageX = GalleryFixture.savedImage(gallery, "x.png", "x");
+
+		// p -> m -> q: q would be both an ancestor and a descendant of m
+		Tag p = GalleryFixture.tag(gallery, "p");
+		Tag m = GalleryFixture.tag(gallery, "m", "p");
+		Tag q = GalleryFixture.tag(gallery, "q", "m");
+		Image imageP = GalleryFixture.savedImage(gallery, "p.png", "p");
+
+		Map<String, String> plan = new LinkedHashMap<>();
+		plan.put("x", "y");
+		plan.put("p", "q");
+		plan.put("unused", "never_applied");
+		assertThrows(IllegalArgumentException.class, () -> gallery.renameTags(plan));
+
+		// First entry fully applied
+		assertEquals(Set.of(y), Set.copyOf(imageX.getTags()));
+		assertEquals(Set.of(y), Set.copyOf(child.getParents()));
+		assertTrue(gallery.findImages(index -> index.imagesWithTag("x").copy()).isEmpty());
+
+		// Second one left as is
+		assertEquals(Set.of(p), Set.copyOf(imageP.getTags()));
+		assertEquals(Set.of(p), Set.copyOf(m.getParents()));
+		assertEquals(Set.of(m), Set.copyOf(q.getParents()));
+		assertTrue(p.getParents().isEmpty());
+		assertEquals(null, gallery.findTag("never_applied"));
+		assertEquals(x, gallery.findTag("x"));
+	}
+
+	@Test
+	void cycleThroughATagMergedBeforeInThePlan()
+	{
+		// p -> m and n -> q: once n merged into m, q is a descendant of p
+		Tag p = GalleryFixture.tag(gallery, "p");
+		Tag m = GalleryFixture.tag(gallery, "m", "p");
+		GalleryFixture.tag(gallery, "n");
+		Tag q = GalleryFixture.tag(gallery, "q", "n");
+
+		Map<String, String> plan = new LinkedHashMap<>();
+		plan.put("n", "m");
+		plan.put("p", "q");
+		IllegalArgumentException failure = assertThrows(IllegalArgumentException.class, () -> gallery.renameTags(plan));
+		assertTrue(failure.getMessage().startsWith("Cannot merge p into q"), failure::getMessage);
+
+		assertEquals(Set.of(m), Set.copyOf(q.getParents()));
+		assertEquals(Set.of(p), Set.copyOf(m.getParents()));
+	}
+}
@@ -0,0 +1,74 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Throughput of saving and loading gallery.json through the hand-written
+ * adapters, in MB/s and images/s. Loading includes postConstruct, as when the
+ * application opens the gallery.<br/>
+ * Run with mvn test -P benchmark
+ */
+@org.junit.jupiter.api.Tag("benchmark")
+class GallerySerializationBenchmarkTest
+{
+	private static final int NB_IMAGES = 100_000;
+	private static final int NB_TAGS_PER_IMAGE = 8;
+	private static final int NB_TAGS = 3_000;
+	private static final int NB_WARMUPS = 2;
+	private static final int NB_RUNS = 5;
+
+	@Test
+	void loadAndSaveThroughput()
+	{
+		Gallery gallery = GalleryFixture.newGallery();
+		Random random = new Random(42);
+		for (int i = 0 ; i < NB_TAGS ; i++)
+			GalleryFixture.tag(gallery, "tag_" + i, i < 100 ? new String[0] : new String[] { "tag_" + random.nextInt(100) });
+		for (int i = 0 ; i < NB_IMAGES ; i++)
+		{
+			String[] tags = random.ints(NB_TAGS_PER_IMAGE, 0, NB_TAGS).mapToObj(tag -> "tag_" + tag).toArray(String[]::new);
+			GalleryFixture.savedImage(gallery, "artist_" + (i % 500) + "/image_" + i + ".png", tags);
+		}
+
+		String json = GalleryFixture.writeGallery(gallery);
+		long nbBytes = json.getBytes(StandardCharsets.UTF_8).length;
+
+		for (int i = 0 ; i < NB_WARMUPS ; i++)
+			GalleryFixture.readGallery(GalleryFixture.writeGallery(gallery));
+
+		long saveNanos = 0;
+		long loadNanos = 0;
+		for (int i = 0 ; i < NB_RUNS ; i++)
+		{
+			long start = System.nanoTime();
+			String written = GalleryFixture.writeGallery(gallery);
+			saveNanos += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Gallery read = GalleryFixture.readGallery(written);
+			loadNanos += System.nanoTime() - start;
+			assertEquals(NB_IMAGES, read.getImages(false).size());
+		}
+
+		report("save", nbBytes, saveNanos / NB_RUNS);
+		report("load", nbBytes, loadNanos / NB_RUNS);
+	}
+
+	private static void report(String operation, long nbBytes, long nanos)
+	{
+		double seconds = nanos / 1e9;
+		System.out.printf(Locale.ROOT, "Gallery %s of %d images (%.1f MB): %6d ms, %6.1f MB/s, %8d images/s%n",
+		                  operation,
+		                  NB_IMAGES,
+		                  nbBytes / 1_000_000d,
+		                  nanos / 1_000_000,
+		                  nbBytes / 1_000_000d / seconds,
+		                  Math.round(NB_IMAGES / seconds));
+	}
+}
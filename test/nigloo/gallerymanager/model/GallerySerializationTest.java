@@ -0,0 +1,125 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import javafx.scene.paint.Color;
+import nigloo.gallerymanager.autodownloader.Downloader;
+import nigloo.gallerymanager.autodownloader.DownloaderType;
+
+/**
+ * Round trips through the hand-written adapters of the gallery, its images,
+ * its tags and the lazily parsed mappings of the downloaders.
+ */
+class GallerySerializationTest
+{
+	@Test
+	void imagesAndTagsAreReadAsWritten()
+	{
+		Gallery gallery = GalleryFixture.newGallery();
+		GalleryFixture.tag(gallery, "child", "parent");
+		GalleryFixture.tag(gallery, "several_parents", "parent", "other_parent");
+		gallery.getTag("parent").setColor(Color.RED);
+		Image tagged = GalleryFixture.savedImage(gallery, "folder/tagged.png", "child", "several_parents");
+		Image untagged = GalleryFixture.savedImage(gallery, "untagged.png");
+
+		String json = GalleryFixture.writeGallery(gallery);
+		Gallery read = GalleryFixture.readGallery(json);
+
+		Image readTagged = read.findImage(tagged.getId());
+		assertEquals(Path.of("folder/tagged.png"), readTagged.getPath());
+		assertEquals(Set.of("child", "several_parents"), names(readTagged.getTags()));
+		assertEquals(Set.of("child", "several_parents", "parent", "other_parent"), readTagged.getImplicitTags());
+		assertTrue(read.findImage(untagged.getId()).getTags().isEmpty());
+		assertEquals(2, read.getImages(false).size());
+
+		assertEquals(Set.of("parent", "other_parent"), names(read.findTag("several_parents").getParents()));
+		assertEquals(Color.RED, read.findTag("parent").getColor());
+		assertEquals(Color.RED, read.findTag("child").getColor());
+
+		assertEquals(JsonParser.parseString(json), JsonParser.parseString(GalleryFixture.writeGallery(read)));
+	}
+
+	@Test
+	void tagsOfTheImagesAreReadBeforeTheTagsThemselves()
+	{
+		Gallery gallery = GalleryFixture.readGallery("""
+		        {
+		          "images": [
+		            { "id": 1, "path": "a.png", "tags": ["b", "Not_Normalized"] },
+		            { "id": 2, "path": "b.png", "tags": ["b"] }
+		          ],
+		          "tags": [
+		            { "name": "a" },
+		            { "name": "b", "parents": ["a"] }
+		          ]
+		        }""");
+
+		assertEquals(Set.of("b", "not_normalized"), names(gallery.findImage(1).getTags()));
+		assertTrue(gallery.findImage(2).hasImplicitTag("a"));
+		assertEquals(Set.of("a", "b", "not_normalized"), names(gallery.findTags(new TagPattern("*"))));
+	}
+
+	@Test
+	void mappingsAreWrittenTheSameWhetherParsedOrNot()
+	{
+		Gallery gallery = GalleryFixture.newGallery();
+		Image image1 = GalleryFixture.savedImage(gallery, "1.png");
+		Image image2 = GalleryFixture.savedImage(gallery, "2.png");
+		Image image3 = GalleryFixture.savedImage(gallery, "3.png");
+		Image notDownloaded = GalleryFixture.savedImage(gallery, "4.png");
+		gallery.newDownloader(gallery.newArtist(), DownloaderType.MASONRY, "creator");
+
+		// Already in the order written: last post first, images then files
+		JsonArray mapping = JsonParser.parseString("""
+		        [
+		          { "postId": "2", "imageId": "a", "imageRef": %d },
+		          { "postId": "2", "fileId": "f", "zipEntries": { "x.png": %d, "y.png": "deleted" } },
+		          { "postId": "1", "imageId": "b", "imageRef": "deleted" },
+		          { "postId": "1", "fileId": "g", "imageRef": %d }
+		        ]""".formatted(image1.getId(), image2.getId(), image3.getId())).getAsJsonArray();
+		JsonObject json = JsonParser.parseString(GalleryFixture.writeGallery(gallery)).getAsJsonObject();
+		firstDownloader(json).add("mapping", mapping);
+
+		// Not parsed: copied as is
+		Gallery unparsed = GalleryFixture.readGallery(json.toString());
+		Downloader unparsedDownloader = unparsed.getArtists().get(0).getAutodownloaders().get(0);
+		assertTrue(unparsedDownloader.isHandling(unparsed.findImage(image3.getId())));
+		assertFalse(unparsedDownloader.isHandling(unparsed.findImage(notDownloaded.getId())));
+		String unparsedJson = GalleryFixture.writeGallery(GalleryFixture.readGallery(json.toString()));
+		assertEquals(mapping, firstDownloader(JsonParser.parseString(unparsedJson).getAsJsonObject()).get("mapping"));
+
+		// Parsed then written entry by entry
+		Gallery parsed = GalleryFixture.readGallery(unparsedJson);
+		Downloader parsedDownloader = parsed.getArtists().get(0).getAutodownloaders().get(0);
+		parsedDownloader.loadMapping();
+		assertTrue(parsedDownloader.isHandling(parsed.findImage(image1.getId())));
+		assertTrue(parsedDownloader.isHandling(parsed.findImage(image2.getId())));
+		assertFalse(parsedDownloader.isHandling(parsed.findImage(notDownloaded.getId())));
+		assertEquals(JsonParser.parseString(unparsedJson), JsonParser.parseString(GalleryFixture.writeGallery(parsed)));
+	}
+
+	private static JsonObject firstDownloader(JsonObject gallery)
+	{
+		JsonElement artist = gallery.getAsJsonArray("artists").get(0);
+		return artist.getAsJsonObject().getAsJsonArray("autodownloaders").get(0).getAsJsonObject();
+	}
+
+	private static Set<String> names(Collection<Tag> tags)
+	{
+		return tags.stream().map(Tag::getName).collect(Collectors.toSet());
+	}
+}
@@ -0,0 +1,58 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ImageTest
+{
+	private Gallery gallery;
+
+	@BeforeEach
+	void createGallery()
+	{
+		gallery = GalleryFixture.newGallery();
+	}
+
+	@Test
+	void implicitTagsFollowTheTagsAndTheHierarchy()
+	{
+		Tag child = GalleryFixture.tag(gallery, "child", "parent");
+		Image image = GalleryFixture.savedImage(gallery, "image.png", "child");
+		assertEquals(Set.of("child", "parent"), image.getImplicitTags());
+
+		child.setParents(List.of(gallery.getTag("other_parent")));
+		assertEquals(Set.of("child", "other_parent"), image.getImplicitTags());
+
+		image.addTag("parent");
+		assertEquals(Set.of("child", "other_parent", "parent"), image.getImplicitTags());
+		assertTrue(image.hasImplicitTag("parent"));
+
+		image.removeTag("child");
+		assertEquals(Set.of("parent"), image.getImplicitTags());
+		assertFalse(image.hasImplicitTag("other_parent"));
+	}
+
+	@Test
+	void addAndRemoveReportChanges()
+	{
+		Image image = GalleryFixture.savedImage(gallery, "image.png");
+		Tag tag = gallery.getTag("tag");
+
+		assertTrue(image.addTag(tag));
+		assertFalse(image.addTag(tag));
+		assertTrue(image.hasTag(tag));
+		assertTrue(gallery.findImages(index -> index.imagesWithTag("tag").copy()).contains(image));
+
+		assertTrue(image.removeTag(tag));
+		assertFalse(image.removeTag(tag));
+		assertFalse(image.hasTag(tag));
+		assertTrue(gallery.findImages(index -> index.imagesWithTag("tag").copy()).isEmpty());
+	}
+}
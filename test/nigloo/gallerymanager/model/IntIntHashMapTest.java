@@ -0,0 +1,107 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class IntIntHashMapTest
+{
+	// Capacity of a map created for 8 entries
+	private static final int MASK = 15;
+
+	@Test
+	void countsDropToZeroAreRemoved()
+	{
+		IntIntHashMap map = new IntIntHashMap();
+		assertEquals(2, map.addTo(3, 2));
+		assertEquals(5, map.addTo(3, 3));
+		assertEquals(1, map.addTo(4, 1));
+		assertEquals(2, map.size());
+
+		assertEquals(0, map.addTo(3, -5));
+		assertEquals(0, map.get(3));
+		assertEquals(1, map.size());
+
+		// Adding 0 to an absent key doesn't create it
+		assertEquals(0, map.addTo(7, 0));
+		assertEquals(1, map.size());
+
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertEquals(0, map.get(4));
+	}
+
+	@Test
+	void removeShiftsBackAcrossTheEndOfTheTable()
+	{
+		List<Integer> lastSlotKeys = keysWithHome(MASK, 3);
+		int firstSlotKey = keysWithHome(0, 1).get(0);
+
+		IntIntHashMap map = new IntIntHashMap(8);
+		// Slots 15, 0, 1 and 2
+		map.addTo(lastSlotKeys.get(0), 1);
+		map.addTo(lastSlotKeys.get(1), 2);
+		map.addTo(firstSlotKey, 3);
+		map.addTo(lastSlotKeys.get(2), 4);
+
+		map.addTo(lastSlotKeys.get(0), -1);
+
+		assertEquals(3, map.size());
+		assertEquals(0, map.get(lastSlotKeys.get(0)));
+		assertEquals(2, map.get(lastSlotKeys.get(1)));
+		assertEquals(3, map.get(firstSlotKey));
+		assertEquals(4, map.get(lastSlotKeys.get(2)));
+	}
+
+	@Test
+	void sameContentAsHashMapUnderRandomOperations()
+	{
+		Random random = new Random(42);
+		IntIntHashMap map = new IntIntHashMap();
+		Map<Integer, Integer> expected = new HashMap<>();
+
+		for (int i = 0 ; i < 200_000 ; i++)
+		{
+			int key = random.nextInt(300);
+			int delta = random.nextInt(5) - 2;
+			int count = expected.getOrDefault(key, 0) + delta;
+			if (count == 0)
+				expected.remove(key);
+			else
+				expected.put(key, count);
+
+			assertEquals(count, map.addTo(key, delta));
+		}
+
+		assertEquals(expected.size(), map.size());
+		for (int key = 0 ; key < 300 ; key++)
+			assertEquals(expected.getOrDefault(key, 0), map.get(key));
+
+		Map<Integer, Integer> visited = new HashMap<>();
+		map.forEach(visited::put);
+		assertEquals(expected, visited);
+	}
+
+	// Same hash as IntIntHashMap.slot
+	private static int home(int key)
+	{
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & MASK;
+	}
+
+	private static List<Integer> keysWithHome(int slot, int count)
+	{
+		List<Integer> keys = new ArrayList<>();
+		for (int key = 1 ; keys.size() < count ; key++)
+			if (home(key) == slot)
+				keys.add(key);
+		return keys;
+	}
+}
@@ -0,0 +1,139 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class LongObjectHashMapTest
+{
+	// Capacity of a map created with the default constructor
+	private static final int DEFAULT_MASK = 15;
+
+	@Test
+	void putGetRemove()
+	{
+		LongObjectHashMap<String> map = new LongObjectHashMap<>();
+		assertTrue(map.isEmpty());
+
+		assertNull(map.put(1, "a"));
+		assertNull(map.put(2, "b"));
+		assertEquals("a", map.put(1, "c"));
+
+		assertEquals(2, map.size());
+		assertEquals("c", map.get(1));
+		assertEquals("b", map.get(2));
+		assertNull(map.get(3));
+		assertTrue(map.containsKey(2));
+		assertFalse(map.containsKey(3));
+
+		assertEquals("c", map.remove(1));
+		assertNull(map.remove(1));
+		assertEquals(1, map.size());
+		assertNull(map.get(1));
+	}
+
+	@Test
+	void nullValuesAreRejected()
+	{
+		assertThrows(NullPointerException.class, () -> new LongObjectHashMap<String>().put(1, null));
+	}
+
+	@Test
+	void growsPastTheLoadFactor()
+	{
+		LongObjectHashMap<Long> map = new LongObjectHashMap<>();
+		for (long key = 0 ; key < 10_000 ; key++)
+			map.put(key * 7, key);
+
+		assertEquals(10_000, map.size());
+		for (long key = 0 ; key < 10_000 ; key++)
+			assertEquals(key, map.get(key * 7));
+	}
+
+	/*
+	 * The probe sequence of the last slot continues at slot 0: removing its
+	 * head must shift back the entries found past the end of the table.
+	 */
+	@Test
+	void removeShiftsBackAcrossTheEndOfTheTable()
+	{
+		List<Long> lastSlotKeys = keysWithHome(DEFAULT_MASK, 3);
+		long firstSlotKey = keysWithHome(0, 1).get(0);
+
+		LongObjectHashMap<String> map = new LongObjectHashMap<>();
+		// Slots 15, 0, 1 and 2
+		map.put(lastSlotKeys.get(0), "a");
+		map.put(lastSlotKeys.get(1), "b");
+		map.put(firstSlotKey, "c");
+		map.put(lastSlotKeys.get(2), "d");
+
+		assertEquals("a", map.remove(lastSlotKeys.get(0)));
+
+		assertEquals(3, map.size());
+		assertNull(map.get(lastSlotKeys.get(0)));
+		assertEquals("b", map.get(lastSlotKeys.get(1)));
+		assertEquals("c", map.get(firstSlotKey));
+		assertEquals("d", map.get(lastSlotKeys.get(2)));
+
+		// Entries wrapped around, then an entry at its home slot
+		assertEquals("b", map.remove(lastSlotKeys.get(1)));
+		assertEquals("c", map.get(firstSlotKey));
+		assertEquals("d", map.get(lastSlotKeys.get(2)));
+		assertEquals("c", map.remove(firstSlotKey));
+		assertEquals("d", map.get(lastSlotKeys.get(2)));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	void sameContentAsHashMapUnderRandomOperations()
+	{
+		Random random = new Random(42);
+		LongObjectHashMap<Long> map = new LongObjectHashMap<>();
+		Map<Long, Long> expected = new HashMap<>();
+
+		// Few distinct keys: long probe sequences and many removals
+		for (int i = 0 ; i < 200_000 ; i++)
+		{
+			long key = random.nextInt(500) - 250;
+			if (random.nextInt(3) == 0)
+				assertEquals(expected.remove(key), map.remove(key));
+			else
+				assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+		}
+
+		assertEquals(expected.size(), map.size());
+		for (long key = -250 ; key < 250 ; key++)
+			assertEquals(expected.get(key), map.get(key));
+
+		Map<Long, Long> values = new HashMap<>();
+		map.forEachValue(value -> values.merge(value, 1L, Long::sum));
+		assertEquals(expected.size(), values.size());
+		expected.values().forEach(value -> assertTrue(values.containsKey(value)));
+	}
+
+	// Same hash as LongObjectHashMap.slot
+	private static int home(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & DEFAULT_MASK;
+	}
+
+	private static List<Long> keysWithHome(int slot, int count)
+	{
+		List<Long> keys = new ArrayList<>();
+		for (long key = 1 ; keys.size() < count ; key++)
+			if (home(key) == slot)
+				keys.add(key);
+		return keys;
+	}
+}
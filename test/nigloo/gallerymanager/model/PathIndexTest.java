@@ -0,0 +1,116 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class PathIndexTest
+{
+	@Test
+	void exactLookups()
+	{
+		PathIndex index = new PathIndex();
+		Image a = image("artist/a.png");
+		Image b = image("artist/sub/b.png");
+
+		assertNull(index.put(a.getPath(), a));
+		assertNull(index.put(b.getPath(), b));
+
+		assertSame(a, index.get(Paths.get("artist", "a.png")));
+		assertSame(b, index.get(Paths.get("artist/sub/b.png")));
+		// Folders are not images
+		assertNull(index.get(Paths.get("artist")));
+		assertNull(index.get(Paths.get("artist/c.png")));
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	void putReplacesTheImageAtTheSamePath()
+	{
+		PathIndex index = new PathIndex();
+		Image a = image("a.png");
+		Image other = image("a.png");
+
+		index.put(a.getPath(), a);
+		assertSame(a, index.put(other.getPath(), other));
+		assertSame(other, index.get(Paths.get("a.png")));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	void subtreeQueries()
+	{
+		PathIndex index = new PathIndex();
+		List<Image> images = List.of(image("x/a.png"), image("x/y/b.png"), image("x/y/c.png"), image("xy/d.png"));
+		images.forEach(image -> index.put(image.getPath(), image));
+
+		assertEquals(Set.of(images.get(1), images.get(2)), collectIn(index, "x/y"));
+		assertEquals(Set.of(images.get(0), images.get(1), images.get(2)), collectIn(index, "x"));
+		// Whole segments only: xy isn't in x
+		assertEquals(Set.of(images.get(3)), collectIn(index, "xy"));
+		// The image itself
+		assertEquals(Set.of(images.get(0)), collectIn(index, "x/a.png"));
+		assertEquals(Set.of(), collectIn(index, "z"));
+		// The empty path is the root folder
+		assertEquals(new HashSet<>(images), collectIn(index, ""));
+		assertEquals(new HashSet<>(images), new HashSet<>(index.values()));
+	}
+
+	@Test
+	void removePrunesTheEmptyBranches()
+	{
+		PathIndex index = new PathIndex();
+		Image a = image("x/y/z/a.png");
+		Image b = image("x/b.png");
+		index.put(a.getPath(), a);
+		index.put(b.getPath(), b);
+
+		assertNull(index.remove(Paths.get("x/y")));
+		assertSame(a, index.remove(a.getPath()));
+		assertNull(index.remove(a.getPath()));
+
+		assertEquals(1, index.size());
+		assertEquals(Set.of(), collectIn(index, "x/y"));
+		assertEquals(Set.of(b), collectIn(index, "x"));
+
+		assertSame(b, index.remove(b.getPath()));
+		assertEquals(0, index.size());
+		assertTrue(index.values().isEmpty());
+	}
+
+	@Test
+	void clear()
+	{
+		PathIndex index = new PathIndex();
+		Image a = image("a.png");
+		index.put(a.getPath(), a);
+
+		index.clear();
+		assertEquals(0, index.size());
+		assertNull(index.get(a.getPath()));
+	}
+
+	private static Image image(String path)
+	{
+		return new Image(null, -1, Paths.get(path), Image.NO_TAGS);
+	}
+
+	private static Set<Image> collectIn(PathIndex index, String path)
+	{
+		List<Image> found = new ArrayList<>();
+		index.collectIn(Path.of(path), found);
+		Set<Image> distinct = new HashSet<>(found);
+		assertEquals(found.size(), distinct.size());
+		return distinct;
+	}
+}
@@ -0,0 +1,99 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class TagCooccurrencesTest
+{
+	private static final int[] NONE = {};
+
+	@Test
+	void pairsAreCountedBothWays()
+	{
+		TagCooccurrences cooccurrences = new TagCooccurrences();
+		cooccurrences.update(NONE, new int[] { 1, 2, 3 });
+		cooccurrences.update(NONE, new int[] { 1, 2 });
+
+		assertEquals(2, cooccurrences.count(1, 2));
+		assertEquals(2, cooccurrences.count(2, 1));
+		assertEquals(1, cooccurrences.count(1, 3));
+		assertEquals(1, cooccurrences.count(3, 2));
+		assertEquals(0, cooccurrences.count(1, 1));
+		assertEquals(0, cooccurrences.count(1, 4));
+		assertEquals(0, cooccurrences.count(-1, 1));
+	}
+
+	@Test
+	void updateCountsOnlyTheTagsAddedOrRemoved()
+	{
+		TagCooccurrences cooccurrences = new TagCooccurrences();
+		cooccurrences.update(NONE, new int[] { 1, 2, 3 });
+		// 3 removed, 4 and 5 added
+		cooccurrences.update(new int[] { 1, 2, 3 }, new int[] { 1, 2, 4, 5 });
+
+		assertEquals(1, cooccurrences.count(1, 2));
+		assertEquals(0, cooccurrences.count(1, 3));
+		assertEquals(0, cooccurrences.count(3, 2));
+		assertEquals(1, cooccurrences.count(4, 5));
+		assertEquals(1, cooccurrences.count(5, 4));
+		assertEquals(1, cooccurrences.count(2, 4));
+		assertEquals(1, cooccurrences.count(4, 1));
+
+		cooccurrences.update(new int[] { 1, 2, 4, 5 }, NONE);
+		for (int tagId = 0 ; tagId < 6 ; tagId++)
+			for (int otherId = 0 ; otherId < 6 ; otherId++)
+				assertEquals(0, cooccurrences.count(tagId, otherId));
+	}
+
+	@Test
+	void sameCountsAsRecountingEveryImage()
+	{
+		Random random = new Random(42);
+		int nbTags = 40;
+		int[][] images = new int[300][];
+		Arrays.fill(images, NONE);
+		TagCooccurrences cooccurrences = new TagCooccurrences();
+
+		for (int i = 0 ; i < 5000 ; i++)
+		{
+			int image = random.nextInt(images.length);
+			int[] tagIds = random.ints(random.nextInt(6), 0, nbTags).sorted().distinct().toArray();
+			cooccurrences.update(images[image], tagIds);
+			images[image] = tagIds;
+		}
+
+		int[][] expected = new int[nbTags][nbTags];
+		for (int[] tagIds : images)
+			for (int tagId : tagIds)
+				for (int otherId : tagIds)
+					if (tagId != otherId)
+						expected[tagId][otherId]++;
+
+		for (int tagId = 0 ; tagId < nbTags ; tagId++)
+			for (int otherId = 0 ; otherId < nbTags ; otherId++)
+				assertEquals(expected[tagId][otherId], cooccurrences.count(tagId, otherId));
+	}
+
+	@Test
+	void relatedTagsBestScoredFirstThenOldest()
+	{
+		TagCooccurrences cooccurrences = new TagCooccurrences();
+		cooccurrences.update(NONE, new int[] { 0, 1, 2 });
+		cooccurrences.update(NONE, new int[] { 0, 2, 3 });
+		cooccurrences.update(NONE, new int[] { 0, 2, 4 });
+		cooccurrences.update(NONE, new int[] { 1, 5 });
+
+		// 2: 3, 1: 1, 3: 1, 4: 1
+		assertArrayEquals(new int[] { 2, 1, 3, 4 }, cooccurrences.related(new int[] { 0 }, 10));
+		assertArrayEquals(new int[] { 2, 1 }, cooccurrences.related(new int[] { 0 }, 2));
+		// Summed over the tags: 2: 4, 5: 1, 3: 1, 4: 1, the tags given excluded
+		assertArrayEquals(new int[] { 2, 3, 4, 5 }, cooccurrences.related(new int[] { 0, 1 }, 10));
+		assertArrayEquals(NONE, cooccurrences.related(new int[] { 0 }, 0));
+		assertArrayEquals(NONE, cooccurrences.related(new int[] { 42 }, 10));
+	}
+}
@@ -0,0 +1,120 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class TagDictionaryTest
+{
+	@Test
+	void denseIdsInRegistrationOrder()
+	{
+		TagDictionary dictionary = new TagDictionary();
+		Tag a = tag("a");
+		Tag b = tag("b");
+
+		assertTrue(dictionary.register(a));
+		assertTrue(dictionary.register(b));
+
+		assertEquals(0, a.getId());
+		assertEquals(1, b.getId());
+		assertEquals(2, dictionary.idBound());
+		assertSame(a, dictionary.get("a"));
+		assertSame(b, dictionary.get(1));
+		assertNull(dictionary.get(2));
+		assertNull(dictionary.get(-1));
+		assertNull(dictionary.get("c"));
+	}
+
+	@Test
+	void theFirstTagRegisteredKeepsItsName()
+	{
+		TagDictionary dictionary = new TagDictionary();
+		Tag first = tag("a");
+		Tag duplicate = tag("a");
+
+		dictionary.register(first);
+		assertFalse(dictionary.register(duplicate));
+
+		assertSame(first, dictionary.get("a"));
+		// Still interned
+		assertSame(duplicate, dictionary.get(duplicate.getId()));
+		assertEquals(List.of(first), dictionary.find(new TagPattern("a*")));
+	}
+
+	@Test
+	void rename()
+	{
+		TagDictionary dictionary = new TagDictionary();
+		Tag tag = tag("old_name");
+		dictionary.register(tag);
+
+		dictionary.rename(tag, "new_name");
+
+		assertEquals("new_name", tag.getName());
+		assertNull(dictionary.get("old_name"));
+		assertSame(tag, dictionary.get("new_name"));
+		assertEquals(0, tag.getId());
+		assertEquals(List.of(), dictionary.find(new TagPattern("*old*")));
+		assertEquals(List.of(tag), dictionary.find(new TagPattern("*new*")));
+	}
+
+	@Test
+	void findByPattern()
+	{
+		TagDictionary dictionary = new TagDictionary();
+		Map<String, Tag> tags = register(dictionary, "artist_a", "artist_b", "red_outfit", "blue_outfit", "outfit", "art");
+
+		// By prefix
+		assertEquals(List.of(tags.get("artist_a"), tags.get("artist_b")), dictionary.find(new TagPattern("artist_*")));
+		// By trigram
+		assertEquals(List.of(tags.get("blue_outfit"), tags.get("red_outfit")), dictionary.find(new TagPattern("*_outfit")));
+		// Too short for the trigrams: scan
+		assertEquals(List.of(tags.get("blue_outfit"), tags.get("red_outfit")), dictionary.find(new TagPattern("*e*t")));
+		assertEquals(List.of(tags.get("art")), dictionary.find(new TagPattern("art")));
+		assertEquals(List.of(), dictionary.find(new TagPattern("*zzz*")));
+	}
+
+	@Test
+	void findContainingRanksByPositionThenUsageThenName()
+	{
+		TagDictionary dictionary = new TagDictionary();
+		Map<String, Tag> tags = register(dictionary, "blue_outfit", "outfit", "red_outfit", "outfit_b", "outfit_a");
+		// Usage by id
+		int[] usage = { 5, 1, 9, 1, 1 };
+
+		assertEquals(List.of(tags.get("outfit"), tags.get("outfit_a"), tags.get("outfit_b"), tags.get("red_outfit"),
+		                     tags.get("blue_outfit")),
+		             dictionary.findContaining("outfit", 10, tagId -> usage[tagId]));
+		assertEquals(List.of(tags.get("outfit"), tags.get("outfit_a")),
+		             dictionary.findContaining("outfit", 2, tagId -> usage[tagId]));
+		// Too short for the trigrams: scan
+		assertEquals(List.of(tags.get("outfit_b")), dictionary.findContaining("_b", 10, tagId -> usage[tagId]));
+		assertEquals(List.of(), dictionary.findContaining("outfit", 0, tagId -> usage[tagId]));
+	}
+
+	private static Tag tag(String name)
+	{
+		return new Tag(null, name, null, null);
+	}
+
+	private static Map<String, Tag> register(TagDictionary dictionary, String... names)
+	{
+		Map<String, Tag> tags = new HashMap<>();
+		for (String name : names)
+		{
+			Tag tag = tag(name);
+			dictionary.register(tag);
+			tags.put(name, tag);
+		}
+		return tags;
+	}
+}
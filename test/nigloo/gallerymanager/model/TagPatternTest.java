@@ -0,0 +1,40 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TagPatternTest
+{
+	@Test
+	void wildcardMatchesAnySequence()
+	{
+		assertTrue(new TagPattern("artist_*").matches("artist_"));
+		assertTrue(new TagPattern("artist_*").matches("artist_name"));
+		assertTrue(new TagPattern("*_outfit").matches("red_outfit"));
+		assertTrue(new TagPattern("a*b*c").matches("a_b_b_c"));
+		assertFalse(new TagPattern("a*b*c").matches("a_c"));
+		assertFalse(new TagPattern("ab*ba").matches("aba"));
+		assertTrue(new TagPattern("*").matches("anything"));
+	}
+
+	@Test
+	void escapedWildcardIsLiteral()
+	{
+		assertFalse(TagPattern.isPattern("5\\*_rating"));
+		assertTrue(TagPattern.isPattern("5\\*_*"));
+		assertTrue(TagPattern.isPattern("5*"));
+		assertFalse(TagPattern.isPattern("back\\slash"));
+
+		assertEquals("5*_rating", TagPattern.unescape("5\\*_rating"));
+		assertEquals("5\\*_rating", TagPattern.escape("5*_rating"));
+		assertEquals("back\\slash", TagPattern.unescape("back\\slash"));
+
+		TagPattern pattern = new TagPattern("5\\*_*");
+		assertTrue(pattern.matches("5*_rating"));
+		assertFalse(pattern.matches("5_stars_rating"));
+		assertEquals("5*_", pattern.prefix());
+	}
+}
@@ -0,0 +1,99 @@
+package nigloo.gallerymanager.model;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Retained heap and GC time of the tags of the images: the sorted tag ids
+ * held by each image now, against the set of tag references each image held
+ * before.<br/>
+ * Run with mvn test -P benchmark
+ */
+@org.junit.jupiter.api.Tag("benchmark")
+class TagStorageBenchmarkTest
+{
+	private static final int NB_IMAGES = 200_000;
+	private static final int NB_TAGS_PER_IMAGE = 10;
+	private static final int NB_TAGS = 5_000;
+
+	@Test
+	void tagStorageFootprint()
+	{
+		Gallery gallery = GalleryFixture.newGallery();
+		List<Tag> tags = new ArrayList<>(NB_TAGS);
+		for (int i = 0 ; i < NB_TAGS ; i++)
+			tags.add(gallery.getTag("tag_" + i));
+
+		Random random = new Random(42);
+		int[][] tagIdsByImage = new int[NB_IMAGES][];
+		for (int i = 0 ; i < NB_IMAGES ; i++)
+			tagIdsByImage[i] = random.ints(NB_TAGS_PER_IMAGE, 0, NB_TAGS).sorted().distinct().toArray();
+
+		Measure tagIds = measure("int[] of tag ids", i -> Arrays.copyOf(tagIdsByImage[i], tagIdsByImage[i].length));
+		Measure references = measure("HashSet<TagReference>", i ->
+		{
+			HashSet<TagReference> imageTags = new HashSet<>();
+			for (int tagId : tagIdsByImage[i])
+				imageTags.add(new TagReference(tags.get(tagId)));
+			return imageTags;
+		});
+
+		System.out.printf(Locale.ROOT, "Tag storage of %d images with %d tags: %.1fx less heap%n",
+		                  NB_IMAGES,
+		                  NB_TAGS_PER_IMAGE,
+		                  (double) references.retainedBytes() / tagIds.retainedBytes());
+		assertTrue(tagIds.retainedBytes() < references.retainedBytes());
+	}
+
+	private static Measure measure(String name, IntFunction<Object> tagStorage)
+	{
+		long heapBefore = usedHeapAfterGC();
+		long gcBefore = gcTimeMillis();
+
+		Object[] storage = new Object[NB_IMAGES];
+		for (int i = 0 ; i < NB_IMAGES ; i++)
+			storage[i] = tagStorage.apply(i);
+
+		long gcTime = gcTimeMillis() - gcBefore;
+		long retained = usedHeapAfterGC() - heapBefore;
+		System.out.printf(Locale.ROOT, "%-22s %8.1f MB retained, %6.1f bytes/image, %5d ms of GC while building%n",
+		                  name,
+		                  retained / 1024d / 1024d,
+		                  (double) retained / NB_IMAGES,
+		                  gcTime);
+
+		// Kept reachable until measured
+		assertTrue(storage[NB_IMAGES - 1] != null);
+		return new Measure(retained, gcTime);
+	}
+
+	private static long usedHeapAfterGC()
+	{
+		for (int i = 0 ; i < 3 ; i++)
+			System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long gcTimeMillis()
+	{
+		return ManagementFactory.getGarbageCollectorMXBeans()
+		                        .stream()
+		                        .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+		                        .sum();
+	}
+
+	private record Measure(long retainedBytes, long gcTimeMillis)
+	{
+	}
+}